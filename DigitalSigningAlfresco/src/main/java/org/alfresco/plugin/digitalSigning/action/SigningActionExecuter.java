@@ -5,15 +5,13 @@ package org.alfresco.plugin.digitalSigning.action;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
 import org.alfresco.error.AlfrescoRuntimeException;
-import org.alfresco.model.ContentModel;
 import org.alfresco.plugin.digitalSigning.dto.DigitalSigningDTO;
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
-import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
+import org.alfresco.plugin.digitalSigning.service.KeyLocator;
 import org.alfresco.plugin.digitalSigning.service.SigningService;
 import org.alfresco.plugin.digitalSigning.utils.SigningUtils;
 import org.alfresco.repo.action.ParameterDefinitionImpl;
@@ -21,7 +19,6 @@ import org.alfresco.repo.action.executer.ActionExecuterAbstractBase;
 import org.alfresco.service.cmr.action.Action;
 import org.alfresco.service.cmr.action.ParameterDefinition;
 import org.alfresco.service.cmr.dictionary.DataTypeDefinition;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.security.AuthenticationService;
@@ -89,6 +86,11 @@ public class SigningActionExecuter extends ActionExecuterAbstractBase {
 	 */
 	private NodeService nodeService;
 	
+	/**
+	 * Key locator.
+	 */
+	private KeyLocator keyLocator;
+	
 	@Override
 	protected void executeImpl(Action ruleAction, NodeRef actionedUponNodeRef) {
 		final NodeRef privateKey = (NodeRef)ruleAction.getParameterValue(PARAM_PRIVATE_KEY);
@@ -108,33 +110,11 @@ public class SigningActionExecuter extends ActionExecuterAbstractBase {
 		} else {
 			// Get current user key
 			final String currentUser = authenticationService.getCurrentUserName();
-			final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-			if (currentUserNodeRef != null) {
-				
-				final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-				if (currentUserHomeFolder != null) {
-					final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-					if (signingFolderNodeRef != null) {
-						final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-						if (children != null && children.size() > 0) {
-							final Iterator<ChildAssociationRef> itChildren = children.iterator();
-							boolean foundKey = false;
-							while (itChildren.hasNext() && !foundKey) {
-								final ChildAssociationRef childAssoc = itChildren.next();
-								final NodeRef child = childAssoc.getChildRef();
-								if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-									signingDTO.setKeyFile(child);
-									foundKey = true;
-								}
-							}
-							if (!foundKey) {
-								log.error("No key file uploaded for user " + currentUser + ".");
-								throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
-							}
-						} else {
-							log.error("No key file uploaded for user " + currentUser + ".");
-							throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
-						}
+			final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+			if (keyLocation != null) {
+				if (keyLocation.getHomeFolder() != null) {
+					if (keyLocation.getKeyNodeRef() != null) {
+						signingDTO.setKeyFile(keyLocation.getKeyNodeRef());
 					} else {
 						log.error("No key file uploaded for user " + currentUser + ".");
 						throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
@@ -221,6 +201,13 @@ public class SigningActionExecuter extends ActionExecuterAbstractBase {
 		this.nodeService = nodeService;
 	}
 
+	/**
+	 * @param keyLocator the keyLocator to set
+	 */
+	public final void setKeyLocator(KeyLocator keyLocator) {
+		this.keyLocator = keyLocator;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.alfresco.repo.action.executer.ActionExecuterAbstractBase#init()
 	 */
@@ -0,0 +1,309 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.behaviour;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.plugin.digitalSigning.service.PreConversionStore;
+import org.alfresco.repo.content.ContentServicePolicies;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.transform.ContentTransformer;
+import org.alfresco.repo.content.transform.ContentTransformerRegistry;
+import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Convert in the background the documents added or updated in a folder with
+ * the pre-convert aspect or in its sub folders, so they are already in PDF
+ * when they are signed.
+ *
+ * The conversion is kept by the {@link PreConversionStore} with the content
+ * URL it was made from, the signing service uses it only while the document
+ * content has not changed. The aspect is removed as soon as the
+ * content changes, and by the signing service once the document is signed.
+ */
+public class PreConversionBehaviour implements ContentServicePolicies.OnContentUpdatePolicy {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(PreConversionBehaviour.class);
+
+	/**
+	 * Policy component.
+	 */
+	private PolicyComponent policyComponent;
+
+	/**
+	 * Behaviour filter.
+	 */
+	private BehaviourFilter behaviourFilter;
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Content service.
+	 */
+	private ContentService contentService;
+
+	/**
+	 * Content Transformer registry.
+	 */
+	private ContentTransformerRegistry contentTransformerRegistry;
+
+	/**
+	 * Store of the conversions.
+	 */
+	private PreConversionStore preConversionStore;
+
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Low priority thread pool running the conversions.
+	 */
+	private ExecutorService preConversionThreadPool;
+
+	/**
+	 * Bind the behaviour.
+	 */
+	public void init() {
+		policyComponent.bindClassBehaviour(ContentServicePolicies.OnContentUpdatePolicy.QNAME, ContentModel.TYPE_CONTENT,
+				new JavaBehaviour(this, "onContentUpdate", NotificationFrequency.TRANSACTION_COMMIT));
+	}
+
+	/**
+	 * Remove the out of date conversion and queue the conversion once the
+	 * transaction is committed.
+	 *
+	 * @param nodeRef updated node
+	 * @param newContent true if the content is new
+	 */
+	public void onContentUpdate(final NodeRef nodeRef, final boolean newContent) {
+		if (!nodeService.exists(nodeRef)) {
+			return;
+		}
+		final ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+		if (nodeService.hasAspect(nodeRef, SigningModel.ASPECT_PRECONVERTED)
+				&& (contentReader == null || !contentReader.getContentUrl().equals(preConversionStore.getSourceContentUrl(nodeRef)))) {
+			removePreConversion(nodeRef);
+		}
+
+		if (!isInPreConvertFolder(nodeRef)) {
+			return;
+		}
+		if (contentReader == null || MimetypeMap.MIMETYPE_PDF.equals(contentReader.getMimetype())
+				|| contentReader.getContentUrl().equals(preConversionStore.getSourceContentUrl(nodeRef))) {
+			return;
+		}
+
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+			@Override
+			public void afterCommit() {
+				try {
+					preConversionThreadPool.execute(new Runnable() {
+						public void run() {
+							AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+								public Void doWork() throws Exception {
+									preConvert(nodeRef);
+									return null;
+								}
+							});
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					// Too many conversions waiting, the document will be converted when it is signed
+					log.debug("Pre-conversion queue full, " + nodeRef + " not queued.");
+				}
+			}
+		});
+	}
+
+	/**
+	 * Convert a document and keep the conversion on it.
+	 *
+	 * The conversion runs in a read-only transaction, only the storage of the
+	 * result needs a write transaction.
+	 *
+	 * @param nodeRef document to convert
+	 */
+	private void preConvert(final NodeRef nodeRef) {
+		try {
+			final String[] sourceContentUrl = new String[1];
+			final ContentReader convertedReader = retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<ContentReader>() {
+				public ContentReader execute() throws Throwable {
+					if (!nodeService.exists(nodeRef)) {
+						return null;
+					}
+					final ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+					if (contentReader == null || MimetypeMap.MIMETYPE_PDF.equals(contentReader.getMimetype())
+							|| contentReader.getContentUrl().equals(preConversionStore.getSourceContentUrl(nodeRef))) {
+						return null;
+					}
+					final ContentTransformer transformer = contentTransformerRegistry.getTransformer(contentReader.getMimetype(), contentReader.getSize(), MimetypeMap.MIMETYPE_PDF, new TransformationOptions());
+					if (transformer == null) {
+						return null;
+					}
+
+					final ContentWriter tempWriter = contentService.getTempWriter();
+					tempWriter.setMimetype(MimetypeMap.MIMETYPE_PDF);
+					final TransformationOptions transformationOptions = null;
+					transformer.transform(contentReader, tempWriter, transformationOptions);
+
+					sourceContentUrl[0] = contentReader.getContentUrl();
+					return tempWriter.getReader();
+				}
+			}, true, true);
+
+			if (convertedReader == null) {
+				return;
+			}
+
+			retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+				public Void execute() throws Throwable {
+					final ContentReader contentReader = nodeService.exists(nodeRef) ? contentService.getReader(nodeRef, ContentModel.PROP_CONTENT) : null;
+					if (contentReader == null || !sourceContentUrl[0].equals(contentReader.getContentUrl())) {
+						// Updated again during the conversion, the next conversion is already queued
+						return null;
+					}
+
+					behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+					behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+					try {
+						preConversionStore.put(nodeRef, sourceContentUrl[0], convertedReader.getReader());
+					} finally {
+						behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+						behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+					}
+					return null;
+				}
+			}, false, true);
+
+			if (log.isDebugEnabled()) {
+				log.debug("Pre-converted " + nodeRef + " in PDF.");
+			}
+		} catch (Throwable e) {
+			// The document will be converted when it is signed
+			log.warn("Unable to pre-convert " + nodeRef + " in PDF : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove the conversion of a previous content, its content is left to the
+	 * content store cleaner.
+	 *
+	 * @param nodeRef document
+	 */
+	private void removePreConversion(final NodeRef nodeRef) {
+		behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+		behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+		try {
+			preConversionStore.remove(nodeRef);
+		} finally {
+			behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+			behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Out of date pre-conversion of " + nodeRef + " removed.");
+		}
+	}
+
+	/**
+	 * @param nodeRef document
+	 * @return true if the document is in a folder with the pre-convert aspect, or in one of its sub folders
+	 */
+	private boolean isInPreConvertFolder(final NodeRef nodeRef) {
+		ChildAssociationRef parentAssoc = nodeService.getPrimaryParent(nodeRef);
+		while (parentAssoc != null && parentAssoc.getParentRef() != null) {
+			final NodeRef parentRef = parentAssoc.getParentRef();
+			if (nodeService.hasAspect(parentRef, SigningModel.ASPECT_PRECONVERT_FOLDER)) {
+				return true;
+			}
+			parentAssoc = nodeService.getPrimaryParent(parentRef);
+		}
+		return false;
+	}
+
+	/**
+	 * @param policyComponent the policyComponent to set
+	 */
+	public final void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param behaviourFilter the behaviourFilter to set
+	 */
+	public final void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+		this.behaviourFilter = behaviourFilter;
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param contentService the contentService to set
+	 */
+	public final void setContentService(ContentService contentService) {
+		this.contentService = contentService;
+	}
+
+	/**
+	 * @param contentTransformerRegistry the contentTransformerRegistry to set
+	 */
+	public final void setContentTransformerRegistry(
+			ContentTransformerRegistry contentTransformerRegistry) {
+		this.contentTransformerRegistry = contentTransformerRegistry;
+	}
+
+	/**
+	 * @param preConversionStore the preConversionStore to set
+	 */
+	public final void setPreConversionStore(PreConversionStore preConversionStore) {
+		this.preConversionStore = preConversionStore;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+
+	/**
+	 * @param preConversionThreadPool the preConversionThreadPool to set
+	 */
+	public final void setPreConversionThreadPool(ExecutorService preConversionThreadPool) {
+		this.preConversionThreadPool = preConversionThreadPool;
+	}
+}
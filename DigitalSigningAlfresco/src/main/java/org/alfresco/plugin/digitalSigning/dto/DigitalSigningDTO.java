@@ -64,6 +64,12 @@ public class DigitalSigningDTO {
 	 */
 	private NodeRef destinationFolder;
 	
+	/**
+	 * Sign each document in its own transaction and report the failures per
+	 * document, instead of failing the whole batch.
+	 */
+	private boolean partialSuccess;
+	
 	
 	/**
 	 * @return the fileToSign
@@ -126,5 +132,19 @@ public class DigitalSigningDTO {
 	public final void setDestinationFolder(NodeRef destinationFolder) {
 		this.destinationFolder = destinationFolder;
 	}
+
+	/**
+	 * @return the partialSuccess
+	 */
+	public final boolean isPartialSuccess() {
+		return partialSuccess;
+	}
+
+	/**
+	 * @param partialSuccess the partialSuccess to set
+	 */
+	public final void setPartialSuccess(boolean partialSuccess) {
+		this.partialSuccess = partialSuccess;
+	}
 	
 }
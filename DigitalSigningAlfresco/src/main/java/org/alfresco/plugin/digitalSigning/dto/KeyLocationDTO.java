@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.dto;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Location of the key and image of a user, in the signing folder of his home
+ * folder.
+ */
+public class KeyLocationDTO implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * User home folder, null if the user has no home folder.
+	 */
+	private NodeRef homeFolder;
+
+	/**
+	 * Signing folder, null if no key has ever been uploaded.
+	 */
+	private NodeRef signingFolder;
+
+	/**
+	 * Key file, null if there is no key.
+	 */
+	private NodeRef keyNodeRef;
+
+	/**
+	 * Image file, null if there is no image.
+	 */
+	private NodeRef imageNodeRef;
+
+	/**
+	 * Alias chosen in the key.
+	 */
+	private String alias;
+
+	/**
+	 * First day of validity of the key.
+	 */
+	private Date firstDayValidity;
+
+	/**
+	 * Last day of validity of the key.
+	 */
+	private Date lastDayValidity;
+
+	/**
+	 * @return the homeFolder
+	 */
+	public final NodeRef getHomeFolder() {
+		return homeFolder;
+	}
+
+	/**
+	 * @param homeFolder the homeFolder to set
+	 */
+	public final void setHomeFolder(NodeRef homeFolder) {
+		this.homeFolder = homeFolder;
+	}
+
+	/**
+	 * @return the signingFolder
+	 */
+	public final NodeRef getSigningFolder() {
+		return signingFolder;
+	}
+
+	/**
+	 * @param signingFolder the signingFolder to set
+	 */
+	public final void setSigningFolder(NodeRef signingFolder) {
+		this.signingFolder = signingFolder;
+	}
+
+	/**
+	 * @return the keyNodeRef
+	 */
+	public final NodeRef getKeyNodeRef() {
+		return keyNodeRef;
+	}
+
+	/**
+	 * @param keyNodeRef the keyNodeRef to set
+	 */
+	public final void setKeyNodeRef(NodeRef keyNodeRef) {
+		this.keyNodeRef = keyNodeRef;
+	}
+
+	/**
+	 * @return the imageNodeRef
+	 */
+	public final NodeRef getImageNodeRef() {
+		return imageNodeRef;
+	}
+
+	/**
+	 * @param imageNodeRef the imageNodeRef to set
+	 */
+	public final void setImageNodeRef(NodeRef imageNodeRef) {
+		this.imageNodeRef = imageNodeRef;
+	}
+
+	/**
+	 * @return the alias
+	 */
+	public final String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @param alias the alias to set
+	 */
+	public final void setAlias(String alias) {
+		this.alias = alias;
+	}
+
+	/**
+	 * @return the firstDayValidity
+	 */
+	public final Date getFirstDayValidity() {
+		return firstDayValidity;
+	}
+
+	/**
+	 * @param firstDayValidity the firstDayValidity to set
+	 */
+	public final void setFirstDayValidity(Date firstDayValidity) {
+		this.firstDayValidity = firstDayValidity;
+	}
+
+	/**
+	 * @return the lastDayValidity
+	 */
+	public final Date getLastDayValidity() {
+		return lastDayValidity;
+	}
+
+	/**
+	 * @param lastDayValidity the lastDayValidity to set
+	 */
+	public final void setLastDayValidity(Date lastDayValidity) {
+		this.lastDayValidity = lastDayValidity;
+	}
+}
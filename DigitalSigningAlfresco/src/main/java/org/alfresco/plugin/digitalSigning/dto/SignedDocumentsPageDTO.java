@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.dto;
+
+import java.util.List;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Page of signed documents.
+ */
+public class SignedDocumentsPageDTO {
+
+	/**
+	 * Documents of the page.
+	 */
+	private List<NodeRef> nodeRefs;
+
+	/**
+	 * Number of documents found.
+	 */
+	private long totalRecords;
+
+	/**
+	 * Index of the first document of the page.
+	 */
+	private int startIndex;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nodeRefs documents of the page
+	 * @param totalRecords number of documents found
+	 * @param startIndex index of the first document of the page
+	 */
+	public SignedDocumentsPageDTO(final List<NodeRef> nodeRefs, final long totalRecords, final int startIndex) {
+		this.nodeRefs = nodeRefs;
+		this.totalRecords = totalRecords;
+		this.startIndex = startIndex;
+	}
+
+	/**
+	 * @return the nodeRefs
+	 */
+	public final List<NodeRef> getNodeRefs() {
+		return nodeRefs;
+	}
+
+	/**
+	 * @return the totalRecords
+	 */
+	public final long getTotalRecords() {
+		return totalRecords;
+	}
+
+	/**
+	 * @return the startIndex
+	 */
+	public final int getStartIndex() {
+		return startIndex;
+	}
+}
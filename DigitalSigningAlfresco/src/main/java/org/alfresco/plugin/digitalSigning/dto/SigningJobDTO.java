@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.dto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Asynchronous signing job.
+ */
+public class SigningJobDTO {
+
+	/**
+	 * Job status.
+	 */
+	public static final String STATUS_QUEUED = "queued";
+	public static final String STATUS_RUNNING = "running";
+	public static final String STATUS_DONE = "done";
+	public static final String STATUS_FAILED = "failed";
+
+	/**
+	 * Job id.
+	 */
+	private final String id;
+
+	/**
+	 * User who submitted the job.
+	 */
+	private final String userName;
+
+	/**
+	 * Number of documents to sign, the requested ones until the job has
+	 * started, then the ones which will be signed.
+	 */
+	private volatile int total;
+
+	/**
+	 * Submission date.
+	 */
+	private final Date submitDate;
+
+	/**
+	 * End date.
+	 */
+	private volatile Date endDate;
+
+	/**
+	 * Status.
+	 */
+	private volatile String status;
+
+	/**
+	 * Error message of the whole job.
+	 */
+	private volatile String errorMessage;
+
+	/**
+	 * Result of each document already processed.
+	 */
+	private final List<SigningResultDTO> results = Collections.synchronizedList(new ArrayList<SigningResultDTO>());
+
+	/**
+	 * Failed result of each document which can't be signed.
+	 */
+	private volatile List<SigningResultDTO> skipped = Collections.emptyList();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id job id
+	 * @param userName user who submitted the job
+	 * @param total number of documents to sign
+	 */
+	public SigningJobDTO(final String id, final String userName, final int total) {
+		this.id = id;
+		this.userName = userName;
+		this.total = total;
+		this.submitDate = new Date();
+		this.status = STATUS_QUEUED;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public final String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the userName
+	 */
+	public final String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @return the total
+	 */
+	public final int getTotal() {
+		return total;
+	}
+
+	/**
+	 * @param total the total to set
+	 */
+	public final void setTotal(int total) {
+		this.total = total;
+	}
+
+	/**
+	 * @return the submitDate
+	 */
+	public final Date getSubmitDate() {
+		return submitDate;
+	}
+
+	/**
+	 * @return the endDate
+	 */
+	public final Date getEndDate() {
+		return endDate;
+	}
+
+	/**
+	 * @param endDate the endDate to set
+	 */
+	public final void setEndDate(Date endDate) {
+		this.endDate = endDate;
+	}
+
+	/**
+	 * @return the status
+	 */
+	public final String getStatus() {
+		return status;
+	}
+
+	/**
+	 * @param status the status to set
+	 */
+	public final void setStatus(String status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return the errorMessage
+	 */
+	public final String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * @param errorMessage the errorMessage to set
+	 */
+	public final void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+
+	/**
+	 * @return a copy of the results already known
+	 */
+	public final List<SigningResultDTO> getResults() {
+		synchronized (results) {
+			return new ArrayList<SigningResultDTO>(results);
+		}
+	}
+
+	/**
+	 * @return number of documents already processed
+	 */
+	public final int getProcessed() {
+		return results.size();
+	}
+
+	/**
+	 * @param signingResult result of a processed document
+	 */
+	public final void addResult(SigningResultDTO signingResult) {
+		results.add(signingResult);
+	}
+
+	/**
+	 * @return the documents which can't be signed
+	 */
+	public final List<SigningResultDTO> getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @param skipped the documents which can't be signed
+	 */
+	public final void setSkipped(List<SigningResultDTO> skipped) {
+		this.skipped = Collections.unmodifiableList(new ArrayList<SigningResultDTO>(skipped));
+	}
+
+	/**
+	 * @return true if the job is over
+	 */
+	public final boolean isFinished() {
+		return STATUS_DONE.equals(status) || STATUS_FAILED.equals(status);
+	}
+}
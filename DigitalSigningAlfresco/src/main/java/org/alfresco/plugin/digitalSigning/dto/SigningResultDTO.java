@@ -0,0 +1,68 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.dto;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Signing result of one document.
+ */
+public class SigningResultDTO {
+
+	/**
+	 * Signed document.
+	 */
+	private NodeRef nodeRef;
+
+	/**
+	 * Signed document name.
+	 */
+	private String name;
+
+	/**
+	 * Error message, null if the document has been signed.
+	 */
+	private String errorMessage;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param nodeRef signed document
+	 * @param name signed document name
+	 * @param errorMessage error message, null if the document has been signed
+	 */
+	public SigningResultDTO(final NodeRef nodeRef, final String name, final String errorMessage) {
+		this.nodeRef = nodeRef;
+		this.name = name;
+		this.errorMessage = errorMessage;
+	}
+
+	/**
+	 * @return the nodeRef
+	 */
+	public final NodeRef getNodeRef() {
+		return nodeRef;
+	}
+
+	/**
+	 * @return the name
+	 */
+	public final String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the errorMessage
+	 */
+	public final String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/**
+	 * @return true if the document has been signed
+	 */
+	public final boolean isSigned() {
+		return errorMessage == null;
+	}
+}
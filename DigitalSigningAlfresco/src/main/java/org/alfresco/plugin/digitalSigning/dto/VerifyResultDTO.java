@@ -37,6 +37,21 @@ public class VerifyResultDTO {
 	 */
 	private Boolean isSignValid;
 	
+	/**
+	 * Reason why the sign is not valid.
+	 */
+	private String failReason = "";
+	
+	/**
+	 * Signing reason.
+	 */
+	private String signReason;
+	
+	/**
+	 * Signing location.
+	 */
+	private String signLocation;
+	
 
 	
 	
@@ -228,4 +243,46 @@ public class VerifyResultDTO {
 	public final void setSignName(String signName) {
 		this.signName = signName;
 	}
+
+	/**
+	 * @return the failReason
+	 */
+	public final String getFailReason() {
+		return failReason;
+	}
+
+	/**
+	 * @param failReason the failReason to set
+	 */
+	public final void setFailReason(String failReason) {
+		this.failReason = failReason;
+	}
+
+	/**
+	 * @return the signReason
+	 */
+	public final String getSignReason() {
+		return signReason;
+	}
+
+	/**
+	 * @param signReason the signReason to set
+	 */
+	public final void setSignReason(String signReason) {
+		this.signReason = signReason;
+	}
+
+	/**
+	 * @return the signLocation
+	 */
+	public final String getSignLocation() {
+		return signLocation;
+	}
+
+	/**
+	 * @param signLocation the signLocation to set
+	 */
+	public final void setSignLocation(String signLocation) {
+		this.signLocation = signLocation;
+	}
 }
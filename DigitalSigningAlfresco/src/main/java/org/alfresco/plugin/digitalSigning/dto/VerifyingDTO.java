@@ -27,6 +27,13 @@ public class VerifyingDTO {
 	 */
 	private String keyPassword;
 
+	/**
+	 * @return true to verify against the trust store, without key
+	 */
+	public final boolean isKeyless() {
+		return keyPassword == null;
+	}
+
 	/**
 	 * @return the fileToVerify
 	 */
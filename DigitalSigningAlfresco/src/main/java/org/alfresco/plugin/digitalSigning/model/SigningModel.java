@@ -40,4 +40,14 @@ public class SigningModel {
     // Original doc aspect and properties
     public static final QName ASPECT_ORIGINAL_DOC = QName.createQName(DIGITAL_SIGNING_MODEL_1_0_URI, "originalDoc");
     public static final QName PROP_RELATED_DOC = QName.createQName(DIGITAL_SIGNING_MODEL_1_0_URI, "relatedDocList");
+    
+    // Pre-convert folder aspect
+    public static final QName ASPECT_PRECONVERT_FOLDER = QName.createQName(DIGITAL_SIGNING_MODEL_1_0_URI, "preConvertFolder");
+    
+    // Pre-converted aspect and properties
+    public static final QName ASPECT_PRECONVERTED = QName.createQName(DIGITAL_SIGNING_MODEL_1_0_URI, "preConverted");
+    public static final QName PROP_PRECONVERTED_CONTENT = QName.createQName(DIGITAL_SIGNING_MODEL_1_0_URI, "preConvertedContent");
+    
+    // Verified aspect
+    public static final QName ASPECT_VERIFIED = QName.createQName(DIGITAL_SIGNING_MODEL_1_0_URI, "verified");
 }
@@ -0,0 +1,457 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.scheduledAction;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.repo.action.executer.MailActionExecuter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ActionService;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.javamail.JavaMailSender;
+
+/**
+ * Send the certificate alert mails.
+ *
+ * The mails of a transaction are queued once it is committed, in a bounded
+ * queue: when the queue is full, the alert batches wait for the mails to be
+ * sent. A single thread sends the queued mails by groups, each group over
+ * one connection to the mail server. When the mail action is in test mode,
+ * the mails are handed to it one by one instead, so they are not sent.
+ *
+ * The key of a mail which could not be sent is flagged as not alerted
+ * again, so its alert is sent on the next tick of the scheduler. The failed
+ * attempts of each key are counted in the attribute service: once
+ * maxAttempts mails of a key have failed, the key is left alerted and its
+ * alert is given up.
+ */
+public class AlertMailSender extends AbstractLifecycleBean {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(AlertMailSender.class);
+
+	/**
+	 * Transaction resource holding the mails of the transaction.
+	 */
+	private static final String TXN_MAILS = AlertMailSender.class.getName() + ".mails";
+
+	/**
+	 * First key of the failed attempts of the keys in the attribute service.
+	 */
+	private static final String ATTEMPTS_KEY = "digitalSigning.alertMailAttempts";
+
+	/**
+	 * Mail sender.
+	 */
+	private JavaMailSender mailSender;
+
+	/**
+	 * Mail action, for its test mode.
+	 */
+	private MailActionExecuter mailActionExecuter;
+
+	/**
+	 * Action service.
+	 */
+	private ActionService actionService;
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Attribute service.
+	 */
+	private AttributeService attributeService;
+
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Maximum number of mails waiting to be sent.
+	 */
+	private int queueCapacity = 500;
+
+	/**
+	 * Maximum number of mails sent over one connection.
+	 */
+	private int sendBatchSize = 50;
+
+	/**
+	 * Maximum number of failed mails of a key before its alert is given up.
+	 */
+	private int maxAttempts = 5;
+
+	/**
+	 * Mails waiting to be sent.
+	 */
+	private volatile BlockingQueue<AlertMail> queue;
+
+	/**
+	 * Thread sending the mails.
+	 */
+	private Thread senderThread;
+
+	@Override
+	protected void onBootstrap(final ApplicationEvent event) {
+		queue = new ArrayBlockingQueue<AlertMail>(queueCapacity);
+		senderThread = new Thread(new Runnable() {
+			public void run() {
+				sendQueuedMails();
+			}
+		}, "DigitalSigningAlertMail");
+		senderThread.setDaemon(true);
+		senderThread.start();
+	}
+
+	@Override
+	protected void onShutdown(final ApplicationEvent event) {
+		if (senderThread != null) {
+			senderThread.interrupt();
+		}
+	}
+
+	/**
+	 * Send a mail once the current transaction is committed.
+	 *
+	 * @param message mail to send
+	 * @param keyNodeRef key alerted by the mail, flagged in the current transaction
+	 */
+	public void sendAfterCommit(final SimpleMailMessage message, final NodeRef keyNodeRef) {
+		List<AlertMail> mails = AlfrescoTransactionSupport.getResource(TXN_MAILS);
+		if (mails == null) {
+			final List<AlertMail> txnMails = new ArrayList<AlertMail>();
+			AlfrescoTransactionSupport.bindResource(TXN_MAILS, txnMails);
+			AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+				@Override
+				public void afterCommit() {
+					queue(txnMails);
+				}
+			});
+			mails = txnMails;
+		}
+		mails.add(new AlertMail(message, keyNodeRef));
+	}
+
+	/**
+	 * Queue mails, waiting for room in the queue.
+	 *
+	 * @param mails mails to send
+	 */
+	private void queue(final List<AlertMail> mails) {
+		final BlockingQueue<AlertMail> mailQueue = queue;
+		if (mailQueue == null) {
+			// Not started yet
+			send(mails);
+			return;
+		}
+		int queued = 0;
+		try {
+			for (AlertMail mail : mails) {
+				mailQueue.put(mail);
+				queued++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.error("Certificate alert mails not queued : " + e.getMessage());
+			resetAlerted(mails.subList(queued, mails.size()));
+		}
+	}
+
+	/**
+	 * Send the queued mails until the thread is interrupted.
+	 */
+	private void sendQueuedMails() {
+		final BlockingQueue<AlertMail> mailQueue = queue;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final List<AlertMail> mails = new ArrayList<AlertMail>(sendBatchSize);
+				mails.add(mailQueue.take());
+				mailQueue.drainTo(mails, sendBatchSize - 1);
+				send(mails);
+			}
+		} catch (InterruptedException e) {
+			// Shutdown
+		}
+		if (!mailQueue.isEmpty()) {
+			final List<AlertMail> mails = new ArrayList<AlertMail>(mailQueue.size());
+			mailQueue.drainTo(mails);
+			log.warn(mails.size() + " certificate alert mail(s) not sent on shutdown.");
+			resetAlerted(mails);
+		}
+	}
+
+	/**
+	 * Send mails over one connection, or through the mail action in test mode.
+	 *
+	 * @param mails mails to send
+	 */
+	private void send(final List<AlertMail> mails) {
+		final List<AlertMail> failedMails = mailActionExecuter != null && mailActionExecuter.isTestMode() ? sendWithAction(mails) : sendWithMailSender(mails);
+		if (log.isDebugEnabled()) {
+			log.debug((mails.size() - failedMails.size()) + " certificate alert mail(s) sent.");
+		}
+		final List<AlertMail> sentMails = new ArrayList<AlertMail>(mails);
+		sentMails.removeAll(failedMails);
+		clearAttempts(sentMails);
+		resetAlerted(failedMails);
+	}
+
+	/**
+	 * Send mails over one connection.
+	 *
+	 * @param mails mails to send
+	 * @return the mails which could not be sent
+	 */
+	private List<AlertMail> sendWithMailSender(final List<AlertMail> mails) {
+		final SimpleMailMessage[] messages = new SimpleMailMessage[mails.size()];
+		for (int i = 0; i < messages.length; i++) {
+			messages[i] = mails.get(i).message;
+		}
+		try {
+			mailSender.send(messages);
+			return new ArrayList<AlertMail>();
+		} catch (MailSendException e) {
+			log.error("Unable to send certificate alert mails : " + e.getMessage(), e);
+			final Map<Object, Exception> failedMessages = e.getFailedMessages();
+			if (failedMessages.isEmpty()) {
+				return mails;
+			}
+			final List<AlertMail> failedMails = new ArrayList<AlertMail>();
+			for (AlertMail mail : mails) {
+				if (failedMessages.containsKey(mail.message)) {
+					failedMails.add(mail);
+				}
+			}
+			return failedMails;
+		} catch (MailException e) {
+			log.error("Unable to send certificate alert mails : " + e.getMessage(), e);
+			return mails;
+		}
+	}
+
+	/**
+	 * Send mails one by one through the mail action.
+	 *
+	 * @param mails mails to send
+	 * @return the mails which could not be sent
+	 */
+	private List<AlertMail> sendWithAction(final List<AlertMail> mails) {
+		final List<AlertMail> failedMails = new ArrayList<AlertMail>();
+		for (final AlertMail mail : mails) {
+			try {
+				AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+					public Void doWork() throws Exception {
+						return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+							public Void execute() throws Throwable {
+								final Action action = actionService.createAction(MailActionExecuter.NAME);
+								action.setParameterValue(MailActionExecuter.PARAM_FROM, mail.message.getFrom());
+								action.setParameterValue(MailActionExecuter.PARAM_TO, mail.message.getTo()[0]);
+								action.setParameterValue(MailActionExecuter.PARAM_SUBJECT, mail.message.getSubject());
+								action.setParameterValue(MailActionExecuter.PARAM_TEXT, mail.message.getText());
+								actionService.executeAction(action, null);
+								return null;
+							}
+						}, false, true);
+					}
+				});
+			} catch (Throwable e) {
+				log.error("Unable to send certificate alert mail : " + e.getMessage(), e);
+				failedMails.add(mail);
+			}
+		}
+		return failedMails;
+	}
+
+	/**
+	 * Flag the keys of mails not sent as not alerted, in their own
+	 * transaction: the scheduler alerts them again on its next tick, unless
+	 * maxAttempts mails of the key have failed.
+	 *
+	 * @param mails mails not sent
+	 */
+	private void resetAlerted(final List<AlertMail> mails) {
+		if (mails.isEmpty()) {
+			return;
+		}
+		try {
+			AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+				public Void doWork() throws Exception {
+					return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+						public Void execute() throws Throwable {
+							for (AlertMail mail : mails) {
+								final String key = mail.keyNodeRef.toString();
+								if (!nodeService.exists(mail.keyNodeRef)) {
+									attributeService.removeAttribute(ATTEMPTS_KEY, key);
+									continue;
+								}
+								final Integer attempts = (Integer) attributeService.getAttribute(ATTEMPTS_KEY, key);
+								final int failedAttempts = attempts != null ? attempts + 1 : 1;
+								if (failedAttempts >= maxAttempts) {
+									// Left alerted
+									attributeService.removeAttribute(ATTEMPTS_KEY, key);
+									log.error("Certificate alert of " + mail.keyNodeRef + " to " + mail.message.getTo()[0] + " given up after " + failedAttempts + " failed mail(s).");
+								} else {
+									attributeService.setAttribute(failedAttempts, ATTEMPTS_KEY, key);
+									nodeService.setProperty(mail.keyNodeRef, SigningModel.PROP_KEYHASALERT, false);
+								}
+							}
+							return null;
+						}
+					}, false, true);
+				}
+			});
+			if (log.isDebugEnabled()) {
+				log.debug(mails.size() + " certificate alert(s) not sent.");
+			}
+		} catch (Throwable e) {
+			log.error("Unable to flag " + mails.size() + " key(s) whose certificate alert was not sent : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Forget the failed attempts of the keys of mails sent.
+	 *
+	 * @param mails mails sent
+	 */
+	private void clearAttempts(final List<AlertMail> mails) {
+		if (mails.isEmpty()) {
+			return;
+		}
+		try {
+			AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+				public Void doWork() throws Exception {
+					return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+						public Void execute() throws Throwable {
+							for (AlertMail mail : mails) {
+								final String key = mail.keyNodeRef.toString();
+								if (attributeService.exists(ATTEMPTS_KEY, key)) {
+									attributeService.removeAttribute(ATTEMPTS_KEY, key);
+								}
+							}
+							return null;
+						}
+					}, false, true);
+				}
+			});
+		} catch (Throwable e) {
+			log.error("Unable to clear the failed attempts of " + mails.size() + " certificate alert(s) : " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param mailSender the mailSender to set
+	 */
+	public final void setMailSender(JavaMailSender mailSender) {
+		this.mailSender = mailSender;
+	}
+
+	/**
+	 * @param mailActionExecuter the mailActionExecuter to set
+	 */
+	public final void setMailActionExecuter(MailActionExecuter mailActionExecuter) {
+		this.mailActionExecuter = mailActionExecuter;
+	}
+
+	/**
+	 * @param actionService the actionService to set
+	 */
+	public final void setActionService(ActionService actionService) {
+		this.actionService = actionService;
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param attributeService the attributeService to set
+	 */
+	public final void setAttributeService(AttributeService attributeService) {
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+
+	/**
+	 * @param queueCapacity the queueCapacity to set
+	 */
+	public final void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @param sendBatchSize the sendBatchSize to set
+	 */
+	public final void setSendBatchSize(int sendBatchSize) {
+		this.sendBatchSize = sendBatchSize;
+	}
+
+	/**
+	 * @param maxAttempts the maxAttempts to set
+	 */
+	public final void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Alert mail and the key it alerts.
+	 */
+	private static final class AlertMail {
+
+		/**
+		 * Mail.
+		 */
+		private final SimpleMailMessage message;
+
+		/**
+		 * Alerted key.
+		 */
+		private final NodeRef keyNodeRef;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param message mail
+		 * @param keyNodeRef alerted key
+		 */
+		private AlertMail(final SimpleMailMessage message, final NodeRef keyNodeRef) {
+			this.message = message;
+			this.keyNodeRef = keyNodeRef;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.scheduledAction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+/**
+ * Hierarchical timing wheel of the keys to alert.
+ *
+ * Each level has the same number of slots, a slot of a level lasting as long
+ * as a whole turn of the level below. A key is put in the lowest level able
+ * to hold its due time, and moved down a level when the time reaches its
+ * slot, so scheduling, cancelling and firing a key costs the same whatever
+ * the number of keys. Keys due later than the highest level are kept apart
+ * and placed again at each turn of this level.
+ */
+public class AlertTimingWheel {
+
+	/**
+	 * Duration of a tick, in milliseconds.
+	 */
+	private final long tickMillis;
+
+	/**
+	 * Number of slots of a level.
+	 */
+	private final int wheelSize;
+
+	/**
+	 * Slots of each level.
+	 */
+	private final List<List<Set<NodeRef>>> levels;
+
+	/**
+	 * Keys due later than the highest level.
+	 */
+	private final Set<NodeRef> overflow = new HashSet<NodeRef>();
+
+	/**
+	 * Keys already due.
+	 */
+	private final Set<NodeRef> due = new HashSet<NodeRef>();
+
+	/**
+	 * Due tick of each key.
+	 */
+	private final Map<NodeRef, Long> dueTicks = new HashMap<NodeRef, Long>();
+
+	/**
+	 * Slot holding each key.
+	 */
+	private final Map<NodeRef, Set<NodeRef>> slots = new HashMap<NodeRef, Set<NodeRef>>();
+
+	/**
+	 * Last tick processed.
+	 */
+	private long currentTick;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tickMillis duration of a tick, in milliseconds
+	 * @param wheelSize number of slots of a level
+	 * @param nbLevels number of levels
+	 * @param now current time, in milliseconds
+	 */
+	public AlertTimingWheel(final long tickMillis, final int wheelSize, final int nbLevels, final long now) {
+		this.tickMillis = tickMillis;
+		this.wheelSize = wheelSize;
+		this.levels = new ArrayList<List<Set<NodeRef>>>(nbLevels);
+		for (int level = 0; level < nbLevels; level++) {
+			final List<Set<NodeRef>> levelSlots = new ArrayList<Set<NodeRef>>(wheelSize);
+			for (int slot = 0; slot < wheelSize; slot++) {
+				levelSlots.add(new HashSet<NodeRef>());
+			}
+			levels.add(levelSlots);
+		}
+		this.currentTick = now / tickMillis;
+	}
+
+	/**
+	 * Schedule a key, replacing its previous due time.
+	 *
+	 * @param key key to schedule
+	 * @param dueTime due time, in milliseconds
+	 */
+	public synchronized void schedule(final NodeRef key, final long dueTime) {
+		cancel(key);
+		dueTicks.put(key, dueTime / tickMillis);
+		place(key);
+	}
+
+	/**
+	 * Cancel a key.
+	 *
+	 * @param key key to cancel
+	 */
+	public synchronized void cancel(final NodeRef key) {
+		final Set<NodeRef> slot = slots.remove(key);
+		if (slot != null) {
+			slot.remove(key);
+		}
+		dueTicks.remove(key);
+	}
+
+	/**
+	 * Cancel every key.
+	 */
+	public synchronized void clear() {
+		for (NodeRef key : new ArrayList<NodeRef>(slots.keySet())) {
+			cancel(key);
+		}
+	}
+
+	/**
+	 * Move the time forward and remove the keys which are due.
+	 *
+	 * @param now current time, in milliseconds
+	 * @return the keys due, removed from the wheel
+	 */
+	public synchronized List<NodeRef> advance(final long now) {
+		final long nowTick = now / tickMillis;
+		while (currentTick < nowTick) {
+			currentTick++;
+			// Keys of the slots reached on the higher levels move down
+			long levelTicks = 1;
+			for (int level = 0; level < levels.size(); level++) {
+				levelTicks *= wheelSize;
+			}
+			if (currentTick % levelTicks == 0) {
+				replace(overflow);
+			}
+			for (int level = levels.size() - 1; level > 0; level--) {
+				levelTicks /= wheelSize;
+				if (currentTick % levelTicks == 0) {
+					replace(levels.get(level).get((int) ((currentTick / levelTicks) % wheelSize)));
+				}
+			}
+			final Set<NodeRef> slot = levels.get(0).get((int) (currentTick % wheelSize));
+			for (NodeRef key : slot) {
+				slots.put(key, due);
+			}
+			due.addAll(slot);
+			slot.clear();
+		}
+
+		final List<NodeRef> dueKeys = new ArrayList<NodeRef>(due);
+		for (NodeRef key : dueKeys) {
+			cancel(key);
+		}
+		return dueKeys;
+	}
+
+	/**
+	 * @return number of keys in the wheel
+	 */
+	public synchronized int size() {
+		return slots.size();
+	}
+
+	/**
+	 * Place again the keys of a slot.
+	 *
+	 * @param slot slot to empty
+	 */
+	private void replace(final Set<NodeRef> slot) {
+		final List<NodeRef> keys = new ArrayList<NodeRef>(slot);
+		slot.clear();
+		for (NodeRef key : keys) {
+			place(key);
+		}
+	}
+
+	/**
+	 * Put a key in the lowest level able to hold its due time.
+	 *
+	 * @param key key to place
+	 */
+	private void place(final NodeRef key) {
+		final long dueTick = dueTicks.get(key);
+		final long delta = dueTick - currentTick;
+		Set<NodeRef> slot = null;
+		if (delta <= 0) {
+			slot = due;
+		} else {
+			long levelTicks = 1;
+			for (int level = 0; level < levels.size() && slot == null; level++) {
+				if (delta < levelTicks * wheelSize) {
+					slot = levels.get(level).get((int) ((dueTick / levelTicks) % wheelSize));
+				}
+				levelTicks *= wheelSize;
+			}
+			if (slot == null) {
+				slot = overflow;
+			}
+		}
+		slot.add(key);
+		slots.put(key, slot);
+	}
+}
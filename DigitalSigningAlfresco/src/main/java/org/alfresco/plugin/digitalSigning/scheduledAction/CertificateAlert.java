@@ -3,49 +3,74 @@
  */
 package org.alfresco.plugin.digitalSigning.scheduledAction;
 
-import java.io.Serializable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import freemarker.cache.ClassTemplateLoader;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
 import org.alfresco.plugin.digitalSigning.model.SigningModel;
-import org.alfresco.query.PagingRequest;
-import org.alfresco.query.PagingResults;
-import org.alfresco.repo.action.executer.MailActionExecuter;
+import org.alfresco.plugin.digitalSigning.service.KeyLocator;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
 import org.alfresco.repo.tenant.TenantService;
 import org.alfresco.repo.tenant.TenantUtil;
 import org.alfresco.repo.tenant.TenantUtil.TenantRunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.service.cmr.action.Action;
-import org.alfresco.service.cmr.action.ActionService;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
 import org.alfresco.service.cmr.preference.PreferenceService;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-import org.alfresco.service.cmr.repository.TemplateException;
-import org.alfresco.service.cmr.repository.TemplateService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.cmr.security.OwnableService;
 import org.alfresco.service.cmr.security.PersonService;
-import org.alfresco.service.cmr.security.PersonService.PersonInfo;
+import org.alfresco.util.ISO8601DateFormat;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.extensions.surf.util.I18NUtil;
+import org.springframework.mail.SimpleMailMessage;
 import org.springframework.util.StringUtils;
 
 /**
  * Certificate alert process class.
  * 
+ * The alert dates are read with a query on the keys not alerted yet and
+ * expiring within the longest alert period, run on the database when
+ * possible, and kept by the {@link CertificateAlertScheduler}. The keys due
+ * are processed by a {@link BatchProcessor}, committing every batch, a key
+ * being flagged in the batch sending its alert. The alert mails are compiled
+ * once by locale and sent by the {@link AlertMailSender} once their batch is
+ * committed.
+ * 
  * @author Emmanuel ROUX
  */
-public class CertificateAlert {
+public class CertificateAlert implements ApplicationEventPublisherAware {
 	
 	/**
 	 * Logger.
@@ -56,6 +81,17 @@ public class CertificateAlert {
 	 * Message ressource bundle.
 	 */
 	private static final String BUNDLE_FILE_NAME = "alfresco.module.digitalSigning.messages.alert-messages";
+	
+	/**
+	 * Folder of the mail templates.
+	 */
+	private static final String TEMPLATE_PATH = "/alfresco/module/digitalSigningAlfresco/templates";
+	
+	/**
+	 * Mail template, keyAlert_&lt;locale&gt;.ftl being used when it exists.
+	 */
+	private static final String TEMPLATE_NAME = "keyAlert.ftl";
+	
 
 	/**
 	 * RetryingTransactionHelper bean.
@@ -73,24 +109,39 @@ public class CertificateAlert {
 	private PersonService personService;
 	
 	/**
-	 * ActionService bean.
+	 * TenantService bean.
+	 */
+	private TenantService tenantService;
+	
+	/**
+	 * PreferenceService bean.
 	 */
-	private ActionService actionService;
+	private PreferenceService preferenceService;
 	
 	/**
-	 * TemplateService bean.
+	 * Key locator.
 	 */
-	private TemplateService templateService;
+	private KeyLocator keyLocator;
 	
 	/**
-	 * TenantService bean.
+	 * SearchService bean.
 	 */
-	private TenantService tenantService;
+	private SearchService searchService;
 	
 	/**
-	 * PreferenceService bean.
+	 * OwnableService bean.
 	 */
-	private PreferenceService preferenceService;
+	private OwnableService ownableService;
+	
+	/**
+	 * Alert mail sender.
+	 */
+	private AlertMailSender alertMailSender;
+	
+	/**
+	 * Application event publisher.
+	 */
+	private ApplicationEventPublisher applicationEventPublisher;
 	
 	/**
 	 * From email address.
@@ -98,108 +149,328 @@ public class CertificateAlert {
 	private String fromEmail;
 	
 	/**
-	 * Process execution method.
+	 * Longest alert period, in months.
 	 */
-	public void execute() {
-
+	private int maxAlertMonths = 6;
+	
+	/**
+	 * Number of keys read at a time.
+	 */
+	private int pageSize = 1000;
+	
+	/**
+	 * Number of threads processing the keys.
+	 */
+	private int workerThreads = 4;
+	
+	/**
+	 * Number of keys processed in a transaction.
+	 */
+	private int batchSize = 50;
+	
+	/**
+	 * FreeMarker configuration of the mail templates.
+	 */
+	private final Configuration templateConfiguration = createTemplateConfiguration();
+	
+	/**
+	 * Compiled mail template and subject by locale.
+	 */
+	private final ConcurrentMap<Locale, AlertMailTemplate> mailTemplates = new ConcurrentHashMap<Locale, AlertMailTemplate>();
+	
+	/**
+	 * Send the alerts of keys which are due, and flag them.
+	 * 
+	 * @param keys keys to check
+	 * @return the keys whose batch failed, to check again
+	 */
+	public List<NodeRef> alert(final List<NodeRef> keys) {
 		if (logger.isDebugEnabled()) {
-			logger.debug("Start certificate alert process.");
+			logger.debug("Start certificate alert process for " + keys.size() + " key(s).");
 		}
 		
-		final RetryingTransactionCallback<Object> processCallBack = new RetryingTransactionCallback<Object>() {
-			public Object execute() throws Throwable {
-				checkCertificateAlert();
-				return null;
+		// Keys whose batch is committed, the others failed
+		final Set<NodeRef> checkedKeys = Collections.newSetFromMap(new ConcurrentHashMap<NodeRef, Boolean>());
+		final BatchProcessWorkerAdaptor<NodeRef> worker = new BatchProcessWorkerAdaptor<NodeRef>() {
+			@Override
+			public String getIdentifier(final NodeRef keyNodeRef) {
+				return keyNodeRef.toString();
+			}
+			
+			@Override
+			public void beforeProcess() throws Throwable {
+				AuthenticationUtil.setRunAsUserSystem();
+			}
+			
+			@Override
+			public void afterProcess() throws Throwable {
+				AuthenticationUtil.clearCurrentSecurityContext();
+			}
+			
+			public void process(final NodeRef keyNodeRef) throws Throwable {
+				checkCertificateAlert(keyNodeRef);
+				AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+					@Override
+					public void afterCommit() {
+						checkedKeys.add(keyNodeRef);
+					}
+				});
 			}
 		};
-
-		AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>() {
-			public Object doWork() throws Exception {
-				// Ex�cution du traitement au sein d'une transaction
-				// Alfresco
-				retryingTransactionHelper.doInTransaction(processCallBack, false, false);
-						return null;
-				}
-			}, AuthenticationUtil.getSystemUserName());
 		
+		final BatchProcessor<NodeRef> batchProcessor = new BatchProcessor<NodeRef>("DigitalSigningCertificateAlert", 
+				retryingTransactionHelper, keys, workerThreads, batchSize, applicationEventPublisher, logger, pageSize);
+		batchProcessor.process(worker, true);
+		
+		final List<NodeRef> failedKeys = new ArrayList<NodeRef>();
+		for (NodeRef keyNodeRef : keys) {
+			if (!checkedKeys.contains(keyNodeRef)) {
+				failedKeys.add(keyNodeRef);
+			}
+		}
 		if (logger.isDebugEnabled()) {
-			logger.debug("End certificate alert process.");
+			logger.debug("End certificate alert process, " + failedKeys.size() + " key(s) failed.");
 		}
+		return failedKeys;
 	}
-
+	
+	/**
+	 * @return number of keys processed by one batch of each worker thread
+	 */
+	public int getRoundSize() {
+		return workerThreads * batchSize;
+	}
+	
 	/**
-	 * Check certificate expiration for all users.
-	 */
-	private void checkCertificateAlert() {
-		final PagingRequest pagingRequest = new PagingRequest(Integer.MAX_VALUE, null);
-		final PagingResults<PersonInfo> personInfos = personService.getPeople(null, null, null, pagingRequest);
-		if (personInfos != null) {
-			final List<PersonInfo> listPersonInfos = personInfos.getPage();
-			if (listPersonInfos != null && listPersonInfos.size() > 0) {
-		        for (PersonInfo personInfo : listPersonInfos) {
-		            final NodeRef userNodeRef = personInfo.getNodeRef();
-		            final NodeRef keyNodeRef = getKeyFileForUser(userNodeRef);
-		            
-		            if (keyNodeRef != null) {
-			            final Date lastValidityKey = (Date) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYLASTVALIDITY);
-			            final String alertFrequenceKey = (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALERT);
-			            final Boolean alertAlreadySendKey = (Boolean) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYHASALERT);
-			            
-			            if (alertAlreadySendKey != null && alertAlreadySendKey == false && alertFrequenceKey != null && alertFrequenceKey.compareTo("0") != 0) {
-			            	
-			            	final int alertFrequenceKeyInt = Integer.valueOf(alertFrequenceKey);
-			            	
-			            	final Calendar keyCalendar = Calendar.getInstance();
-			            	keyCalendar.setTime(lastValidityKey);
-			            	keyCalendar.add(Calendar.MONTH, -alertFrequenceKeyInt);
-			            	
-			            	final Calendar nowCalendar = Calendar.getInstance();
-			            	
-			            	// If alert date is before current date
-			            	if (keyCalendar.compareTo(nowCalendar) < 0) {
-			            		sendMail(userNodeRef, lastValidityKey);
-			            		
-			            		nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYHASALERT, true);
-			            	}
-			            }
-		            }
-		        }
+	 * Get the alert date of the keys not alerted yet, for the keys expiring
+	 * within the longest alert period after a date.
+	 * 
+	 * @param from start of the period, usually the next time the alert dates are read again
+	 * @return the alert date by key
+	 */
+	public Map<NodeRef, Date> getAlertDates(final Date from) {
+		return AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Map<NodeRef, Date>>() {
+			public Map<NodeRef, Date> doWork() throws Exception {
+				return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Map<NodeRef, Date>>() {
+					public Map<NodeRef, Date> execute() throws Throwable {
+						final Map<NodeRef, Date> alertDates = new HashMap<NodeRef, Date>();
+						for (NodeRef keyNodeRef : getKeysToCheck(from)) {
+							final Date alertDate = getAlertDate(keyNodeRef);
+							if (alertDate != null) {
+								alertDates.put(keyNodeRef, alertDate);
+							}
+						}
+						return alertDates;
+					}
+				}, true, true);
 			}
+		});
+	}
+	
+	/**
+	 * Get the alert date of a key, in the current transaction.
+	 * 
+	 * @param keyNodeRef key NodeRef
+	 * @return the alert date, or null if the key has no alert to send
+	 */
+	public Date getAlertDate(final NodeRef keyNodeRef) {
+		if (!nodeService.exists(keyNodeRef)) {
+			return null;
 		}
+		final Date lastValidityKey = (Date) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYLASTVALIDITY);
+		final String alertFrequenceKey = (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALERT);
+		final Boolean alertAlreadySendKey = (Boolean) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYHASALERT);
+		
+		if (lastValidityKey != null && alertAlreadySendKey != null && alertAlreadySendKey == false && alertFrequenceKey != null && alertFrequenceKey.compareTo("0") != 0) {
+			final Calendar keyCalendar = Calendar.getInstance();
+			keyCalendar.setTime(lastValidityKey);
+			keyCalendar.add(Calendar.MONTH, -Integer.valueOf(alertFrequenceKey));
+			return keyCalendar.getTime();
+		}
+		return null;
 	}
 	
 	/**
-	 * Send alert mail to a user.
+	 * Search the keys not alerted yet and expiring within the longest alert
+	 * period after a date, in the current transaction.
 	 * 
-	 * @param userNodeRef user NodeRef
+	 * @param from start of the period
+	 * @return the keys, the first expiring first
+	 */
+	private List<NodeRef> getKeysToCheck(final Date from) {
+		final Calendar windowEnd = Calendar.getInstance();
+		windowEnd.setTime(from);
+		windowEnd.add(Calendar.MONTH, maxAlertMonths);
+		final String query = "ASPECT:\"dgtsgn:key\" AND =dgtsgn:keyHasAlerted:false AND dgtsgn:keyLastValidity:[MIN TO " 
+				+ ISO8601DateFormat.format(windowEnd.getTime()) + "]";
+		
+		final List<NodeRef> keys = new ArrayList<NodeRef>();
+		int skipCount = 0;
+		while (true) {
+			final SearchParameters searchParameters = new SearchParameters();
+			searchParameters.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+			searchParameters.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+			searchParameters.setQuery(query);
+			searchParameters.setQueryConsistency(QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+			searchParameters.addSort("@dgtsgn:keyLastValidity", true);
+			searchParameters.setSkipCount(skipCount);
+			searchParameters.setMaxItems(pageSize);
+			
+			ResultSet resultSet = null;
+			try {
+				resultSet = searchService.query(searchParameters);
+				final List<NodeRef> page = resultSet.getNodeRefs();
+				keys.addAll(page);
+				if (page.size() < pageSize) {
+					return keys;
+				}
+				skipCount += page.size();
+			} finally {
+				if (resultSet != null) {
+					resultSet.close();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Check certificate expiration of a key and alert its owner.
+	 * 
+	 * @param keyNodeRef key NodeRef
 	 */
-	private void sendMail(final NodeRef userNodeRef, final Date expirationDate) {
-		final Action emailAction = actionService.createAction(MailActionExecuter.NAME);
+	private void checkCertificateAlert(final NodeRef keyNodeRef) {
+		final Date alertDate = getAlertDate(keyNodeRef);
 		
+		// If alert date is before current date
+		if (alertDate != null && alertDate.before(new Date())) {
+			final NodeRef userNodeRef = getKeyOwner(keyNodeRef);
+			if (userNodeRef != null) {
+				sendMail(userNodeRef, keyNodeRef, (Date) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYLASTVALIDITY));
+				
+				nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYHASALERT, true);
+			}
+		}
+	}
+	
+	/**
+	 * Get the user of a key, only if it is his current key.
+	 * 
+	 * @param keyNodeRef key NodeRef
+	 * @return the user NodeRef, or null if not found
+	 */
+	private NodeRef getKeyOwner(final NodeRef keyNodeRef) {
+		final String owner = ownableService.getOwner(keyNodeRef);
+		if (owner == null || !personService.personExists(owner)) {
+			return null;
+		}
+		final NodeRef userNodeRef = personService.getPerson(owner, false);
+		return keyNodeRef.equals(getKeyFileForUser(userNodeRef)) ? userNodeRef : null;
+	}
+	
+	/**
+	 * Send alert mail to a user, once the transaction is committed.
+	 * 
+	 * @param userNodeRef user NodeRef
+	 * @param keyNodeRef alerted key NodeRef
+	 * @param expirationDate expiration date of the key
+	 */
+	private void sendMail(final NodeRef userNodeRef, final NodeRef keyNodeRef, final Date expirationDate) {
 		//final Locale locale = getLocaleForUser((String) nodeService.getProperty(userNodeRef, ContentModel.PROP_USERNAME));
-		final Locale locale = (Locale) nodeService.getProperty(userNodeRef, ContentModel.PROP_LOCALE);
+		Locale locale = (Locale) nodeService.getProperty(userNodeRef, ContentModel.PROP_LOCALE);
+		if (locale == null) {
+			locale = I18NUtil.getLocale();
+		}
+		final String email = (String) nodeService.getProperty(userNodeRef, ContentModel.PROP_EMAIL);
+		if (email == null || email.length() == 0) {
+			logger.warn("No email address for user " + userNodeRef + ", certificate alert not sent.");
+			return;
+		}
 		
+		final AlertMailTemplate mailTemplate = getMailTemplate(locale);
 		final Map<String, Object> model = new HashMap<String, Object>();
-	    model.put("expiration", expirationDate);
-	    String text = null;
-	    try {
-	    	text = templateService.processTemplate("freemarker", "alfresco/module/digitalSigningAlfresco/templates/keyAlert_" + locale.toString() + ".ftl", (Serializable) model, locale);
-	    } catch (TemplateException e) {
-	    	text = templateService.processTemplate("freemarker", "alfresco/module/digitalSigningAlfresco/templates/keyAlert.ftl", (Serializable) model, locale);
-	    }
-	    if (text != null) {
-			emailAction.setParameterValue(MailActionExecuter.PARAM_TEXT, text);
-			emailAction.setParameterValue(MailActionExecuter.PARAM_FROM , fromEmail);
-			emailAction.setParameterValue(MailActionExecuter.PARAM_TO , nodeService.getProperty(userNodeRef, ContentModel.PROP_EMAIL));
-			
-			final ResourceBundle bundle = ResourceBundle.getBundle(BUNDLE_FILE_NAME, locale);
-			final String mailSubject = bundle.getString("mail.subject");
-			
-			emailAction.setParameterValue(MailActionExecuter.PARAM_SUBJECT , mailSubject);
+		model.put("expiration", expirationDate);
+		final StringWriter text = new StringWriter();
+		try {
+			mailTemplate.template.process(model, text);
+		} catch (TemplateException e) {
+			logger.error(e);
+			throw new AlfrescoRuntimeException("Unable to process the certificate alert mail.", e);
+		} catch (IOException e) {
+			logger.error(e);
+			throw new AlfrescoRuntimeException("Unable to process the certificate alert mail.", e);
+		}
+		
+		final SimpleMailMessage message = new SimpleMailMessage();
+		message.setFrom(fromEmail);
+		message.setTo(email);
+		message.setSubject(mailTemplate.subject);
+		message.setText(text.toString());
+		alertMailSender.sendAfterCommit(message, keyNodeRef);
+	}
+	
+	/**
+	 * Get the compiled mail template and the subject of a locale, loaded
+	 * only the first time.
+	 * 
+	 * @param locale mail locale
+	 * @return the mail template
+	 */
+	private AlertMailTemplate getMailTemplate(final Locale locale) {
+		AlertMailTemplate mailTemplate = mailTemplates.get(locale);
+		if (mailTemplate == null) {
+			try {
+				// Localized lookup: keyAlert_<locale>.ftl, then keyAlert.ftl
+				final Template template = templateConfiguration.getTemplate(TEMPLATE_NAME, locale);
+				final String subject = ResourceBundle.getBundle(BUNDLE_FILE_NAME, locale).getString("mail.subject");
+				mailTemplate = new AlertMailTemplate(template, subject);
+				final AlertMailTemplate existing = mailTemplates.putIfAbsent(locale, mailTemplate);
+				if (existing != null) {
+					mailTemplate = existing;
+				}
+			} catch (IOException e) {
+				logger.error(e);
+				throw new AlfrescoRuntimeException("Unable to load the certificate alert mail template for locale " + locale, e);
+			}
+		}
+		return mailTemplate;
+	}
 	
-			emailAction.setExecuteAsynchronously(true);
-			actionService.executeAction(emailAction, null);
-	    }
+	/**
+	 * @return the FreeMarker configuration of the mail templates
+	 */
+	private static Configuration createTemplateConfiguration() {
+		final Configuration configuration = new Configuration();
+		configuration.setTemplateLoader(new ClassTemplateLoader(CertificateAlert.class, TEMPLATE_PATH));
+		configuration.setDefaultEncoding("UTF-8");
+		configuration.setLocalizedLookup(true);
+		return configuration;
+	}
+	
+	/**
+	 * Compiled mail template and subject of a locale.
+	 */
+	private static final class AlertMailTemplate {
+		
+		/**
+		 * Compiled template.
+		 */
+		private final Template template;
+		
+		/**
+		 * Mail subject.
+		 */
+		private final String subject;
+		
+		/**
+		 * Constructor.
+		 * 
+		 * @param template compiled template
+		 * @param subject mail subject
+		 */
+		private AlertMailTemplate(final Template template, final String subject) {
+			this.template = template;
+			this.subject = subject;
+		}
 	}
 	
 	/**
@@ -273,30 +544,7 @@ public class CertificateAlert {
 	 * @return the key file NodeRef
 	 */
 	private NodeRef getKeyFileForUser(final NodeRef userNodeRef) {
-		final NodeRef userHomeFolder = (NodeRef) nodeService.getProperty(userNodeRef, ContentModel.PROP_HOMEFOLDER);
-		if (userHomeFolder != null) {
-			final NodeRef signingFolderNodeRef = nodeService.getChildByName(userHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-			if (signingFolderNodeRef != null) {
-				final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-				if (children != null && children.size() > 0) {
-					final Iterator<ChildAssociationRef> itChildren = children.iterator();
-					while (itChildren.hasNext()) {
-						final ChildAssociationRef childAssoc = itChildren.next();
-						final NodeRef child = childAssoc.getChildRef();
-						if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-							return child;
-						}
-					}
-					return null;
-				} else {
-					return null;
-				}
-			} else {
-				return null;
-			}
-		} else {
-			return null;
-		}
+		return keyLocator.getKeyLocation(userNodeRef).getKeyNodeRef();
 	}
 	
 
@@ -322,13 +570,6 @@ public class CertificateAlert {
 		this.personService = personService;
 	}
 
-	/**
-	 * @param actionService the actionService to set
-	 */
-	public final void setActionService(ActionService actionService) {
-		this.actionService = actionService;
-	}
-
 	/**
 	 * @param fromEmail the fromEmail to set
 	 */
@@ -337,10 +578,10 @@ public class CertificateAlert {
 	}
 
 	/**
-	 * @param templateService the templateService to set
+	 * @param alertMailSender the alertMailSender to set
 	 */
-	public final void setTemplateService(TemplateService templateService) {
-		this.templateService = templateService;
+	public final void setAlertMailSender(AlertMailSender alertMailSender) {
+		this.alertMailSender = alertMailSender;
 	}
 
 	/**
@@ -356,4 +597,60 @@ public class CertificateAlert {
 	public final void setPreferenceService(PreferenceService preferenceService) {
 		this.preferenceService = preferenceService;
 	}
+
+	/**
+	 * @param searchService the searchService to set
+	 */
+	public final void setSearchService(SearchService searchService) {
+		this.searchService = searchService;
+	}
+
+	/**
+	 * @param ownableService the ownableService to set
+	 */
+	public final void setOwnableService(OwnableService ownableService) {
+		this.ownableService = ownableService;
+	}
+
+	/**
+	 * @param maxAlertMonths the maxAlertMonths to set
+	 */
+	public final void setMaxAlertMonths(int maxAlertMonths) {
+		this.maxAlertMonths = maxAlertMonths;
+	}
+
+	/**
+	 * @param applicationEventPublisher the applicationEventPublisher to set
+	 */
+	public final void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
+		this.applicationEventPublisher = applicationEventPublisher;
+	}
+
+	/**
+	 * @param pageSize the pageSize to set
+	 */
+	public final void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param workerThreads the workerThreads to set
+	 */
+	public final void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @param batchSize the batchSize to set
+	 */
+	public final void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param keyLocator the keyLocator to set
+	 */
+	public final void setKeyLocator(KeyLocator keyLocator) {
+		this.keyLocator = keyLocator;
+	}
 }
@@ -10,7 +10,7 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 
 /**
- * Certificate Alert Job class.
+ * Certificate Alert Job class, loads again the alert dates of the keys.
  * 
  * @author Emmanuel ROUX
  */
@@ -18,15 +18,15 @@ public class CertificateAlertJob implements Job {
 
 	public void execute(JobExecutionContext context) throws JobExecutionException {
 		JobDataMap jobData = context.getJobDetail().getJobDataMap();
-		// extract the content cleaner to use
-		Object certificateAlertObj = jobData.get("certificateAlert");
-		if (certificateAlertObj == null
-				|| !(certificateAlertObj instanceof CertificateAlert)) {
+		// extract the certificate alert scheduler to use
+		Object schedulerObj = jobData.get("certificateAlertScheduler");
+		if (schedulerObj == null
+				|| !(schedulerObj instanceof CertificateAlertScheduler)) {
 			throw new AlfrescoRuntimeException(
-					"CertificateAlertJob data must contain valid 'certificateAlert' reference");
+					"CertificateAlertJob data must contain valid 'certificateAlertScheduler' reference");
 		}
-		CertificateAlert certificateAlert = (CertificateAlert) certificateAlertObj;
-		certificateAlert.execute();
+		CertificateAlertScheduler scheduler = (CertificateAlertScheduler) schedulerObj;
+		scheduler.reload();
 	}
 
 }
@@ -0,0 +1,362 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.scheduledAction;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.extensions.surf.util.AbstractLifecycleBean;
+
+/**
+ * Send the certificate alerts when they are due.
+ *
+ * The alert dates are loaded in an {@link AlertTimingWheel} at startup and
+ * each time the certificate alert job runs, and updated when a key is
+ * uploaded, changed or deleted. The wheel is checked every tick, the due
+ * keys are alerted by the node holding the cluster lock, the others try again
+ * on the next tick. The keys which failed are checked again on the next tick
+ * too, and a failed load at startup is tried again until it succeeds.
+ */
+public class CertificateAlertScheduler extends AbstractLifecycleBean implements NodeServicePolicies.OnUpdatePropertiesPolicy,
+		NodeServicePolicies.BeforeDeleteNodePolicy {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(CertificateAlertScheduler.class);
+
+	/**
+	 * Cluster lock of the alerts.
+	 */
+	private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "digitalSigningCertificateAlert");
+
+	/**
+	 * Time to live of the cluster lock, in milliseconds.
+	 */
+	private static final long LOCK_TTL = 30L * 60L * 1000L;
+
+	/**
+	 * Milliseconds in a day.
+	 */
+	private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+
+	/**
+	 * Minutes before loading again the alert dates after a failed load at startup.
+	 */
+	private static final long RELOAD_RETRY_MINUTES = 5;
+
+	/**
+	 * Certificate alert process.
+	 */
+	private CertificateAlert certificateAlert;
+
+	/**
+	 * Policy component.
+	 */
+	private PolicyComponent policyComponent;
+
+	/**
+	 * Job lock service.
+	 */
+	private JobLockService jobLockService;
+
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Duration of a tick, in minutes.
+	 */
+	private long tickMinutes = 60;
+
+	/**
+	 * Maximum number of days between two loads of the alert dates.
+	 */
+	private int reloadDays = 31;
+
+	/**
+	 * Alert dates.
+	 */
+	private volatile AlertTimingWheel timingWheel;
+
+	/**
+	 * Thread checking the wheel.
+	 */
+	private ScheduledExecutorService ticker;
+
+	/**
+	 * Bind the behaviours updating the alert dates.
+	 */
+	public void init() {
+		policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, SigningModel.ASPECT_KEY, new JavaBehaviour(this, "onUpdateProperties"));
+		policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, SigningModel.ASPECT_KEY, new JavaBehaviour(this, "beforeDeleteNode"));
+	}
+
+	@Override
+	protected void onBootstrap(final ApplicationEvent event) {
+		final long tickMillis = tickMinutes * 60L * 1000L;
+		// 64 ticks, 4096 ticks and 262144 ticks levels: about 30 years with one hour ticks
+		timingWheel = new AlertTimingWheel(tickMillis, 64, 3, System.currentTimeMillis());
+
+		ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, "DigitalSigningCertificateAlert");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		// The repository still starts when the keys can't be read yet
+		loadOrRetry();
+		ticker.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				tick();
+			}
+		}, 1, tickMinutes, TimeUnit.MINUTES);
+	}
+
+	@Override
+	protected void onShutdown(final ApplicationEvent event) {
+		if (ticker != null) {
+			ticker.shutdownNow();
+		}
+	}
+
+	/**
+	 * Load the alert dates, and try again later on failure.
+	 */
+	private void loadOrRetry() {
+		try {
+			reload();
+		} catch (Throwable e) {
+			log.error("Unable to load the certificate alert dates, retried in " + RELOAD_RETRY_MINUTES + " minute(s) : " + e.getMessage(), e);
+			if (!ticker.isShutdown()) {
+				ticker.schedule(new Runnable() {
+					public void run() {
+						loadOrRetry();
+					}
+				}, RELOAD_RETRY_MINUTES, TimeUnit.MINUTES);
+			}
+		}
+	}
+
+	/**
+	 * Load again every alert date, for the keys changed on other nodes.
+	 */
+	public void reload() {
+		final AlertTimingWheel wheel = timingWheel;
+		if (wheel == null) {
+			return;
+		}
+		final Map<NodeRef, Date> alertDates = certificateAlert.getAlertDates(new Date(System.currentTimeMillis() + reloadDays * DAY_MS));
+		wheel.clear();
+		for (Map.Entry<NodeRef, Date> alertDate : alertDates.entrySet()) {
+			wheel.schedule(alertDate.getKey(), alertDate.getValue().getTime());
+		}
+		if (log.isDebugEnabled()) {
+			log.debug(wheel.size() + " certificate alert(s) scheduled.");
+		}
+	}
+
+	/**
+	 * Alert the keys which are due, one round of batches at a time, the
+	 * cluster lock being refreshed after each round.
+	 */
+	private void tick() {
+		final AlertTimingWheel wheel = timingWheel;
+		final List<NodeRef> keys = wheel.advance(System.currentTimeMillis());
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		final List<NodeRef> retryKeys = new ArrayList<NodeRef>();
+		int alerted = 0;
+		try {
+			final String lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+			try {
+				final int roundSize = Math.max(1, certificateAlert.getRoundSize());
+				while (alerted < keys.size()) {
+					final List<NodeRef> round = keys.subList(alerted, Math.min(keys.size(), alerted + roundSize));
+					try {
+						retryKeys.addAll(certificateAlert.alert(round));
+					} catch (Throwable e) {
+						log.error("Certificate alert failed : " + e.getMessage(), e);
+						retryKeys.addAll(round);
+					}
+					alerted += round.size();
+					if (alerted < keys.size()) {
+						jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+					}
+				}
+			} finally {
+				jobLockService.releaseLock(lockToken, LOCK_QNAME);
+			}
+		} catch (LockAcquisitionException e) {
+			// Another node is sending alerts, the keys it sent are flagged and not alerted again
+			if (log.isDebugEnabled()) {
+				log.debug("Certificate alerts locked by another node, " + (keys.size() - alerted) + " key(s) retried on the next tick.");
+			}
+		} catch (Throwable e) {
+			log.error("Certificate alert failed : " + e.getMessage(), e);
+		}
+
+		// The keys not alerted are checked again on the next tick
+		retryKeys.addAll(keys.subList(alerted, keys.size()));
+		if (!retryKeys.isEmpty()) {
+			if (log.isDebugEnabled()) {
+				log.debug(retryKeys.size() + " certificate alert(s) retried on the next tick.");
+			}
+			final long retryTime = System.currentTimeMillis();
+			for (NodeRef key : retryKeys) {
+				wheel.schedule(key, retryTime);
+			}
+		}
+	}
+
+	/**
+	 * Update the alert date of a key once the transaction is committed.
+	 *
+	 * @param nodeRef key node
+	 * @param before properties before
+	 * @param after properties after
+	 */
+	public void onUpdateProperties(final NodeRef nodeRef, final Map<QName, Serializable> before, final Map<QName, Serializable> after) {
+		if (isChanged(before, after, SigningModel.PROP_KEYLASTVALIDITY) || isChanged(before, after, SigningModel.PROP_KEYALERT)
+				|| isChanged(before, after, SigningModel.PROP_KEYHASALERT)) {
+			AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+				@Override
+				public void afterCommit() {
+					reschedule(nodeRef);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Forget a key once the transaction is committed.
+	 *
+	 * @param nodeRef key node
+	 */
+	public void beforeDeleteNode(final NodeRef nodeRef) {
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+			@Override
+			public void afterCommit() {
+				final AlertTimingWheel wheel = timingWheel;
+				if (wheel != null) {
+					wheel.cancel(nodeRef);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read again the alert date of a key.
+	 *
+	 * @param nodeRef key node
+	 */
+	private void reschedule(final NodeRef nodeRef) {
+		final AlertTimingWheel wheel = timingWheel;
+		if (wheel == null) {
+			return;
+		}
+		try {
+			final Date alertDate = AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Date>() {
+				public Date doWork() throws Exception {
+					return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Date>() {
+						public Date execute() throws Throwable {
+							return certificateAlert.getAlertDate(nodeRef);
+						}
+					}, true, true);
+				}
+			});
+			if (alertDate != null) {
+				wheel.schedule(nodeRef, alertDate.getTime());
+			} else {
+				wheel.cancel(nodeRef);
+			}
+		} catch (Throwable e) {
+			// Read again on the next load
+			log.warn("Unable to schedule the certificate alert of " + nodeRef + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param before properties before
+	 * @param after properties after
+	 * @param property property
+	 * @return true if the property has changed
+	 */
+	private boolean isChanged(final Map<QName, Serializable> before, final Map<QName, Serializable> after, final QName property) {
+		final Serializable beforeValue = before.get(property);
+		final Serializable afterValue = after.get(property);
+		return beforeValue == null ? afterValue != null : !beforeValue.equals(afterValue);
+	}
+
+	/**
+	 * @param certificateAlert the certificateAlert to set
+	 */
+	public final void setCertificateAlert(CertificateAlert certificateAlert) {
+		this.certificateAlert = certificateAlert;
+	}
+
+	/**
+	 * @param policyComponent the policyComponent to set
+	 */
+	public final void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param jobLockService the jobLockService to set
+	 */
+	public final void setJobLockService(JobLockService jobLockService) {
+		this.jobLockService = jobLockService;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+
+	/**
+	 * @param tickMinutes the tickMinutes to set
+	 */
+	public final void setTickMinutes(long tickMinutes) {
+		this.tickMinutes = tickMinutes;
+	}
+
+	/**
+	 * @param reloadDays the reloadDays to set
+	 */
+	public final void setReloadDays(int reloadDays) {
+		this.reloadDays = reloadDays;
+	}
+}
@@ -0,0 +1,677 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.scheduledAction;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.plugin.digitalSigning.service.KeyStoreCache;
+import org.alfresco.plugin.digitalSigning.utils.CryptUtils;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.node.encryption.MetadataEncryptor;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+
+/**
+ * Re-encrypt the stored signing keys.
+ *
+ * Each key content is decrypted with its secret and encrypted again in the
+ * current format of {@link CryptUtils}, and its secret is encrypted again
+ * with the current metadata key, so a format change or a rotation of the
+ * metadata key is applied to every key.
+ *
+ * The keys are read one page at a time, in the order of their database id,
+ * and each page is processed by a {@link BatchProcessor}, committing every
+ * batch. The database id of the last key processed and the keys which could
+ * not be re-encrypted are kept in the attribute service when a page is
+ * finished: a stopped or interrupted run resumes after that key, unaffected by
+ * the keys deleted meanwhile, and the failed keys are retried first by the
+ * next run. A run only completes, forgetting both, once every key has been
+ * re-encrypted. The number of keys processed per second is limited, so the job
+ * does not slow down the signings. Started and followed over JMX.
+ */
+public class KeyReencryption implements KeyReencryptionMBean, ApplicationEventPublisherAware {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(KeyReencryption.class);
+
+	/**
+	 * Keys of the database id of the last key processed and of the failed
+	 * keys in the attribute service.
+	 */
+	private static final String ATTRIBUTE_KEY = "digitalSigning.keyReencryption";
+	private static final String ATTRIBUTE_RESUME_DBID = "resumeDbId";
+	private static final String ATTRIBUTE_FAILED_KEYS = "failedKeys";
+
+	/**
+	 * Cluster lock of the job.
+	 */
+	private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "digitalSigningKeyReencryption");
+
+	/**
+	 * Time to live of the cluster lock, in milliseconds, refreshed every page.
+	 */
+	private static final long LOCK_TTL = 30L * 60L * 1000L;
+
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Content service.
+	 */
+	private ContentService contentService;
+
+	/**
+	 * Search service.
+	 */
+	private SearchService searchService;
+
+	/**
+	 * Attribute service.
+	 */
+	private AttributeService attributeService;
+
+	/**
+	 * Behaviour filter.
+	 */
+	private BehaviourFilter behaviourFilter;
+
+	/**
+	 * Metadata encryptor.
+	 */
+	private MetadataEncryptor metadataEncryptor;
+
+	/**
+	 * Job lock service.
+	 */
+	private JobLockService jobLockService;
+
+	/**
+	 * Unlocked keys cache.
+	 */
+	private KeyStoreCache keyStoreCache;
+
+	/**
+	 * Application event publisher.
+	 */
+	private ApplicationEventPublisher applicationEventPublisher;
+
+	/**
+	 * Number of keys read at a time.
+	 */
+	private int pageSize = 500;
+
+	/**
+	 * Number of threads processing a page.
+	 */
+	private int workerThreads = 2;
+
+	/**
+	 * Number of keys processed in a transaction.
+	 */
+	private int batchSize = 20;
+
+	/**
+	 * Maximum number of keys processed per second, 0 for no limit.
+	 */
+	private int maxKeysPerSecond = 20;
+
+	/**
+	 * Time the next key may be processed, in nanoseconds.
+	 */
+	private long nextKeyTime;
+
+	/**
+	 * Thread running the job.
+	 */
+	private Thread jobThread;
+
+	/**
+	 * Stop requested.
+	 */
+	private volatile boolean stopRequested;
+
+	/**
+	 * Progress of the last run.
+	 */
+	private volatile Date startDate;
+	private volatile Date endDate;
+	private volatile long totalKeys;
+	private volatile long processedKeys;
+	private volatile long failedKeys;
+	private volatile String lastError;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean start() {
+		return start(false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public boolean restart() {
+		return start(true);
+	}
+
+	/**
+	 * Start the job in the background.
+	 *
+	 * @param fromFirstKey true to ignore where an interrupted run stopped
+	 * @return false if the job is already running
+	 */
+	private synchronized boolean start(final boolean fromFirstKey) {
+		if (isRunning()) {
+			return false;
+		}
+		stopRequested = false;
+		jobThread = new Thread(new Runnable() {
+			public void run() {
+				AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+					public Void doWork() throws Exception {
+						execute(fromFirstKey);
+						return null;
+					}
+				});
+			}
+		}, "DigitalSigningKeyReencryption");
+		jobThread.setDaemon(true);
+		jobThread.start();
+		return true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public synchronized boolean isRunning() {
+		return jobThread != null && jobThread.isAlive();
+	}
+
+	/**
+	 * Run the job, holding the cluster lock.
+	 *
+	 * @param fromFirstKey true to ignore where an interrupted run stopped
+	 */
+	private void execute(final boolean fromFirstKey) {
+		startDate = new Date();
+		endDate = null;
+		totalKeys = 0;
+		processedKeys = 0;
+		failedKeys = 0;
+		lastError = null;
+
+		String lockToken = null;
+		try {
+			lockToken = jobLockService.getLock(LOCK_QNAME, LOCK_TTL);
+			if (fromFirstKey) {
+				setResumePoint(null, Collections.<NodeRef>emptySet());
+			}
+			reencryptKeys(lockToken);
+		} catch (LockAcquisitionException e) {
+			lastError = "Key re-encryption already running on another node.";
+			log.warn(lastError);
+		} catch (Throwable e) {
+			lastError = e.getMessage();
+			log.error("Key re-encryption failed : " + e.getMessage(), e);
+		} finally {
+			if (lockToken != null) {
+				jobLockService.releaseLock(lockToken, LOCK_QNAME);
+			}
+			endDate = new Date();
+		}
+	}
+
+	/**
+	 * Re-encrypt the failed keys of the previous runs, then the keys one page
+	 * at a time.
+	 *
+	 * @param lockToken cluster lock token
+	 */
+	private void reencryptKeys(final String lockToken) {
+		Long lastDbId = getResumeDbId();
+		final Set<NodeRef> failed = Collections.synchronizedSet(new LinkedHashSet<NodeRef>());
+		final List<NodeRef> previouslyFailed = getFailedKeys();
+		if (lastDbId != null) {
+			log.info("Key re-encryption resumed after key " + lastDbId + ", " + previouslyFailed.size() + " failed key(s) retried.");
+		}
+
+		final BatchProcessWorkerAdaptor<NodeRef> worker = new BatchProcessWorkerAdaptor<NodeRef>() {
+			@Override
+			public String getIdentifier(final NodeRef keyNodeRef) {
+				return keyNodeRef.toString();
+			}
+
+			@Override
+			public void beforeProcess() throws Throwable {
+				AuthenticationUtil.setRunAsUserSystem();
+			}
+
+			@Override
+			public void afterProcess() throws Throwable {
+				AuthenticationUtil.clearCurrentSecurityContext();
+			}
+
+			public void process(final NodeRef keyNodeRef) throws Throwable {
+				throttle();
+				try {
+					reencrypt(keyNodeRef);
+				} catch (Throwable e) {
+					failed.add(keyNodeRef);
+					throw e;
+				}
+				// Failed in a batch, then re-encrypted on its own by the retry of the batch
+				AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+					@Override
+					public void afterCommit() {
+						failed.remove(keyNodeRef);
+					}
+				});
+			}
+		};
+
+		if (!previouslyFailed.isEmpty()) {
+			processPage(previouslyFailed, worker);
+			setResumePoint(lastDbId, failed);
+		}
+
+		while (!stopRequested) {
+			final List<NodeRef> page = getKeysPage(lastDbId);
+			if (!page.isEmpty()) {
+				processPage(page, worker);
+				lastDbId = getDbId(page);
+			}
+
+			if (page.size() < pageSize) {
+				if (failed.isEmpty()) {
+					setResumePoint(null, failed);
+					log.info("Key re-encryption done: " + processedKeys + " key(s) processed.");
+				} else {
+					// Not done, the next run retries the failed keys and then only looks at the new keys
+					setResumePoint(lastDbId, failed);
+					log.error("Key re-encryption not done: " + processedKeys + " key(s) processed, " + failed.size() + " key(s) to retry : " + failed);
+				}
+				return;
+			}
+			setResumePoint(lastDbId, failed);
+			jobLockService.refreshLock(lockToken, LOCK_QNAME, LOCK_TTL);
+		}
+		log.info("Key re-encryption stopped after key " + lastDbId + ", " + failed.size() + " key(s) to retry.");
+	}
+
+	/**
+	 * Re-encrypt a page of keys.
+	 *
+	 * @param page keys to re-encrypt
+	 * @param worker worker re-encrypting a key
+	 */
+	private void processPage(final List<NodeRef> page, final BatchProcessWorkerAdaptor<NodeRef> worker) {
+		final BatchProcessor<NodeRef> batchProcessor = new BatchProcessor<NodeRef>("DigitalSigningKeyReencryption",
+				retryingTransactionHelper, page, workerThreads, batchSize, applicationEventPublisher, log, pageSize);
+		batchProcessor.process(worker, true);
+		processedKeys += page.size();
+		failedKeys += batchProcessor.getTotalErrorsLong();
+		if (batchProcessor.getLastError() != null) {
+			lastError = batchProcessor.getLastError();
+		}
+	}
+
+	/**
+	 * Read a page of keys, in the order of their database id.
+	 *
+	 * @param afterDbId database id of the last key processed, null for the first page
+	 * @return the keys of the page
+	 */
+	private List<NodeRef> getKeysPage(final Long afterDbId) {
+		return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<List<NodeRef>>() {
+			public List<NodeRef> execute() throws Throwable {
+				final SearchParameters searchParameters = new SearchParameters();
+				searchParameters.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+				searchParameters.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+				if (afterDbId != null) {
+					searchParameters.setQuery("ASPECT:\"dgtsgn:key\" AND sys:node-dbid:[" + (afterDbId + 1) + " TO MAX]");
+				} else {
+					searchParameters.setQuery("ASPECT:\"dgtsgn:key\"");
+				}
+				searchParameters.setQueryConsistency(QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+				searchParameters.addSort("@sys:node-dbid", true);
+				searchParameters.setMaxItems(pageSize);
+
+				ResultSet resultSet = null;
+				try {
+					resultSet = searchService.query(searchParameters);
+					// Keys left to process, found by the first page of the run
+					if (totalKeys == 0) {
+						totalKeys = resultSet.getNumberFound();
+					}
+					return resultSet.getNodeRefs();
+				} finally {
+					if (resultSet != null) {
+						resultSet.close();
+					}
+				}
+			}
+		}, true, true);
+	}
+
+	/**
+	 * @param page keys of a page
+	 * @return database id of the last key of the page, deleted or not
+	 */
+	private Long getDbId(final List<NodeRef> page) {
+		return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Long>() {
+			public Long execute() throws Throwable {
+				return nodeService.getNodeStatus(page.get(page.size() - 1)).getDbId();
+			}
+		}, true, true);
+	}
+
+	/**
+	 * Re-encrypt the content and the secret of a key.
+	 *
+	 * @param keyNodeRef key NodeRef
+	 * @throws Throwable error during re-encryption
+	 */
+	private void reencrypt(final NodeRef keyNodeRef) throws Throwable {
+		if (!nodeService.exists(keyNodeRef)) {
+			return;
+		}
+		final Serializable encryptedSecret = nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYCRYPTSECRET);
+		if (encryptedSecret == null) {
+			return;
+		}
+		final String secret = metadataEncryptor.decrypt(SigningModel.PROP_KEYCRYPTSECRET, encryptedSecret).toString();
+
+		behaviourFilter.disableBehaviour(keyNodeRef, ContentModel.ASPECT_AUDITABLE);
+		behaviourFilter.disableBehaviour(keyNodeRef, ContentModel.ASPECT_VERSIONABLE);
+		try {
+			final ContentReader reader = contentService.getReader(keyNodeRef, ContentModel.PROP_CONTENT);
+			if (reader != null && reader.exists()) {
+				final ContentWriter writer = contentService.getWriter(keyNodeRef, ContentModel.PROP_CONTENT, true);
+				writer.setMimetype(reader.getMimetype());
+				writer.setEncoding(reader.getEncoding());
+				writer.putContent(CryptUtils.encrypt(secret, CryptUtils.decrypt(secret, reader.getContentInputStream())));
+			}
+			nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYCRYPTSECRET, metadataEncryptor.encrypt(SigningModel.PROP_KEYCRYPTSECRET, secret));
+		} finally {
+			behaviourFilter.enableBehaviour(keyNodeRef, ContentModel.ASPECT_VERSIONABLE);
+			behaviourFilter.enableBehaviour(keyNodeRef, ContentModel.ASPECT_AUDITABLE);
+		}
+
+		// The unlocked key of the previous content is not used any more
+		if (keyStoreCache != null) {
+			keyStoreCache.invalidate(keyNodeRef);
+		}
+	}
+
+	/**
+	 * Wait until the next key may be processed.
+	 *
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	private void throttle() throws InterruptedException {
+		if (maxKeysPerSecond <= 0) {
+			return;
+		}
+		long wait;
+		synchronized (this) {
+			final long now = System.nanoTime();
+			if (nextKeyTime - now < 0) {
+				nextKeyTime = now;
+			}
+			wait = nextKeyTime - now;
+			nextKeyTime += TimeUnit.SECONDS.toNanos(1) / maxKeysPerSecond;
+		}
+		if (wait > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * @return database id of the last key processed by an interrupted run, null if none
+	 */
+	private Long getResumeDbId() {
+		return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Long>() {
+			public Long execute() throws Throwable {
+				return (Long) attributeService.getAttribute(ATTRIBUTE_KEY, ATTRIBUTE_RESUME_DBID);
+			}
+		}, true, true);
+	}
+
+	/**
+	 * @return keys the previous runs were unable to re-encrypt
+	 */
+	private List<NodeRef> getFailedKeys() {
+		return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<List<NodeRef>>() {
+			@SuppressWarnings("unchecked")
+			public List<NodeRef> execute() throws Throwable {
+				final List<NodeRef> failed = new ArrayList<NodeRef>();
+				final List<String> failedKeys = (List<String>) attributeService.getAttribute(ATTRIBUTE_KEY, ATTRIBUTE_FAILED_KEYS);
+				if (failedKeys != null) {
+					for (String failedKey : failedKeys) {
+						failed.add(new NodeRef(failedKey));
+					}
+				}
+				return failed;
+			}
+		}, true, true);
+	}
+
+	/**
+	 * @param lastDbId database id of the last key processed, null when the run is complete
+	 * @param failed keys to retry on the next run
+	 */
+	private void setResumePoint(final Long lastDbId, final Set<NodeRef> failed) {
+		final ArrayList<String> failedKeys = new ArrayList<String>();
+		synchronized (failed) {
+			for (NodeRef failedKey : failed) {
+				failedKeys.add(failedKey.toString());
+			}
+		}
+		retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+			public Void execute() throws Throwable {
+				if (lastDbId != null) {
+					attributeService.setAttribute(lastDbId, ATTRIBUTE_KEY, ATTRIBUTE_RESUME_DBID);
+				} else {
+					attributeService.removeAttribute(ATTRIBUTE_KEY, ATTRIBUTE_RESUME_DBID);
+				}
+				if (!failedKeys.isEmpty()) {
+					attributeService.setAttribute(failedKeys, ATTRIBUTE_KEY, ATTRIBUTE_FAILED_KEYS);
+				} else {
+					attributeService.removeAttribute(ATTRIBUTE_KEY, ATTRIBUTE_FAILED_KEYS);
+				}
+				return null;
+			}
+		}, false, true);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Date getStartDate() {
+		return startDate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public Date getEndDate() {
+		return endDate;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getTotalKeys() {
+		return totalKeys;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getProcessedKeys() {
+		return processedKeys;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long getFailedKeys() {
+		return failedKeys;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public String getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param contentService the contentService to set
+	 */
+	public final void setContentService(ContentService contentService) {
+		this.contentService = contentService;
+	}
+
+	/**
+	 * @param searchService the searchService to set
+	 */
+	public final void setSearchService(SearchService searchService) {
+		this.searchService = searchService;
+	}
+
+	/**
+	 * @param attributeService the attributeService to set
+	 */
+	public final void setAttributeService(AttributeService attributeService) {
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * @param behaviourFilter the behaviourFilter to set
+	 */
+	public final void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+		this.behaviourFilter = behaviourFilter;
+	}
+
+	/**
+	 * @param metadataEncryptor the metadataEncryptor to set
+	 */
+	public final void setMetadataEncryptor(MetadataEncryptor metadataEncryptor) {
+		this.metadataEncryptor = metadataEncryptor;
+	}
+
+	/**
+	 * @param jobLockService the jobLockService to set
+	 */
+	public final void setJobLockService(JobLockService jobLockService) {
+		this.jobLockService = jobLockService;
+	}
+
+	/**
+	 * @param keyStoreCache the keyStoreCache to set
+	 */
+	public final void setKeyStoreCache(KeyStoreCache keyStoreCache) {
+		this.keyStoreCache = keyStoreCache;
+	}
+
+	/**
+	 * @param applicationEventPublisher the applicationEventPublisher to set
+	 */
+	public final void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher) {
+		this.applicationEventPublisher = applicationEventPublisher;
+	}
+
+	/**
+	 * @param pageSize the pageSize to set
+	 */
+	public final void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param workerThreads the workerThreads to set
+	 */
+	public final void setWorkerThreads(int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	/**
+	 * @param batchSize the batchSize to set
+	 */
+	public final void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param maxKeysPerSecond the maxKeysPerSecond to set
+	 */
+	public final void setMaxKeysPerSecond(int maxKeysPerSecond) {
+		this.maxKeysPerSecond = maxKeysPerSecond;
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.scheduledAction;
+
+import java.util.Date;
+
+/**
+ * Management interface of the key re-encryption job.
+ */
+public interface KeyReencryptionMBean {
+
+	/**
+	 * Start the job in the background, retrying the keys the previous runs
+	 * were unable to re-encrypt, then after the last key processed by an
+	 * interrupted run.
+	 *
+	 * @return false if the job is already running
+	 */
+	boolean start();
+
+	/**
+	 * Start the job in the background, from the first key, forgetting the
+	 * failed keys of the previous runs.
+	 *
+	 * @return false if the job is already running
+	 */
+	boolean restart();
+
+	/**
+	 * Stop the job once the current page is processed.
+	 */
+	void stop();
+
+	/**
+	 * @return true if the job is running on this node
+	 */
+	boolean isRunning();
+
+	/**
+	 * @return start date of the last run
+	 */
+	Date getStartDate();
+
+	/**
+	 * @return end date of the last run, null while running
+	 */
+	Date getEndDate();
+
+	/**
+	 * @return number of keys found by the last run, after the last key processed by the run it resumed
+	 */
+	long getTotalKeys();
+
+	/**
+	 * @return number of keys processed by the last run, retried keys included
+	 */
+	long getProcessedKeys();
+
+	/**
+	 * @return number of keys the last run was unable to re-encrypt
+	 */
+	long getFailedKeys();
+
+	/**
+	 * @return last error of the last run
+	 */
+	String getLastError();
+}
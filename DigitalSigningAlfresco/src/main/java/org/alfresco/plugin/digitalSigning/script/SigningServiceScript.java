@@ -5,21 +5,25 @@ package org.alfresco.plugin.digitalSigning.script;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 
 import org.alfresco.error.AlfrescoRuntimeException;
-import org.alfresco.model.ContentModel;
 import org.alfresco.plugin.digitalSigning.dto.DigitalSigningDTO;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
+import org.alfresco.plugin.digitalSigning.dto.SignedDocumentsPageDTO;
+import org.alfresco.plugin.digitalSigning.dto.SigningJobDTO;
+import org.alfresco.plugin.digitalSigning.dto.SigningResultDTO;
 import org.alfresco.plugin.digitalSigning.dto.VerifyResultDTO;
 import org.alfresco.plugin.digitalSigning.dto.VerifyingDTO;
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
-import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.plugin.digitalSigning.service.KeyLocator;
+import org.alfresco.plugin.digitalSigning.service.SignedDocumentSearchService;
+import org.alfresco.plugin.digitalSigning.service.SigningJobService;
 import org.alfresco.plugin.digitalSigning.service.SigningService;
 import org.alfresco.plugin.digitalSigning.utils.SigningUtils;
 import org.alfresco.repo.jscript.BaseScopableProcessorExtension;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.cmr.security.AuthenticationService;
@@ -64,12 +68,109 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 	 */
 	private NodeService nodeService;
 	
+	/**
+	 * Signing jobs service.
+	 */
+	private SigningJobService signingJobService;
+	
+	/**
+	 * Key locator.
+	 */
+	private KeyLocator keyLocator;
+	
+	/**
+	 * Signed documents search service.
+	 */
+	private SignedDocumentSearchService signedDocumentSearchService;
+	
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+	
 	/**
 	 * Sign a document.
 	 * 
+	 * Called without transaction by the sign web script, the parameters are
+	 * then read in a read-only transaction and the signing service only
+	 * retries the storage of the signed documents.
+	 * 
+	 * @param parameters sign parameters
+	 * @return signing result of each document
+	 */
+	public Scriptable sign(final NativeObject parameters) {
+		final DigitalSigningDTO signingDTO = retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<DigitalSigningDTO>() {
+			public DigitalSigningDTO execute() throws Throwable {
+				return getSigningDTO(parameters);
+			}
+		}, true, false);
+		final List<SigningResultDTO> results = digitalSigningService.sign(signingDTO);
+		
+		return Context.getCurrentContext().newArray(getScope(), results.toArray());
+	}
+	
+	/**
+	 * Submit an asynchronous signing job. A job always signs each document on
+	 * its own, partialSuccess can't be false.
+	 * 
 	 * @param parameters sign parameters
+	 * @return the job id
 	 */
-	public void sign(final NativeObject parameters) {
+	public String submit(final NativeObject parameters) {
+		if (Boolean.FALSE.equals(parameters.get("partialSuccess", null))) {
+			log.error("A signing job always signs each document on its own, partialSuccess can't be false.");
+			throw new AlfrescoRuntimeException("A signing job always signs each document on its own, partialSuccess can't be false.");
+		}
+		return signingJobService.submit(getSigningDTO(parameters));
+	}
+	
+	/**
+	 * Get an asynchronous signing job of the current user.
+	 * 
+	 * @param jobId job id
+	 * @return the job, or null if unknown
+	 */
+	public SigningJobDTO getJob(final String jobId) {
+		return signingJobService.getJob(jobId);
+	}
+	
+	/**
+	 * Search a page of signed documents.
+	 * 
+	 * @param parameters search parameters : filterPerson, filterDate, siteId, skipCount and maxItems
+	 * @return the page of signed documents
+	 */
+	public SignedDocumentsPageDTO searchSignedDocuments(final NativeObject parameters) {
+		return signedDocumentSearchService.search(authenticationService.getCurrentUserName(),
+				getString(parameters, "filterPerson"), getString(parameters, "filterDate"), getString(parameters, "siteId"),
+				getInteger(getString(parameters, "skipCount")), getInteger(getString(parameters, "maxItems")));
+	}
+	
+	/**
+	 * Get a string parameter.
+	 * 
+	 * @param parameters script parameters
+	 * @param name parameter name
+	 * @return the parameter value, or null if it is not given
+	 */
+	private String getString(final NativeObject parameters, final String name) {
+		final Object value = parameters.get(name, null);
+		if (value instanceof String || value instanceof ConsString || value instanceof Number) {
+			return value.toString();
+		}
+		if (value instanceof NativeJavaObject) {
+			return ((NativeJavaObject) value).unwrap().toString();
+		}
+		return null;
+	}
+	
+	/**
+	 * Build and validate the signing informations from the script parameters.
+	 * 
+	 * @param parameters sign parameters
+	 * @return signing informations
+	 */
+	private DigitalSigningDTO getSigningDTO(final NativeObject parameters) {
 		String privateKeyStr = null;
 		if (parameters.get("keyFile", null) instanceof String) {
 			privateKeyStr = (String) parameters.get("keyFile", null);
@@ -92,8 +193,13 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 		if (parameters.get("destination", null) instanceof String) {
 			destinationFolderStr = (String) parameters.get("destination", null);
 		}
+		boolean partialSuccess = false;
+		if (parameters.get("partialSuccess", null) instanceof Boolean) {
+			partialSuccess = (Boolean) parameters.get("partialSuccess", null);
+		}
 				
 		final DigitalSigningDTO signingDTO = new DigitalSigningDTO();
+		signingDTO.setPartialSuccess(partialSuccess);
 		
 		if (privateKeyStr != null) {
 			try {
@@ -108,32 +214,11 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 		} else {
 			// Get current user key
 			final String currentUser = authenticationService.getCurrentUserName();
-			final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-			if (currentUserNodeRef != null) {
-				final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-				if (currentUserHomeFolder != null) {
-					final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-					if (signingFolderNodeRef != null) {
-						final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-						if (children != null && children.size() > 0) {
-							final Iterator<ChildAssociationRef> itChildren = children.iterator();
-							boolean foundKey = false;
-							while (itChildren.hasNext() && !foundKey) {
-								final ChildAssociationRef childAssoc = itChildren.next();
-								final NodeRef child = childAssoc.getChildRef();
-								if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-									signingDTO.setKeyFile(child);
-									foundKey = true;
-								}
-							}
-							if (!foundKey) {
-								log.error("No key file uploaded for user " + currentUser + ".");
-								throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
-							}
-						} else {
-							log.error("No key file uploaded for user " + currentUser + ".");
-							throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
-						}
+			final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+			if (keyLocation != null) {
+				if (keyLocation.getHomeFolder() != null) {
+					if (keyLocation.getKeyNodeRef() != null) {
+						signingDTO.setKeyFile(keyLocation.getKeyNodeRef());
 					} else {
 						log.error("No key file uploaded for user " + currentUser + ".");
 						throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
@@ -193,7 +278,7 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 		// Validate DTO
 		SigningUtils.validateSignInfo(signingDTO);
 		
-		digitalSigningService.sign(signingDTO);
+		return signingDTO;
 	}
 	
 	/**
@@ -218,7 +303,9 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 			fileToVerifyStr = (String) parameters.get("document", null);
 		}
 		
-		if (privateKeyStr != null) {
+		if (keyPassword == null) {
+			// Without password, verify against the trust store without key
+		} else if (privateKeyStr != null) {
 			try {
 				final NodeRef privateKey = new NodeRef(privateKeyStr);
 				if (privateKey != null) {
@@ -231,32 +318,11 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 		} else {
 			// Get current user key
 			final String currentUser = authenticationService.getCurrentUserName();
-			final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-			if (currentUserNodeRef != null) {
-				final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-				if (currentUserHomeFolder != null) {
-					final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-					if (signingFolderNodeRef != null) {
-						final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-						if (children != null && children.size() > 0) {
-							final Iterator<ChildAssociationRef> itChildren = children.iterator();
-							boolean foundKey = false;
-							while (itChildren.hasNext() && !foundKey) {
-								final ChildAssociationRef childAssoc = itChildren.next();
-								final NodeRef child = childAssoc.getChildRef();
-								if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-									verifyingDTO.setKeyFile(child);
-									foundKey = true;
-								}
-							}
-							if (!foundKey) {
-								log.error("No key file uploaded for user " + currentUser + ".");
-								throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
-							}
-						} else {
-							log.error("No key file uploaded for user " + currentUser + ".");
-							throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
-						}
+			final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+			if (keyLocation != null) {
+				if (keyLocation.getHomeFolder() != null) {
+					if (keyLocation.getKeyNodeRef() != null) {
+						verifyingDTO.setKeyFile(keyLocation.getKeyNodeRef());
 					} else {
 						log.error("No key file uploaded for user " + currentUser + ".");
 						throw new AlfrescoRuntimeException("No key file uploaded for user " + currentUser + ".");
@@ -269,9 +335,6 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 		}
 		if (keyPassword != null) {
 			verifyingDTO.setKeyPassword(keyPassword);
-		} else {
-			log.error("Insira o pin da Assinatura Digital.");
-			throw new AlfrescoRuntimeException("Insira o pin da Assinatura Digital.");
 		}
 		if (fileToVerifyStr != null) {
 			try {
@@ -318,6 +381,14 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 	}
 
 
+	/**
+	 * @param signingJobService the signingJobService to set
+	 */
+	public final void setSigningJobService(SigningJobService signingJobService) {
+		this.signingJobService = signingJobService;
+	}
+
+
 	/**
 	 * @param authenticationService the authenticationService to set
 	 */
@@ -341,5 +412,27 @@ public class SigningServiceScript extends BaseScopableProcessorExtension {
 	public final void setNodeService(NodeService nodeService) {
 		this.nodeService = nodeService;
 	}
+
+	/**
+	 * @param keyLocator the keyLocator to set
+	 */
+	public final void setKeyLocator(KeyLocator keyLocator) {
+		this.keyLocator = keyLocator;
+	}
+
+	/**
+	 * @param signedDocumentSearchService the signedDocumentSearchService to set
+	 */
+	public final void setSignedDocumentSearchService(SignedDocumentSearchService signedDocumentSearchService) {
+		this.signedDocumentSearchService = signedDocumentSearchService;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
 	
 }
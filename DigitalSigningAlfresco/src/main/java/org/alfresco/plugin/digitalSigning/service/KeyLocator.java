@@ -0,0 +1,245 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
+import org.alfresco.plugin.digitalSigning.model.SigningConstants;
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.repo.cache.SimpleCache;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Find the key and image of a user.
+ *
+ * The location is cached by home folder in a transactional cache shared by
+ * the cluster. It is removed from the cache when a key or an image of the
+ * home folder is added, updated, moved or deleted, so it is never read from
+ * the signing folder again until then. The signing folder itself is looked
+ * up by name on each hit: a cached location is read again when the signing
+ * folder has been created, renamed, moved or deleted since.
+ */
+public class KeyLocator implements NodeServicePolicies.OnAddAspectPolicy, NodeServicePolicies.OnRemoveAspectPolicy,
+		NodeServicePolicies.OnUpdatePropertiesPolicy, NodeServicePolicies.BeforeDeleteNodePolicy, NodeServicePolicies.OnMoveNodePolicy {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(KeyLocator.class);
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Person service.
+	 */
+	private PersonService personService;
+
+	/**
+	 * Policy component.
+	 */
+	private PolicyComponent policyComponent;
+
+	/**
+	 * Key locations, by home folder.
+	 */
+	private SimpleCache<NodeRef, KeyLocationDTO> keyLocationCache;
+
+	/**
+	 * Bind the behaviours invalidating the cache.
+	 */
+	public void init() {
+		for (QName aspect : new QName[] {SigningModel.ASPECT_KEY, SigningModel.ASPECT_IMAGE}) {
+			policyComponent.bindClassBehaviour(NodeServicePolicies.OnAddAspectPolicy.QNAME, aspect, new JavaBehaviour(this, "onAddAspect"));
+			policyComponent.bindClassBehaviour(NodeServicePolicies.OnRemoveAspectPolicy.QNAME, aspect, new JavaBehaviour(this, "onRemoveAspect"));
+			policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, aspect, new JavaBehaviour(this, "onUpdateProperties"));
+			policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, aspect, new JavaBehaviour(this, "beforeDeleteNode"));
+			policyComponent.bindClassBehaviour(NodeServicePolicies.OnMoveNodePolicy.QNAME, aspect, new JavaBehaviour(this, "onMoveNode"));
+		}
+	}
+
+	/**
+	 * Get the key location of a user.
+	 *
+	 * @param userName user name
+	 * @return the key location, or null if the user doesn't exist
+	 */
+	public KeyLocationDTO getKeyLocation(final String userName) {
+		final NodeRef userNodeRef = personService.getPerson(userName);
+		if (userNodeRef == null) {
+			return null;
+		}
+		return getKeyLocation(userNodeRef);
+	}
+
+	/**
+	 * Get the key location of a user.
+	 *
+	 * @param userNodeRef user NodeRef
+	 * @return the key location
+	 */
+	public KeyLocationDTO getKeyLocation(final NodeRef userNodeRef) {
+		final NodeRef homeFolder = (NodeRef) nodeService.getProperty(userNodeRef, ContentModel.PROP_HOMEFOLDER);
+		if (homeFolder == null) {
+			return new KeyLocationDTO();
+		}
+
+		final NodeRef signingFolderNodeRef = nodeService.getChildByName(homeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
+		KeyLocationDTO keyLocation = keyLocationCache.get(homeFolder);
+		if (keyLocation == null || !isSameFolder(signingFolderNodeRef, keyLocation.getSigningFolder())) {
+			keyLocation = findKeyLocation(homeFolder, signingFolderNodeRef);
+			keyLocationCache.put(homeFolder, keyLocation);
+		}
+		return keyLocation;
+	}
+
+	/**
+	 * @param signingFolder current signing folder, null if none
+	 * @param cachedSigningFolder signing folder of the cached location, null if none
+	 * @return true if the signing folder is still the one of the cached location
+	 */
+	private boolean isSameFolder(final NodeRef signingFolder, final NodeRef cachedSigningFolder) {
+		return signingFolder == null ? cachedSigningFolder == null : signingFolder.equals(cachedSigningFolder);
+	}
+
+	/**
+	 * Read the key location in the signing folder.
+	 *
+	 * @param homeFolder user home folder
+	 * @param signingFolderNodeRef signing folder of the home folder, null if none
+	 * @return the key location
+	 */
+	private KeyLocationDTO findKeyLocation(final NodeRef homeFolder, final NodeRef signingFolderNodeRef) {
+		final KeyLocationDTO keyLocation = new KeyLocationDTO();
+		keyLocation.setHomeFolder(homeFolder);
+
+		if (signingFolderNodeRef != null) {
+			keyLocation.setSigningFolder(signingFolderNodeRef);
+
+			final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
+			for (ChildAssociationRef childAssoc : children) {
+				final NodeRef child = childAssoc.getChildRef();
+				if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
+					keyLocation.setKeyNodeRef(child);
+					keyLocation.setAlias((String) nodeService.getProperty(child, SigningModel.PROP_KEYALIAS));
+					keyLocation.setFirstDayValidity((Date) nodeService.getProperty(child, SigningModel.PROP_KEYFIRSTVALIDITY));
+					keyLocation.setLastDayValidity((Date) nodeService.getProperty(child, SigningModel.PROP_KEYLASTVALIDITY));
+				}
+				if (nodeService.hasAspect(child, SigningModel.ASPECT_IMAGE)) {
+					keyLocation.setImageNodeRef(child);
+				}
+			}
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Key location read for home folder " + homeFolder + ".");
+		}
+		return keyLocation;
+	}
+
+	/**
+	 * Remove from the cache the key location of the home folder containing a
+	 * key or image.
+	 *
+	 * @param signingFolder parent of the key or image
+	 */
+	private void invalidate(final NodeRef signingFolder) {
+		if (signingFolder == null || !nodeService.exists(signingFolder)) {
+			return;
+		}
+		final ChildAssociationRef homeFolderAssoc = nodeService.getPrimaryParent(signingFolder);
+		if (homeFolderAssoc != null && homeFolderAssoc.getParentRef() != null) {
+			keyLocationCache.remove(homeFolderAssoc.getParentRef());
+		}
+	}
+
+	/**
+	 * @param nodeRef key or image
+	 */
+	private void invalidateNode(final NodeRef nodeRef) {
+		if (nodeService.exists(nodeRef)) {
+			invalidate(nodeService.getPrimaryParent(nodeRef).getParentRef());
+		}
+	}
+
+	/**
+	 * @see org.alfresco.repo.node.NodeServicePolicies.OnAddAspectPolicy#onAddAspect(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.service.namespace.QName)
+	 */
+	public void onAddAspect(final NodeRef nodeRef, final QName aspectTypeQName) {
+		invalidateNode(nodeRef);
+	}
+
+	/**
+	 * @see org.alfresco.repo.node.NodeServicePolicies.OnRemoveAspectPolicy#onRemoveAspect(org.alfresco.service.cmr.repository.NodeRef, org.alfresco.service.namespace.QName)
+	 */
+	public void onRemoveAspect(final NodeRef nodeRef, final QName aspectTypeQName) {
+		invalidateNode(nodeRef);
+	}
+
+	/**
+	 * @see org.alfresco.repo.node.NodeServicePolicies.OnUpdatePropertiesPolicy#onUpdateProperties(org.alfresco.service.cmr.repository.NodeRef, java.util.Map, java.util.Map)
+	 */
+	public void onUpdateProperties(final NodeRef nodeRef, final Map<QName, Serializable> before, final Map<QName, Serializable> after) {
+		invalidateNode(nodeRef);
+	}
+
+	/**
+	 * @see org.alfresco.repo.node.NodeServicePolicies.BeforeDeleteNodePolicy#beforeDeleteNode(org.alfresco.service.cmr.repository.NodeRef)
+	 */
+	public void beforeDeleteNode(final NodeRef nodeRef) {
+		invalidateNode(nodeRef);
+	}
+
+	/**
+	 * @see org.alfresco.repo.node.NodeServicePolicies.OnMoveNodePolicy#onMoveNode(org.alfresco.service.cmr.repository.ChildAssociationRef, org.alfresco.service.cmr.repository.ChildAssociationRef)
+	 */
+	public void onMoveNode(final ChildAssociationRef oldChildAssocRef, final ChildAssociationRef newChildAssocRef) {
+		invalidate(oldChildAssocRef.getParentRef());
+		invalidate(newChildAssocRef.getParentRef());
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param personService the personService to set
+	 */
+	public final void setPersonService(PersonService personService) {
+		this.personService = personService;
+	}
+
+	/**
+	 * @param policyComponent the policyComponent to set
+	 */
+	public final void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param keyLocationCache the keyLocationCache to set
+	 */
+	public final void setKeyLocationCache(SimpleCache<NodeRef, KeyLocationDTO> keyLocationCache) {
+		this.keyLocationCache = keyLocationCache;
+	}
+}
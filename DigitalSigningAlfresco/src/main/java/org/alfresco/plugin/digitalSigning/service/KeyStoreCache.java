@@ -0,0 +1,295 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.UnsupportedEncodingException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Short-lived cache of the unlocked keys, local to the node.
+ *
+ * An entry is found only with the same key node, key content, alias and
+ * password, so an uploaded key, another alias or a wrong password never
+ * reuses an unlocked key. The password itself is not kept, only a salted
+ * hash of it.
+ */
+public class KeyStoreCache {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(KeyStoreCache.class);
+
+	/**
+	 * Time to live of an entry, in seconds.
+	 */
+	private long timeToLiveSeconds = 300;
+
+	/**
+	 * Maximum number of entries.
+	 */
+	private int maxSize = 100;
+
+	/**
+	 * Salt of the password hashes, different on each start.
+	 */
+	private final byte[] salt = new byte[16];
+
+	/**
+	 * Entries, least recently used first.
+	 */
+	private final Map<String, CachedKey> entries = new LinkedHashMap<String, CachedKey>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, CachedKey> eldest) {
+			return size() > maxSize;
+		}
+	};
+
+	/**
+	 * Hits counter.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Misses counter.
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 */
+	public KeyStoreCache() {
+		new SecureRandom().nextBytes(salt);
+	}
+
+	/**
+	 * Get an unlocked key.
+	 *
+	 * @param keyNodeRef key node
+	 * @param contentUrl key content URL
+	 * @param alias alias of the key
+	 * @param password key password
+	 * @return the unlocked key, or null if it is not cached or has expired
+	 */
+	public CachedKey get(final NodeRef keyNodeRef, final String contentUrl, final String alias, final String password) {
+		final String cacheKey = getCacheKey(keyNodeRef, contentUrl, alias, password);
+		CachedKey cachedKey;
+		synchronized (entries) {
+			cachedKey = entries.get(cacheKey);
+			if (cachedKey != null && cachedKey.isExpired()) {
+				entries.remove(cacheKey);
+				cachedKey = null;
+			}
+		}
+
+		if (cachedKey != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("Key store cache " + (cachedKey != null ? "hit" : "miss") + " for " + keyNodeRef + " (hits=" + hits.get() + ", misses=" + misses.get() + ").");
+		}
+		return cachedKey;
+	}
+
+	/**
+	 * Keep an unlocked key.
+	 *
+	 * @param keyNodeRef key node
+	 * @param contentUrl key content URL
+	 * @param alias alias of the key
+	 * @param password key password
+	 * @param keyStore loaded key store
+	 * @param privateKey private key
+	 * @param chain certificate chain
+	 * @return the cached key
+	 */
+	public CachedKey put(final NodeRef keyNodeRef, final String contentUrl, final String alias, final String password, final KeyStore keyStore, final PrivateKey privateKey, final Certificate[] chain) {
+		final CachedKey cachedKey = new CachedKey(keyNodeRef, keyStore, alias, privateKey, chain, System.currentTimeMillis() + timeToLiveSeconds * 1000L);
+		if (timeToLiveSeconds > 0 && maxSize > 0) {
+			synchronized (entries) {
+				purgeExpired();
+				entries.put(getCacheKey(keyNodeRef, contentUrl, alias, password), cachedKey);
+			}
+		}
+		return cachedKey;
+	}
+
+	/**
+	 * Forget every unlocked key of a key node, when it is uploaded again or deleted.
+	 *
+	 * @param keyNodeRef key node
+	 */
+	public void invalidate(final NodeRef keyNodeRef) {
+		if (keyNodeRef != null) {
+			synchronized (entries) {
+				final Iterator<CachedKey> itEntries = entries.values().iterator();
+				while (itEntries.hasNext()) {
+					if (keyNodeRef.equals(itEntries.next().getKeyNodeRef())) {
+						itEntries.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget every unlocked key.
+	 */
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Remove expired entries, the caller must hold the lock.
+	 */
+	private void purgeExpired() {
+		final Iterator<CachedKey> itEntries = entries.values().iterator();
+		while (itEntries.hasNext()) {
+			if (itEntries.next().isExpired()) {
+				itEntries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Build the cache key.
+	 *
+	 * @param keyNodeRef key node
+	 * @param contentUrl key content URL
+	 * @param alias alias of the key
+	 * @param password key password
+	 * @return cache key
+	 */
+	private String getCacheKey(final NodeRef keyNodeRef, final String contentUrl, final String alias, final String password) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(salt);
+			final String passwordHash = Hex.encodeHexString(digest.digest(password.getBytes("UTF-8")));
+			return keyNodeRef + "|" + contentUrl + "|" + alias + "|" + passwordHash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		} catch (UnsupportedEncodingException e) {
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return number of lookups which found an unlocked key
+	 */
+	public final long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups which had to unlock the key
+	 */
+	public final long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of unlocked keys kept
+	 */
+	public final int getSize() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/**
+	 * @param timeToLiveSeconds the timeToLiveSeconds to set
+	 */
+	public final void setTimeToLiveSeconds(long timeToLiveSeconds) {
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
+	/**
+	 * @param maxSize the maxSize to set
+	 */
+	public final void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Unlocked key.
+	 */
+	public static class CachedKey {
+
+		private final NodeRef keyNodeRef;
+		private final KeyStore keyStore;
+		private final String alias;
+		private final PrivateKey privateKey;
+		private final Certificate[] chain;
+		private final long expiryTime;
+
+		CachedKey(final NodeRef keyNodeRef, final KeyStore keyStore, final String alias, final PrivateKey privateKey, final Certificate[] chain, final long expiryTime) {
+			this.keyNodeRef = keyNodeRef;
+			this.keyStore = keyStore;
+			this.alias = alias;
+			this.privateKey = privateKey;
+			this.chain = chain;
+			this.expiryTime = expiryTime;
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() > expiryTime;
+		}
+
+		/**
+		 * @return the keyNodeRef
+		 */
+		public final NodeRef getKeyNodeRef() {
+			return keyNodeRef;
+		}
+
+		/**
+		 * @return the keyStore
+		 */
+		public final KeyStore getKeyStore() {
+			return keyStore;
+		}
+
+		/**
+		 * @return the alias
+		 */
+		public final String getAlias() {
+			return alias;
+		}
+
+		/**
+		 * @return the privateKey
+		 */
+		public final PrivateKey getPrivateKey() {
+			return privateKey;
+		}
+
+		/**
+		 * @return the chain
+		 */
+		public final Certificate[] getChain() {
+			return chain;
+		}
+	}
+}
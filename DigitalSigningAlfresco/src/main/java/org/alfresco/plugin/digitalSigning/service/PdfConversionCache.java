@@ -0,0 +1,370 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.filestore.FileContentWriter;
+import org.alfresco.repo.content.transform.ContentTransformer;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.alfresco.util.TempFileProvider;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of the PDF conversions on the local disk.
+ *
+ * A conversion is found with the source content URL and the transformer, so
+ * a new version of a document is always converted again. The least recently
+ * used conversions are deleted when the cache is larger than its maximum
+ * size. When the same document is requested by several threads at the same
+ * time, only one of them converts it and the others wait for its result.
+ *
+ * A conversion handed to a signer is pinned until the signer releases it: a
+ * pinned file is never evicted, and a pinned file replaced by a new
+ * conversion is only deleted once released.
+ */
+public class PdfConversionCache {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(PdfConversionCache.class);
+
+	/**
+	 * Name of the cache directory, in the Alfresco long life temporary directory.
+	 */
+	private String directoryName = "digitalSigningConversions";
+
+	/**
+	 * Maximum size of the cache, in megabytes.
+	 */
+	private long maxSizeMB = 1024;
+
+	/**
+	 * Cache directory.
+	 */
+	private File cacheDir;
+
+	/**
+	 * Converted files, least recently used first.
+	 */
+	private final Map<String, File> entries = new LinkedHashMap<String, File>(16, 0.75f, true);
+
+	/**
+	 * Number of users of each pinned file.
+	 */
+	private final Map<File, Integer> pins = new HashMap<File, Integer>();
+
+	/**
+	 * Number of the next converted file.
+	 */
+	private final AtomicLong fileCounter = new AtomicLong();
+
+	/**
+	 * Size of the converted files, in bytes.
+	 */
+	private long currentSize = 0;
+
+	/**
+	 * Conversions in progress.
+	 */
+	private final ConcurrentHashMap<String, FutureTask<File>> inFlight = new ConcurrentHashMap<String, FutureTask<File>>();
+
+	/**
+	 * Counters.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong sharedConversions = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Get the PDF conversion of a content, converting it if needed.
+	 *
+	 * The returned file is pinned: it belongs to the cache, must not be
+	 * deleted by the caller and must be given back with {@link #release(File)}.
+	 *
+	 * @param source content to convert
+	 * @param transformer transformer to PDF
+	 * @return the converted PDF file
+	 */
+	public File getConvertedFile(final ContentReader source, final ContentTransformer transformer) {
+		final String cacheKey = getCacheKey(source.getContentUrl(), transformer.getName());
+
+		boolean firstLookup = true;
+		while (true) {
+			synchronized (entries) {
+				final File cachedFile = entries.get(cacheKey);
+				if (cachedFile != null) {
+					if (cachedFile.exists()) {
+						if (firstLookup) {
+							hits.incrementAndGet();
+							if (log.isDebugEnabled()) {
+								log.debug("PDF conversion cache hit for " + source.getContentUrl() + ".");
+							}
+						}
+						pin(cachedFile);
+						return cachedFile;
+					}
+					entries.remove(cacheKey);
+				}
+			}
+
+			final FutureTask<File> conversion = new FutureTask<File>(new Callable<File>() {
+				public File call() throws Exception {
+					return convert(cacheKey, source, transformer);
+				}
+			});
+			final FutureTask<File> runningConversion = inFlight.putIfAbsent(cacheKey, conversion);
+
+			try {
+				if (runningConversion == null) {
+					// Pinned by the conversion, before another one can evict it
+					misses.incrementAndGet();
+					try {
+						conversion.run();
+						return conversion.get();
+					} finally {
+						inFlight.remove(cacheKey);
+					}
+				}
+
+				if (firstLookup) {
+					sharedConversions.incrementAndGet();
+					if (log.isDebugEnabled()) {
+						log.debug("Waiting for the PDF conversion of " + source.getContentUrl() + " already in progress.");
+					}
+				}
+				// The shared conversion is pinned on the next lookup, converted again if evicted in between
+				runningConversion.get();
+				firstLookup = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ContentIOException("PDF conversion interrupted.", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof ContentIOException) {
+					throw (ContentIOException) e.getCause();
+				}
+				throw new ContentIOException(e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Give back a conversion got from {@link #getConvertedFile(ContentReader, ContentTransformer)}.
+	 *
+	 * @param convertedFile converted PDF file
+	 */
+	public void release(final File convertedFile) {
+		synchronized (entries) {
+			final Integer users = pins.get(convertedFile);
+			if (users == null) {
+				return;
+			}
+			if (users > 1) {
+				pins.put(convertedFile, users - 1);
+				return;
+			}
+			pins.remove(convertedFile);
+			if (!entries.containsValue(convertedFile)) {
+				// Replaced by a new conversion while it was used
+				convertedFile.delete();
+			} else {
+				evict();
+			}
+		}
+	}
+
+	/**
+	 * Pin a file, the caller must hold the lock.
+	 *
+	 * @param convertedFile converted PDF file
+	 */
+	private void pin(final File convertedFile) {
+		final Integer users = pins.get(convertedFile);
+		pins.put(convertedFile, users == null ? 1 : users + 1);
+	}
+
+	/**
+	 * Convert a content and keep the result.
+	 *
+	 * @param cacheKey cache key
+	 * @param source content to convert
+	 * @param transformer transformer to PDF
+	 * @return the converted PDF file
+	 */
+	private File convert(final String cacheKey, final ContentReader source, final ContentTransformer transformer) {
+		final File directory = getCacheDir();
+		// Each conversion has its own file, a file in use is never overwritten
+		final long fileNumber = fileCounter.incrementAndGet();
+		final File convertingFile = new File(directory, cacheKey + "_" + fileNumber + ".tmp");
+		final File convertedFile = new File(directory, cacheKey + "_" + fileNumber + ".pdf");
+
+		// Converted by another thread just before this one asked for it
+		synchronized (entries) {
+			final File cachedFile = entries.get(cacheKey);
+			if (cachedFile != null && cachedFile.exists()) {
+				pin(cachedFile);
+				return cachedFile;
+			}
+		}
+
+		try {
+			final FileContentWriter writer = new FileContentWriter(convertingFile);
+			writer.setMimetype(MimetypeMap.MIMETYPE_PDF);
+			final TransformationOptions transformationOptions = null;
+			transformer.transform(source, writer, transformationOptions);
+
+			synchronized (entries) {
+				final File previousFile = entries.remove(cacheKey);
+				if (previousFile != null) {
+					currentSize -= previousFile.length();
+					if (!pins.containsKey(previousFile)) {
+						previousFile.delete();
+					}
+				}
+				if (!convertingFile.renameTo(convertedFile)) {
+					throw new ContentIOException("Unable to move the PDF conversion to " + convertedFile.getPath() + ".");
+				}
+				entries.put(cacheKey, convertedFile);
+				currentSize += convertedFile.length();
+				pin(convertedFile);
+				evict();
+			}
+			return convertedFile;
+		} finally {
+			convertingFile.delete();
+		}
+	}
+
+	/**
+	 * Delete the least recently used conversions until the cache fits its
+	 * maximum size, the caller must hold the lock. The last conversion and
+	 * the pinned ones are always kept, even if the cache is then larger than
+	 * its maximum size.
+	 */
+	private void evict() {
+		final long maxSize = maxSizeMB * 1024L * 1024L;
+		final Iterator<File> itFiles = entries.values().iterator();
+		while (currentSize > maxSize && entries.size() > 1 && itFiles.hasNext()) {
+			final File evictedFile = itFiles.next();
+			if (pins.containsKey(evictedFile)) {
+				continue;
+			}
+			currentSize -= evictedFile.length();
+			evictedFile.delete();
+			itFiles.remove();
+			evictions.incrementAndGet();
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("PDF conversion cache: " + entries.size() + " file(s), " + currentSize + " bytes (hits=" + hits.get() + ", misses=" + misses.get() + ", shared=" + sharedConversions.get() + ", evictions=" + evictions.get() + ").");
+		}
+	}
+
+	/**
+	 * Get the cache directory, emptied the first time since the files of a
+	 * previous start are not known.
+	 *
+	 * @return the cache directory
+	 */
+	private synchronized File getCacheDir() {
+		if (cacheDir == null) {
+			final File directory = TempFileProvider.getLongLifeTempDir(directoryName);
+			final File[] previousFiles = directory.listFiles();
+			if (previousFiles != null) {
+				for (File previousFile : previousFiles) {
+					previousFile.delete();
+				}
+			}
+			cacheDir = directory;
+		}
+		return cacheDir;
+	}
+
+	/**
+	 * Build the cache key, usable as file name.
+	 *
+	 * @param contentUrl source content URL
+	 * @param transformerName transformer name
+	 * @return cache key
+	 */
+	private String getCacheKey(final String contentUrl, final String transformerName) {
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return Hex.encodeHexString(digest.digest((transformerName + "|" + contentUrl).getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			throw new ContentIOException(e.getMessage(), e);
+		} catch (UnsupportedEncodingException e) {
+			throw new ContentIOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return number of conversions found in the cache
+	 */
+	public final long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of conversions done
+	 */
+	public final long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of requests which waited for a conversion already in progress
+	 */
+	public final long getSharedConversions() {
+		return sharedConversions.get();
+	}
+
+	/**
+	 * @return number of conversions deleted to free space
+	 */
+	public final long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return size of the converted files, in bytes
+	 */
+	public final long getCurrentSize() {
+		synchronized (entries) {
+			return currentSize;
+		}
+	}
+
+	/**
+	 * @param directoryName the directoryName to set
+	 */
+	public final void setDirectoryName(String directoryName) {
+		this.directoryName = directoryName;
+	}
+
+	/**
+	 * @param maxSizeMB the maxSizeMB to set
+	 */
+	public final void setMaxSizeMB(long maxSizeMB) {
+		this.maxSizeMB = maxSizeMB;
+	}
+}
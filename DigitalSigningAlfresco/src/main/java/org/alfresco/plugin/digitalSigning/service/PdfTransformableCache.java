@@ -0,0 +1,309 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.content.transform.ContentTransformer;
+import org.alfresco.repo.content.transform.ContentTransformerRegistry;
+import org.alfresco.service.cmr.repository.MimetypeService;
+import org.alfresco.service.cmr.repository.TransformationOptions;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Cache of the availability of a transformer to PDF, local to the node.
+ *
+ * The availability is kept by source mimetype and size bucket, a bucket
+ * holding the sizes between two powers of two. The transformers limit the
+ * maximum size of the source only, so a bucket is known transformable when
+ * its largest size is, and known not transformable when its smallest size is
+ * not; the registry is asked with the real size for the other buckets. The
+ * cache is emptied when the registered transformers change and its entries
+ * expire, since a transformer can also be disabled without being removed.
+ *
+ * The cache also keeps the table of the mimetypes transformable in PDF with
+ * their maximum size, sent to Share so it can decide without asking for each
+ * document.
+ */
+public class PdfTransformableCache {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(PdfTransformableCache.class);
+
+	/**
+	 * Availability of a bucket.
+	 */
+	private static final int ALL_TRANSFORMABLE = 0;
+	private static final int NONE_TRANSFORMABLE = 1;
+	private static final int SIZE_DEPENDENT = 2;
+
+	/**
+	 * Content Transformer registry.
+	 */
+	private ContentTransformerRegistry contentTransformerRegistry;
+
+	/**
+	 * Mimetype service.
+	 */
+	private MimetypeService mimetypeService;
+
+	/**
+	 * Time to live of an entry, in seconds.
+	 */
+	private long timeToLiveSeconds = 300;
+
+	/**
+	 * Availability by mimetype and size bucket.
+	 */
+	private final ConcurrentHashMap<String, Availability> entries = new ConcurrentHashMap<String, Availability>();
+
+	/**
+	 * Transformable mimetypes table, built on demand.
+	 */
+	private volatile TransformableMimetypes transformableMimetypes;
+
+	/**
+	 * Transformers registered when the entries were computed.
+	 */
+	private List<ContentTransformer> knownTransformers;
+
+	/**
+	 * Counters.
+	 */
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Empty the cache if the registered transformers have changed, to call once
+	 * per request before the lookups.
+	 */
+	public void refreshIfRegistryChanged() {
+		final List<ContentTransformer> transformers = new ArrayList<ContentTransformer>(contentTransformerRegistry.getTransformers());
+		synchronized (this) {
+			if (knownTransformers == null || !isSameTransformers(knownTransformers, transformers)) {
+				if (knownTransformers != null && log.isDebugEnabled()) {
+					log.debug("Transformer registry changed, PDF transformable cache emptied.");
+				}
+				entries.clear();
+				transformableMimetypes = null;
+				knownTransformers = transformers;
+			}
+		}
+	}
+
+	/**
+	 * Check if a content can be transformed in PDF.
+	 *
+	 * @param mimetype source mimetype
+	 * @param size source size, in bytes
+	 * @return true if a transformer to PDF is available
+	 */
+	public boolean isTransformable(final String mimetype, final long size) {
+		final int bucket = size > 0 ? 64 - Long.numberOfLeadingZeros(size) : 0;
+		final String cacheKey = mimetype + "|" + bucket;
+
+		Availability availability = entries.get(cacheKey);
+		if (availability != null && availability.isExpired()) {
+			entries.remove(cacheKey, availability);
+			availability = null;
+		}
+		if (availability != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			final long minSize = bucket > 0 ? 1L << (bucket - 1) : 0;
+			final long maxSize = bucket > 0 ? (bucket < 63 ? (1L << bucket) - 1 : Long.MAX_VALUE) : 0;
+			final int state;
+			if (hasTransformer(mimetype, maxSize)) {
+				state = ALL_TRANSFORMABLE;
+			} else if (!hasTransformer(mimetype, minSize)) {
+				state = NONE_TRANSFORMABLE;
+			} else {
+				state = SIZE_DEPENDENT;
+			}
+			availability = new Availability(state, System.currentTimeMillis() + timeToLiveSeconds * 1000L);
+			if (timeToLiveSeconds > 0) {
+				entries.put(cacheKey, availability);
+			}
+		}
+
+		switch (availability.getState()) {
+		case ALL_TRANSFORMABLE:
+			return true;
+		case NONE_TRANSFORMABLE:
+			return false;
+		default:
+			return hasTransformer(mimetype, size);
+		}
+	}
+
+	/**
+	 * Get the mimetypes transformable in PDF.
+	 *
+	 * @return maximum source size in bytes by mimetype, -1 if the size is not limited
+	 */
+	public Map<String, Long> getTransformableMimetypes() {
+		TransformableMimetypes table = transformableMimetypes;
+		if (table == null || table.isExpired()) {
+			final TransformationOptions options = new TransformationOptions();
+			final Map<String, Long> mimetypes = new HashMap<String, Long>();
+			for (String mimetype : mimetypeService.getMimetypes()) {
+				final List<ContentTransformer> transformers = contentTransformerRegistry.getActiveTransformers(mimetype, -1, MimetypeMap.MIMETYPE_PDF, options);
+				if (transformers == null || transformers.isEmpty()) {
+					continue;
+				}
+				long maxSize = 0;
+				for (ContentTransformer transformer : transformers) {
+					final long maxSourceSizeKBytes = transformer.getMaxSourceSizeKBytes(mimetype, MimetypeMap.MIMETYPE_PDF, options);
+					if (maxSourceSizeKBytes < 0) {
+						maxSize = -1;
+						break;
+					}
+					maxSize = Math.max(maxSize, maxSourceSizeKBytes * 1024L);
+				}
+				if (maxSize != 0) {
+					mimetypes.put(mimetype, maxSize);
+				}
+			}
+			table = new TransformableMimetypes(Collections.unmodifiableMap(mimetypes), System.currentTimeMillis() + timeToLiveSeconds * 1000L);
+			transformableMimetypes = table;
+			if (log.isDebugEnabled()) {
+				log.debug(mimetypes.size() + " mimetype(s) transformable in PDF.");
+			}
+		}
+		return table.getMimetypes();
+	}
+
+	/**
+	 * Forget every availability.
+	 */
+	public void clear() {
+		entries.clear();
+		transformableMimetypes = null;
+	}
+
+	/**
+	 * @param mimetype source mimetype
+	 * @param size source size, in bytes
+	 * @return true if the registry has a transformer to PDF for this size
+	 */
+	private boolean hasTransformer(final String mimetype, final long size) {
+		final ContentTransformer transformer = contentTransformerRegistry.getTransformer(mimetype, size, MimetypeMap.MIMETYPE_PDF, new TransformationOptions());
+		return transformer != null;
+	}
+
+	/**
+	 * @param previous transformers registered before
+	 * @param current transformers registered now
+	 * @return true if they are the same instances in the same order
+	 */
+	private boolean isSameTransformers(final List<ContentTransformer> previous, final List<ContentTransformer> current) {
+		if (previous.size() != current.size()) {
+			return false;
+		}
+		for (int i = 0; i < previous.size(); i++) {
+			if (previous.get(i) != current.get(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of lookups answered by the cache
+	 */
+	public final long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of lookups which asked the registry
+	 */
+	public final long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @param contentTransformerRegistry the contentTransformerRegistry to set
+	 */
+	public final void setContentTransformerRegistry(
+			ContentTransformerRegistry contentTransformerRegistry) {
+		this.contentTransformerRegistry = contentTransformerRegistry;
+	}
+
+	/**
+	 * @param mimetypeService the mimetypeService to set
+	 */
+	public final void setMimetypeService(MimetypeService mimetypeService) {
+		this.mimetypeService = mimetypeService;
+	}
+
+	/**
+	 * @return time to live of an entry, in seconds
+	 */
+	public final long getTimeToLiveSeconds() {
+		return timeToLiveSeconds;
+	}
+
+	/**
+	 * @param timeToLiveSeconds the timeToLiveSeconds to set
+	 */
+	public final void setTimeToLiveSeconds(long timeToLiveSeconds) {
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
+	/**
+	 * Availability of a mimetype and size bucket.
+	 */
+	private static class Availability {
+
+		private final int state;
+		private final long expiryTime;
+
+		Availability(final int state, final long expiryTime) {
+			this.state = state;
+			this.expiryTime = expiryTime;
+		}
+
+		int getState() {
+			return state;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() > expiryTime;
+		}
+	}
+
+	/**
+	 * Table of the transformable mimetypes.
+	 */
+	private static class TransformableMimetypes {
+
+		private final Map<String, Long> mimetypes;
+		private final long expiryTime;
+
+		TransformableMimetypes(final Map<String, Long> mimetypes, final long expiryTime) {
+			this.mimetypes = mimetypes;
+			this.expiryTime = expiryTime;
+		}
+
+		Map<String, Long> getMimetypes() {
+			return mimetypes;
+		}
+
+		boolean isExpired() {
+			return System.currentTimeMillis() > expiryTime;
+		}
+	}
+}
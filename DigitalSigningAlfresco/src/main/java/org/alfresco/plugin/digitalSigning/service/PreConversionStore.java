@@ -0,0 +1,187 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentService;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+
+/**
+ * PDF conversions made in background, kept on the converted documents.
+ *
+ * The conversion is the content of the dgtsgn:preConverted aspect, but the
+ * content URL it was made from and its own content URL are recorded in the
+ * attribute service, which can't be written by the users: a conversion is
+ * used only while both match, so a user able to edit the document can't
+ * get another PDF signed in place of the rendering of its content.
+ */
+public class PreConversionStore implements NodeServicePolicies.BeforeDeleteNodePolicy {
+
+	/**
+	 * First key of the conversions in the attribute service.
+	 */
+	private static final String ATTRIBUTE_KEY = "digitalSigning.preConversion";
+
+	/**
+	 * Content URL the conversion was made from.
+	 */
+	private static final String SOURCE = "source";
+
+	/**
+	 * Content URL of the conversion.
+	 */
+	private static final String CONVERTED = "converted";
+
+	/**
+	 * Attribute service.
+	 */
+	private AttributeService attributeService;
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Content service.
+	 */
+	private ContentService contentService;
+
+	/**
+	 * Policy component.
+	 */
+	private PolicyComponent policyComponent;
+
+	/**
+	 * Bind the behaviour removing the conversions of the deleted documents.
+	 */
+	public void init() {
+		policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, SigningModel.ASPECT_PRECONVERTED, new JavaBehaviour(this, "beforeDeleteNode"));
+	}
+
+	/**
+	 * Forget the conversion of a deleted document.
+	 *
+	 * @param nodeRef deleted document
+	 */
+	public void beforeDeleteNode(final NodeRef nodeRef) {
+		attributeService.removeAttribute(ATTRIBUTE_KEY, nodeRef.toString());
+	}
+
+	/**
+	 * @param nodeRef document
+	 * @return the content URL the conversion of the document was made from, null if not converted
+	 */
+	public String getSourceContentUrl(final NodeRef nodeRef) {
+		final Map<String, String> conversion = getConversion(nodeRef);
+		return conversion != null ? conversion.get(SOURCE) : null;
+	}
+
+	/**
+	 * Get the conversion of a document, if it has been made from a content
+	 * and is the one recorded.
+	 *
+	 * @param nodeRef document
+	 * @param contentUrl current content URL of the document
+	 * @return the conversion, null if there is no up to date one
+	 */
+	public ContentReader getReader(final NodeRef nodeRef, final String contentUrl) {
+		if (!nodeService.hasAspect(nodeRef, SigningModel.ASPECT_PRECONVERTED)) {
+			return null;
+		}
+		final Map<String, String> conversion = getConversion(nodeRef);
+		if (conversion == null || contentUrl == null || !contentUrl.equals(conversion.get(SOURCE))) {
+			return null;
+		}
+		final ContentReader reader = contentService.getReader(nodeRef, SigningModel.PROP_PRECONVERTED_CONTENT);
+		if (reader == null || !reader.exists() || !reader.getContentUrl().equals(conversion.get(CONVERTED))) {
+			return null;
+		}
+		return reader;
+	}
+
+	/**
+	 * Keep the conversion of a document, in the current transaction.
+	 *
+	 * @param nodeRef document
+	 * @param sourceContentUrl content URL the conversion was made from
+	 * @param convertedReader conversion
+	 */
+	public void put(final NodeRef nodeRef, final String sourceContentUrl, final ContentReader convertedReader) {
+		if (!nodeService.hasAspect(nodeRef, SigningModel.ASPECT_PRECONVERTED)) {
+			nodeService.addAspect(nodeRef, SigningModel.ASPECT_PRECONVERTED, null);
+		}
+		final ContentWriter writer = contentService.getWriter(nodeRef, SigningModel.PROP_PRECONVERTED_CONTENT, true);
+		writer.setMimetype(MimetypeMap.MIMETYPE_PDF);
+		writer.putContent(convertedReader);
+
+		final HashMap<String, String> conversion = new HashMap<String, String>();
+		conversion.put(SOURCE, sourceContentUrl);
+		conversion.put(CONVERTED, writer.getContentUrl());
+		attributeService.setAttribute(conversion, ATTRIBUTE_KEY, nodeRef.toString());
+	}
+
+	/**
+	 * Remove the conversion of a document, in the current transaction. Its
+	 * content is left to the content store cleaner.
+	 *
+	 * @param nodeRef document
+	 */
+	public void remove(final NodeRef nodeRef) {
+		if (nodeService.hasAspect(nodeRef, SigningModel.ASPECT_PRECONVERTED)) {
+			nodeService.removeAspect(nodeRef, SigningModel.ASPECT_PRECONVERTED);
+		}
+		attributeService.removeAttribute(ATTRIBUTE_KEY, nodeRef.toString());
+	}
+
+	/**
+	 * @param nodeRef document
+	 * @return the recorded conversion, null if none
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, String> getConversion(final NodeRef nodeRef) {
+		final Serializable conversion = attributeService.getAttribute(ATTRIBUTE_KEY, nodeRef.toString());
+		return conversion instanceof Map ? (Map<String, String>) conversion : null;
+	}
+
+	/**
+	 * @param attributeService the attributeService to set
+	 */
+	public final void setAttributeService(AttributeService attributeService) {
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param contentService the contentService to set
+	 */
+	public final void setContentService(ContentService contentService) {
+		this.contentService = contentService;
+	}
+
+	/**
+	 * @param policyComponent the policyComponent to set
+	 */
+	public final void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+}
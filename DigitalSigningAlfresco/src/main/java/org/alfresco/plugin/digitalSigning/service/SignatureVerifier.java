@@ -0,0 +1,345 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.IOException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDate;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfString;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.pdf.security.CertificateVerification;
+import com.itextpdf.text.pdf.security.PdfPKCS7;
+import com.itextpdf.text.pdf.security.VerificationException;
+
+/**
+ * Verify all the signatures of a PDF.
+ *
+ * {@link AcroFields#verifySignature(String)} reads and hashes the byte ranges
+ * of one signature, so a document with several revisions is read once by
+ * signature. Here the signature containers are opened first, then the file
+ * is read once from the beginning, each chunk updating the digest of every
+ * signature whose byte ranges cover it. The signatures are then checked on
+ * the verification thread pool.
+ */
+public class SignatureVerifier {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(SignatureVerifier.class);
+
+	/**
+	 * Read buffer size.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Thread pool checking the signatures.
+	 */
+	private ExecutorService verifyThreadPool;
+
+	/**
+	 * Verify the signatures of a PDF.
+	 *
+	 * @param reader PDF reader
+	 * @param names signature names
+	 * @param trustStore trusted certificates to check the signing certificates against, null not to check them
+	 * @return the verified signatures, in the order of the names
+	 * @throws IOException error while reading the PDF
+	 */
+	public List<VerifiedSignature> verify(final PdfReader reader, final List<String> names, final KeyStore trustStore) throws IOException {
+		final AcroFields af = reader.getAcroFields();
+		final List<VerifiedSignature> signatures = new ArrayList<VerifiedSignature>(names.size());
+		final List<ByteRange> byteRanges = new ArrayList<ByteRange>();
+		for (String name : names) {
+			final PdfDictionary v = af.getSignatureDictionary(name);
+			if (v == null) {
+				log.error("Unable to verify signature.");
+				throw new AlfrescoRuntimeException("Unable to verify signature.");
+			}
+			final VerifiedSignature signature = new VerifiedSignature(name, openSignature(v));
+			signatures.add(signature);
+			final long[] ranges = v.getAsArray(PdfName.BYTERANGE).asLongArray();
+			for (int i = 0; i + 1 < ranges.length; i += 2) {
+				byteRanges.add(new ByteRange(ranges[i], ranges[i] + ranges[i + 1], signature.getPk()));
+			}
+		}
+
+		updateDigests(reader, byteRanges);
+
+		if (verifyThreadPool == null || signatures.size() < 2) {
+			for (VerifiedSignature signature : signatures) {
+				check(signature, trustStore);
+			}
+			return signatures;
+		}
+
+		final List<Future<VerifiedSignature>> futures = new ArrayList<Future<VerifiedSignature>>(signatures.size());
+		for (final VerifiedSignature signature : signatures) {
+			futures.add(verifyThreadPool.submit(new Callable<VerifiedSignature>() {
+				public VerifiedSignature call() throws Exception {
+					return check(signature, trustStore);
+				}
+			}));
+		}
+		for (Future<VerifiedSignature> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				for (Future<VerifiedSignature> pending : futures) {
+					pending.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				log.error("Verification interrupted.");
+				throw new AlfrescoRuntimeException("Verification interrupted.", e);
+			} catch (ExecutionException e) {
+				log.error(e.getCause());
+				throw new AlfrescoRuntimeException(e.getCause().getMessage(), e.getCause());
+			}
+		}
+		return signatures;
+	}
+
+	/**
+	 * Open the signature container of a signature dictionary, as
+	 * {@link AcroFields#verifySignature(String)} does, without hashing the
+	 * document.
+	 *
+	 * @param v signature dictionary
+	 * @return the signature, its digest not updated yet
+	 */
+	private PdfPKCS7 openSignature(final PdfDictionary v) {
+		final PdfName sub = v.getAsName(PdfName.SUBFILTER);
+		final PdfString contents = v.getAsString(PdfName.CONTENTS);
+		PdfPKCS7 pk;
+		if (PdfName.ADBE_X509_RSA_SHA1.equals(sub)) {
+			PdfString cert = v.getAsString(PdfName.CERT);
+			if (cert == null) {
+				cert = v.getAsArray(PdfName.CERT).getAsString(0);
+			}
+			pk = new PdfPKCS7(contents.getOriginalBytes(), cert.getBytes(), null);
+		} else {
+			pk = new PdfPKCS7(contents.getOriginalBytes(), sub, null);
+		}
+
+		PdfString str = v.getAsString(PdfName.M);
+		if (str != null) {
+			pk.setSignDate(PdfDate.decode(str.toString()));
+		}
+		final PdfObject obj = PdfReader.getPdfObject(v.get(PdfName.NAME));
+		if (obj != null) {
+			if (obj.isString()) {
+				pk.setSignName(((PdfString) obj).toUnicodeString());
+			} else if (obj.isName()) {
+				pk.setSignName(PdfName.decodeName(obj.toString()));
+			}
+		}
+		str = v.getAsString(PdfName.REASON);
+		if (str != null) {
+			pk.setReason(str.toUnicodeString());
+		}
+		str = v.getAsString(PdfName.LOCATION);
+		if (str != null) {
+			pk.setLocation(str.toUnicodeString());
+		}
+		return pk;
+	}
+
+	/**
+	 * Read the document once and update the digest of each signature with
+	 * its byte ranges.
+	 *
+	 * @param reader PDF reader
+	 * @param byteRanges byte ranges of all the signatures
+	 * @throws IOException error while reading the PDF
+	 */
+	private void updateDigests(final PdfReader reader, final List<ByteRange> byteRanges) throws IOException {
+		Collections.sort(byteRanges, new Comparator<ByteRange>() {
+			public int compare(final ByteRange r1, final ByteRange r2) {
+				return r1.start < r2.start ? -1 : (r1.start == r2.start ? 0 : 1);
+			}
+		});
+		long end = 0;
+		for (ByteRange byteRange : byteRanges) {
+			end = Math.max(end, byteRange.end);
+		}
+
+		final RandomAccessFileOrArray rf = reader.getSafeFile();
+		try {
+			rf.seek(0);
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			final List<ByteRange> active = new ArrayList<ByteRange>();
+			int next = 0;
+			long position = 0;
+			while (position < end) {
+				final int read = rf.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+				if (read <= 0) {
+					break;
+				}
+				final long chunkEnd = position + read;
+				while (next < byteRanges.size() && byteRanges.get(next).start < chunkEnd) {
+					active.add(byteRanges.get(next++));
+				}
+				// The ranges of a signature are in file order, so its digest is updated in order
+				for (Iterator<ByteRange> it = active.iterator(); it.hasNext();) {
+					final ByteRange byteRange = it.next();
+					final long from = Math.max(byteRange.start, position);
+					final long to = Math.min(byteRange.end, chunkEnd);
+					if (from < to) {
+						byteRange.pk.update(buffer, (int) (from - position), (int) (to - from));
+					}
+					if (byteRange.end <= chunkEnd) {
+						it.remove();
+					}
+				}
+				position = chunkEnd;
+			}
+		} finally {
+			rf.close();
+		}
+	}
+
+	/**
+	 * Check a signature whose digest is complete.
+	 *
+	 * @param signature signature
+	 * @param trustStore trusted certificates, null not to check the signing certificates
+	 * @return the signature
+	 * @throws Exception error during the check
+	 */
+	private VerifiedSignature check(final VerifiedSignature signature, final KeyStore trustStore) throws Exception {
+		final PdfPKCS7 pk = signature.getPk();
+		signature.intact = pk.verify();
+		if (trustStore != null) {
+			signature.certificateErrors = CertificateVerification.verifyCertificates(pk.getSignCertificateChain(), trustStore, pk.getSignDate());
+		}
+		return signature;
+	}
+
+	/**
+	 * @param verifyThreadPool the verifyThreadPool to set
+	 */
+	public final void setVerifyThreadPool(ExecutorService verifyThreadPool) {
+		this.verifyThreadPool = verifyThreadPool;
+	}
+
+	/**
+	 * Byte range of a signature.
+	 */
+	private static final class ByteRange {
+
+		/**
+		 * First byte.
+		 */
+		private final long start;
+
+		/**
+		 * Byte after the last one.
+		 */
+		private final long end;
+
+		/**
+		 * Signature covering the range.
+		 */
+		private final PdfPKCS7 pk;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param start first byte
+		 * @param end byte after the last one
+		 * @param pk signature covering the range
+		 */
+		private ByteRange(final long start, final long end, final PdfPKCS7 pk) {
+			this.start = start;
+			this.end = end;
+			this.pk = pk;
+		}
+	}
+
+	/**
+	 * Verified signature.
+	 */
+	public static class VerifiedSignature {
+
+		/**
+		 * Signature name.
+		 */
+		private final String name;
+
+		/**
+		 * Signature.
+		 */
+		private final PdfPKCS7 pk;
+
+		/**
+		 * The signed byte ranges are not modified ?
+		 */
+		private volatile boolean intact;
+
+		/**
+		 * Errors of the signing certificates, null if not checked.
+		 */
+		private volatile List<VerificationException> certificateErrors;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param name signature name
+		 * @param pk signature
+		 */
+		private VerifiedSignature(final String name, final PdfPKCS7 pk) {
+			this.name = name;
+			this.pk = pk;
+		}
+
+		/**
+		 * @return the name
+		 */
+		public final String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the pk
+		 */
+		public final PdfPKCS7 getPk() {
+			return pk;
+		}
+
+		/**
+		 * @return the intact
+		 */
+		public final boolean isIntact() {
+			return intact;
+		}
+
+		/**
+		 * @return the certificateErrors
+		 */
+		public final List<VerificationException> getCertificateErrors() {
+			return certificateErrors;
+		}
+	}
+}
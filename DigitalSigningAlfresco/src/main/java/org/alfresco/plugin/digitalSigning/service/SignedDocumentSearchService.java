@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.util.Calendar;
+
+import org.alfresco.plugin.digitalSigning.dto.SignedDocumentsPageDTO;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.util.ISO8601DateFormat;
+import org.alfresco.util.ISO9075;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Search of the signed documents, one page at a time, the most recently
+ * signed first.
+ *
+ * The signer and date filters are run on the database (transactional
+ * metadata query) when it is available, the site filter needs a path and is
+ * run on the index.
+ */
+public class SignedDocumentSearchService {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(SignedDocumentSearchService.class);
+
+	/**
+	 * Search service.
+	 */
+	private SearchService searchService;
+
+	/**
+	 * Number of documents of a page when it is not given.
+	 */
+	private int defaultMaxItems = 50;
+
+	/**
+	 * Maximum number of documents of a page.
+	 */
+	private int maxItemsLimit = 1000;
+
+	/**
+	 * Search a page of signed documents.
+	 *
+	 * @param userName current user name
+	 * @param filterPerson "mine" for the documents signed by the user, "others" for the documents signed by other users, null for all
+	 * @param filterDate "today", or a number of days, null for all
+	 * @param siteId site of the documents, null for all
+	 * @param skipCount number of documents to skip
+	 * @param maxItems number of documents of the page, default size if 0 or less
+	 * @return the page of signed documents
+	 */
+	public SignedDocumentsPageDTO search(final String userName, final String filterPerson, final String filterDate, final String siteId, final int skipCount, final int maxItems) {
+		final StringBuilder query = new StringBuilder("ASPECT:\"dgtsgn:signed\"");
+
+		// Filter on person
+		if ("mine".equals(filterPerson)) {
+			query.append(" AND =dgtsgn:signedby:\"").append(escape(userName)).append("\"");
+		} else if ("others".equals(filterPerson)) {
+			query.append(" AND NOT =dgtsgn:signedby:\"").append(escape(userName)).append("\"");
+		}
+
+		// Filter on date
+		final int days = getDays(filterDate);
+		if (days > 0) {
+			final Calendar to = Calendar.getInstance();
+			to.set(Calendar.HOUR_OF_DAY, 23);
+			to.set(Calendar.MINUTE, 59);
+			to.set(Calendar.SECOND, 0);
+			to.set(Calendar.MILLISECOND, 0);
+			final Calendar from = (Calendar) to.clone();
+			from.add(Calendar.DAY_OF_MONTH, -days);
+			query.append(" AND dgtsgn:signaturedate:[").append(ISO8601DateFormat.format(from.getTime()))
+				.append(" TO ").append(ISO8601DateFormat.format(to.getTime())).append("]");
+		}
+
+		// Filter on site
+		final boolean siteFilter = siteId != null && siteId.length() > 0;
+		if (siteFilter) {
+			query.append(" AND PATH:\"/app:company_home/st:sites//cm:").append(ISO9075.encode(siteId)).append("/cm:documentLibrary//*\"");
+		}
+
+		final int pageSize = maxItems > 0 ? Math.min(maxItems, maxItemsLimit) : defaultMaxItems;
+		final int skip = Math.max(skipCount, 0);
+
+		final SearchParameters searchParameters = new SearchParameters();
+		searchParameters.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+		searchParameters.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+		searchParameters.setQuery(query.toString());
+		searchParameters.setQueryConsistency(siteFilter ? QueryConsistency.EVENTUAL : QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+		searchParameters.addSort("@dgtsgn:signaturedate", false);
+		searchParameters.setSkipCount(skip);
+		searchParameters.setMaxItems(pageSize);
+
+		if (log.isDebugEnabled()) {
+			log.debug("Search signed documents: " + query + " (skip=" + skip + ", max=" + pageSize + ").");
+		}
+
+		ResultSet resultSet = null;
+		try {
+			resultSet = searchService.query(searchParameters);
+			return new SignedDocumentsPageDTO(resultSet.getNodeRefs(), resultSet.getNumberFound(), skip);
+		} finally {
+			if (resultSet != null) {
+				resultSet.close();
+			}
+		}
+	}
+
+	/**
+	 * @param filterDate date filter
+	 * @return number of days of the filter, 0 for no filter
+	 */
+	private int getDays(final String filterDate) {
+		if (filterDate == null) {
+			return 0;
+		}
+		if ("today".equals(filterDate)) {
+			return 1;
+		}
+		try {
+			return Integer.parseInt(filterDate);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @param value value of a quoted search term
+	 * @return the value with its quotes and backslashes escaped
+	 */
+	private String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * @param searchService the searchService to set
+	 */
+	public final void setSearchService(SearchService searchService) {
+		this.searchService = searchService;
+	}
+
+	/**
+	 * @param defaultMaxItems the defaultMaxItems to set
+	 */
+	public final void setDefaultMaxItems(int defaultMaxItems) {
+		this.defaultMaxItems = defaultMaxItems;
+	}
+
+	/**
+	 * @param maxItemsLimit the maxItemsLimit to set
+	 */
+	public final void setMaxItemsLimit(int maxItemsLimit) {
+		this.maxItemsLimit = maxItemsLimit;
+	}
+}
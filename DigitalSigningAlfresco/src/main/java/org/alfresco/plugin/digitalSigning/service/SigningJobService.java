@@ -0,0 +1,187 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.plugin.digitalSigning.dto.DigitalSigningDTO;
+import org.alfresco.plugin.digitalSigning.dto.SigningJobDTO;
+import org.alfresco.plugin.digitalSigning.dto.SigningResultDTO;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Asynchronous signing jobs.
+ *
+ * Jobs are run on a dedicated thread pool and kept in memory on the node
+ * which received them, until they have been finished for longer than the
+ * retention time: they are forgotten on the next submission or poll. Each
+ * document of a job is signed in its own transactions, so the documents
+ * already signed stay signed whatever happens next, whatever the partial
+ * success of the signing informations.
+ */
+public class SigningJobService {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(SigningJobService.class);
+
+	/**
+	 * Sign service.
+	 */
+	private SigningService digitalSigningService;
+
+	/**
+	 * Thread pool running the jobs.
+	 */
+	private ExecutorService jobThreadPool;
+
+	/**
+	 * Time a finished job is kept, in minutes.
+	 */
+	private long retentionMinutes = 60;
+
+	/**
+	 * Known jobs.
+	 */
+	private final Map<String, SigningJobDTO> jobs = new ConcurrentHashMap<String, SigningJobDTO>();
+
+	/**
+	 * Submit a signing job.
+	 *
+	 * @param signingDTO sign informations
+	 * @return the job id
+	 */
+	public String submit(final DigitalSigningDTO signingDTO) {
+		if (signingDTO == null || signingDTO.getFilesToSign() == null) {
+			log.error("No object with signing informations.");
+			throw new AlfrescoRuntimeException("No object with signing informations.");
+		}
+
+		purgeFinishedJobs();
+
+		final String runAsUser = AuthenticationUtil.getRunAsUser();
+		final SigningJobDTO job = new SigningJobDTO(UUID.randomUUID().toString(), runAsUser, signingDTO.getFilesToSign().size());
+		jobs.put(job.getId(), job);
+
+		try {
+			jobThreadPool.execute(new Runnable() {
+				public void run() {
+					AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+						public Void doWork() throws Exception {
+							runJob(job, signingDTO);
+							return null;
+						}
+					}, runAsUser);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			jobs.remove(job.getId());
+			log.error("Too many signing jobs waiting, unable to submit a new one.");
+			throw new AlfrescoRuntimeException("Too many signing jobs waiting, unable to submit a new one.", e);
+		}
+
+		if (log.isDebugEnabled()) {
+			log.debug("Signing job " + job.getId() + " submitted by " + runAsUser + " for " + job.getTotal() + " document(s).");
+		}
+
+		return job.getId();
+	}
+
+	/**
+	 * Get a job of the current user.
+	 *
+	 * @param jobId job id
+	 * @return the job, or null if it doesn't exist or belongs to another user
+	 */
+	public SigningJobDTO getJob(final String jobId) {
+		purgeFinishedJobs();
+
+		final SigningJobDTO job = jobId != null ? jobs.get(jobId) : null;
+		if (job != null && !job.getUserName().equals(AuthenticationUtil.getRunAsUser())) {
+			return null;
+		}
+		return job;
+	}
+
+	/**
+	 * Run a job, without transaction: a retry never signs again a document
+	 * already signed.
+	 *
+	 * @param job job
+	 * @param signingDTO sign informations
+	 */
+	private void runJob(final SigningJobDTO job, final DigitalSigningDTO signingDTO) {
+		job.setStatus(SigningJobDTO.STATUS_RUNNING);
+		try {
+			// Each document in its own transactions, the job reports the result of each one
+			signingDTO.setPartialSuccess(true);
+			digitalSigningService.sign(signingDTO, new SigningListener() {
+				public void signingStarted(int filesToSign, List<SigningResultDTO> skippedResults) {
+					// Not kept in memory for the rest of the job
+					signingDTO.setKeyPassword(null);
+					job.setSkipped(skippedResults);
+					job.setTotal(filesToSign);
+				}
+
+				public void documentSigned(SigningResultDTO signingResult) {
+					job.addResult(signingResult);
+				}
+			});
+			job.setStatus(SigningJobDTO.STATUS_DONE);
+		} catch (Throwable e) {
+			signingDTO.setKeyPassword(null);
+			log.error("Signing job " + job.getId() + " failed : " + e.getMessage());
+			job.setErrorMessage(e.getMessage());
+			job.setStatus(SigningJobDTO.STATUS_FAILED);
+		} finally {
+			job.setEndDate(new Date());
+		}
+	}
+
+	/**
+	 * Forget the jobs finished for longer than the retention time.
+	 */
+	private void purgeFinishedJobs() {
+		final long limit = System.currentTimeMillis() - retentionMinutes * 60L * 1000L;
+		final Iterator<SigningJobDTO> itJobs = jobs.values().iterator();
+		while (itJobs.hasNext()) {
+			final SigningJobDTO job = itJobs.next();
+			if (job.isFinished() && job.getEndDate() != null && job.getEndDate().getTime() < limit) {
+				itJobs.remove();
+			}
+		}
+	}
+
+	/**
+	 * @param digitalSigningService the digitalSigningService to set
+	 */
+	public final void setDigitalSigningService(SigningService digitalSigningService) {
+		this.digitalSigningService = digitalSigningService;
+	}
+
+	/**
+	 * @param jobThreadPool the jobThreadPool to set
+	 */
+	public final void setJobThreadPool(ExecutorService jobThreadPool) {
+		this.jobThreadPool = jobThreadPool;
+	}
+
+	/**
+	 * @param retentionMinutes the retentionMinutes to set
+	 */
+	public final void setRetentionMinutes(long retentionMinutes) {
+		this.retentionMinutes = retentionMinutes;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.util.List;
+
+import org.alfresco.plugin.digitalSigning.dto.SigningResultDTO;
+
+/**
+ * Listener notified of the signing result of each document of a batch.
+ *
+ * Documents signed in parallel are reported from the signing threads, so
+ * implementations must be thread safe.
+ */
+public interface SigningListener {
+
+	/**
+	 * The key has been unlocked and the documents to sign selected, before
+	 * the first document is signed. The key password is not needed anymore.
+	 *
+	 * @param filesToSign number of documents which will be signed, each one reported once processed
+	 * @param skippedResults failed results of the documents which can't be signed, not reported again
+	 */
+	void signingStarted(int filesToSign, List<SigningResultDTO> skippedResults);
+
+	/**
+	 * A document of the batch has been processed.
+	 *
+	 * @param signingResult signing result of the document
+	 */
+	void documentSigned(SigningResultDTO signingResult);
+}
@@ -4,9 +4,9 @@
 package org.alfresco.plugin.digitalSigning.service;
 
 import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -25,12 +25,18 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.UUID;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import javax.imageio.ImageIO;
 import com.itextpdf.text.Image;
 
@@ -38,6 +44,7 @@ import com.itextpdf.text.Image;
 import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.plugin.digitalSigning.dto.DigitalSigningDTO;
+import org.alfresco.plugin.digitalSigning.dto.SigningResultDTO;
 import org.alfresco.plugin.digitalSigning.dto.VerifyResultDTO;
 import org.alfresco.plugin.digitalSigning.dto.VerifyingDTO;
 import org.alfresco.plugin.digitalSigning.model.SigningConstants;
@@ -50,6 +57,10 @@ import org.alfresco.repo.content.transform.ContentTransformer;
 import org.alfresco.repo.content.transform.ContentTransformerRegistry;
 import org.alfresco.repo.node.encryption.MetadataEncryptor;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
 import org.alfresco.service.cmr.dictionary.DictionaryService;
 import org.alfresco.service.cmr.model.FileFolderService;
 import org.alfresco.service.cmr.model.FileInfo;
@@ -67,6 +78,7 @@ import org.alfresco.service.namespace.QName;
 import org.alfresco.util.TempFileProvider;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.pdfbox.examples.pdfa.CreatePDFA;
@@ -86,6 +98,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import com.itextpdf.text.pdf.AcroFields;
 //import com.itextpdf.text.pdf.PdfPKCS7;
 import com.itextpdf.text.pdf.security.PdfPKCS7;
+import com.itextpdf.text.pdf.security.VerificationException;
 
 
 import com.itextpdf.text.DocumentException;
@@ -96,6 +109,9 @@ import com.itextpdf.text.pdf.ColumnText;
 import com.itextpdf.text.pdf.PdfContentByte;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfTemplate;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
 
 import com.itextpdf.text.pdf.BarcodeQRCode;
 
@@ -158,13 +174,62 @@ public class SigningService {
 	 */
 	private ServiceRegistry serviceRegistry;
 
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Thread pool used to sign several documents in parallel.
+	 */
+	private ExecutorService signingThreadPool;
+
+	/**
+	 * Cache of the unlocked keys.
+	 */
+	private KeyStoreCache keyStoreCache;
+
+	/**
+	 * Trusted certificates of the keyless verification.
+	 */
+	private VerificationTrustStore verificationTrustStore;
+
+	/**
+	 * Verification of the signatures of a document.
+	 */
+	private SignatureVerifier signatureVerifier = new SignatureVerifier();
+
+	/**
+	 * Verification results kept on the documents.
+	 */
+	private VerificationResultStore verificationResultStore;
+
+	/**
+	 * Store of the PDF conversions made in background.
+	 */
+	private PreConversionStore preConversionStore;
+
+	/**
+	 * Stamp the documents as an incremental update, which keeps the previous signatures valid.
+	 * Off by default until it has been benchmarked against the full rewrite.
+	 */
+	private boolean appendMode = false;
+
+	/**
+	 * Cache of the PDF conversions.
+	 */
+	private PdfConversionCache pdfConversionCache;
+
 	private static Log logger = LogFactory.getLog(SigningService.class);
 
 
 	
 	
 	/**
-	 * PADES Signing.
+	 * PADES Signing, in the current write transaction.
+	 * 
+	 * The document is stamped straight into the content of the signed
+	 * document, nothing is staged.
 	 * 
 	 * @param nodeRefToSign NodeRef to sign
 	 * @param signingDTO SigningDTO object
@@ -173,15 +238,75 @@ public class SigningService {
 	 * @param ks KeyStore
 	 * @param key Key
 	 * @param chain Chain
-	 * @param userLocale user locale
 	 * @return null or an error during signing process
 	 */
 	private AlfrescoRuntimeException signPDFFile(final NodeRef nodeRefToSign, final DigitalSigningDTO signingDTO, final File alfTempDir, final String alias, final KeyStore ks, final PrivateKey key, final Certificate[] chain) {
+		try {
+			final String fileNameToSign = fileFolderService.getFileInfo(nodeRefToSign).getName();
+			final NodeRef destinationNode = getDestinationNode(nodeRefToSign, fileNameToSign, signingDTO);
+			final ContentWriter writer = contentService.getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
+			final String newName = stampPDFFile(nodeRefToSign, alfTempDir, alias, ks, key, chain, writer);
+			setSigned(nodeRefToSign, destinationNode, newName, signingDTO);
+			return null;
+		} catch (AlfrescoRuntimeException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * Stamp a document, without writing anything in the repository.
+	 * 
+	 * The stamped document is staged in a temporary content, so the
+	 * conversion and the stamping are not done again when the transaction
+	 * storing it is retried. It is copied once more when stored: staged in
+	 * the content store instead, it would be left there, never cleaned,
+	 * each time the storing fails. Only the signings without a write
+	 * transaction of the caller are staged.
+	 * 
+	 * @param nodeRefToSign NodeRef to sign
+	 * @param alfTempDir Alfresco temporary directoru
+	 * @param alias Sign Alias to use
+	 * @param ks KeyStore
+	 * @param key Key
+	 * @param chain Chain
+	 * @return the stamped document, to discard by the caller
+	 */
+	private StampedDocument stageSignedFile(final NodeRef nodeRefToSign, final File alfTempDir, final String alias, final KeyStore ks, final PrivateKey key, final Certificate[] chain) {
+		final String fileNameToSign = fileFolderService.getFileInfo(nodeRefToSign).getName();
+		final ContentWriter stagingWriter = contentService.getTempWriter();
+		try {
+			final String newName = stampPDFFile(nodeRefToSign, alfTempDir, alias, ks, key, chain, stagingWriter);
+			return new StampedDocument(nodeRefToSign, fileNameToSign, newName, stagingWriter.getReader());
+		} catch (RuntimeException e) {
+			// Partly written, without waiting for the temporary files cleaner
+			if (stagingWriter instanceof FileContentWriter) {
+				((FileContentWriter) stagingWriter).getFile().delete();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Stamp a document into a content writer.
+	 * 
+	 * @param nodeRefToSign NodeRef to sign
+	 * @param alfTempDir Alfresco temporary directoru
+	 * @param alias Sign Alias to use
+	 * @param ks KeyStore
+	 * @param key Key
+	 * @param chain Chain
+	 * @param writer writer of the stamped document, closed when stamped
+	 * @return name of the PDF conversion, null if the document was already a PDF
+	 */
+	private String stampPDFFile(final NodeRef nodeRefToSign, final File alfTempDir, final String alias, final KeyStore ks, final PrivateKey key, final Certificate[] chain, final ContentWriter writer) {
 		final String fileNameToSign = fileFolderService.getFileInfo(nodeRefToSign).getName();
 		
 		File fileConverted = null;
+		File cachedConversion = null;
 		File tempDir = null;
-		String pages = "";
+		File scratchFile = null;
+		PdfReader reader = null;
+		OutputStream out = null;
 
 		Map<QName, Serializable> props = nodeService.getProperties(nodeRefToSign);
 		String qrCodeString = new String();
@@ -196,12 +321,21 @@ public class SigningService {
 			if (fileToSignContentReader != null) {
 				String newName = null;
 				
-				// Check if document is PDF or transform it
-				if (!MimetypeMap.MIMETYPE_PDF.equals(fileToSignContentReader.getMimetype())) {
+				// Check if document is PDF, already converted in background, or transform it
+				final ContentReader preConvertedReader = getPreConvertedReader(nodeRefToSign, fileToSignContentReader);
+				if (preConvertedReader != null) {
+					fileToSignContentReader = preConvertedReader;
+					newName = getPdfName(nodeRefToSign);
+				} else if (!MimetypeMap.MIMETYPE_PDF.equals(fileToSignContentReader.getMimetype())) {
 					// Transform document in PDF document
 					final ContentTransformer tranformer = contentTransformerRegistry.getTransformer(fileToSignContentReader.getMimetype(), fileToSignContentReader.getSize(), MimetypeMap.MIMETYPE_PDF, new TransformationOptions());
 					
-					if (tranformer != null) {
+					if (tranformer != null && pdfConversionCache != null) {
+						// Conversion shared with the previous and concurrent signatures of the same content, pinned until stamped
+						cachedConversion = pdfConversionCache.getConvertedFile(fileToSignContentReader, tranformer);
+						fileToSignContentReader = new FileContentReader(cachedConversion);
+						newName = getPdfName(nodeRefToSign);
+					} else if (tranformer != null) {
 						
 						tempDir = new File(alfTempDir.getPath() + File.separatorChar + nodeRefToSign.getId());
 				        if (tempDir != null) {
@@ -214,195 +348,247 @@ public class SigningService {
 									final TransformationOptions transformationOptions = null;
 									tranformer.transform(fileToSignContentReader, newDoc, transformationOptions);
 									fileToSignContentReader = new FileContentReader(fileConverted);
-									
-									final String originalName = (String) nodeService.getProperty(nodeRefToSign, ContentModel.PROP_NAME);
-									
-									if (originalName.lastIndexOf(".") == -1) {
-										newName = originalName + ".pdf";
-									} else {
-										newName = originalName.substring(0, originalName.lastIndexOf(".")) + ".pdf";
-									}
+									newName = getPdfName(nodeRefToSign);
 						        }
 							}
 				        }
 					} else {
 						log.error("[" + fileNameToSign + "] No suitable converter found to convert the document in PDF.");
-						return new AlfrescoRuntimeException("[" + fileNameToSign + "] No suitable converter found to convert the document in PDF.");
+						throw new AlfrescoRuntimeException("[" + fileNameToSign + "] No suitable converter found to convert the document in PDF.");
 					}
 				}
 
-				PdfReader reader = null;
-				if (nodeRefToSign != null) {
-				
-			        tempDir = new File(alfTempDir.getPath() + File.separatorChar + nodeRefToSign.getId());
-			        if (tempDir != null) {
-				        tempDir.mkdir();
-				        final File file = new File(tempDir, fileNameToSign);
-				        
-				        if (file != null) {
-					        final FileOutputStream fout = new FileOutputStream(file);
-					        //final PdfStamper stp = PdfStamper.createSignature(reader, fout, '\0');
-					        
-					        final File tempFile = new File(tempDir, fileNameToSign + "_tmp");
-					        // Use parameter "true" to allow multiple signature on the PDF
-					        //final PdfStamper stp = PdfStamper.createSignature(reader, fout, '\0', tempFile, true);
-							
-
-							//TODO atualizar a marca de agua na segunda assinatura
-
-
-							//reader = new PdfReader(fileToSignContentReader.getContentInputStream());
-
-
-							reader = new PdfReader(fileToSignContentReader.getContentInputStream());
-							
-							
-							final PdfStamper stamper = new PdfStamper(reader, fout);
-							//final PdfStamper stp = PdfStamper.createSignature(reader, fout, '\0', tempFile, true);
-
-							
-
-							
-							final SimpleDateFormat df = new SimpleDateFormat("dd MMM yyyy HH:mm");
-
-					        if (reader != null) {
-								PdfContentByte canvas;
-        						Rectangle pageSize;
-								float x, y;
-								
-								int numPages = reader.getNumberOfPages();
-							
-								// String firstName ="";
-								// String lastName ="";
-								// //Nome Com;pleto
-								// try{
-
-								// 	NodeRef personRef = personService.getPerson(AuthenticationUtil.getRunAsUser());
-								// 	 firstName = nodeService.getProperty(personRef, ContentModel.PROP_FIRSTNAME).toString();
-    							//       lastName = nodeService.getProperty(personRef, ContentModel.PROP_LASTNAME).toString();
-
-
-								// }catch(Exception e){
-								// 	System.out.println("Occoreu um erro aqui " + e);
-								// }
-
-   								 
-								for (int p = 1; p <= reader.getNumberOfPages(); p++) {	
-									pageSize = reader.getPageSize(p);	
-					
-									// left of the page
-									x = pageSize.getRight();
-									// middle of the height
-									y = (pageSize.getTop() + pageSize.getBottom()) / 2;
-									// getting the canvas covering the existing content
-									canvas = stamper.getOverContent(p);
-									// adding some lines to the left
-									ColumnText.showTextAligned(canvas, Element.ALIGN_CENTER,
-										new Phrase("Documento Assinado Digitalmente em https://www.cedsif.gov.mz/sgd/"),
-										x - 25, y, 90);
-									ColumnText.showTextAligned(canvas, Element.ALIGN_CENTER,
-									 	new Phrase("Assinado por " + AuthenticationUtil.getRunAsUser() + " aos " + df.format(new Date())),
-									 	x - 7, y, 90);
-
-										 // Geracao Automatica do QRCode
-
-										PdfContentByte over = stamper.getOverContent(numPages);
-										BarcodeQRCode barcodeQRCode = new BarcodeQRCode(qrCodeString, 1, 1, null);
-										Image qrcodeImage = barcodeQRCode.getImage();
-										qrcodeImage.setAbsolutePosition(480,70);
-										over.addImage(qrcodeImage);
-										//System.out.println("qrCodeString = " + qrCodeString);
-
-								}
-					
-								stamper.close();
-
-
-									NodeRef destinationNode = null;
-									NodeRef originalDoc = null;
-									boolean addAsNewVersion = false;
-									if (signingDTO.getDestinationFolder() == null) {
-										destinationNode = nodeRefToSign;
-										nodeService.addAspect(destinationNode, ContentModel.ASPECT_VERSIONABLE, null);
-										addAsNewVersion = true;
-									} else {
-										originalDoc = nodeRefToSign;
-										destinationNode = createDestinationNode(file.getName(), signingDTO.getDestinationFolder(), nodeRefToSign);
-									}
-								
-									if (destinationNode != null) {
-							            
-						            	final ContentWriter writer = contentService.getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
-							            if (writer != null) {
-								            writer.setEncoding(fileToSignContentReader.getEncoding());
-								            writer.setMimetype("application/pdf");
-								            writer.putContent(file);
-								            file.delete();
-								            
-								            if (fileConverted != null) {
-								            	fileConverted.delete();
-								            }
-							            
-								            nodeService.addAspect(destinationNode, SigningModel.ASPECT_SIGNED, new HashMap<QName, Serializable>());
-								            nodeService.setProperty(destinationNode, SigningModel.PROP_SIGNATUREDATE, new java.util.Date());
-								            nodeService.setProperty(destinationNode, SigningModel.PROP_SIGNEDBY, AuthenticationUtil.getRunAsUser());
-								            
-								            if (newName != null) {
-								            	nodeService.setProperty(destinationNode, ContentModel.PROP_NAME, newName);
-								            }
-								            								            
-								            if (!addAsNewVersion) {
-									            if (!nodeService.hasAspect(originalDoc, SigningModel.ASPECT_ORIGINAL_DOC)) {
-									            	nodeService.addAspect(originalDoc, SigningModel.ASPECT_ORIGINAL_DOC, new HashMap<QName, Serializable>());
-									            }
-									            nodeService.createAssociation(originalDoc, destinationNode, SigningModel.PROP_RELATED_DOC);
-								            }
-								            
-							            }
-						            } else {
-									log.error("[" + fileNameToSign + "] Destination node is not a valid NodeRef.");
-									return new AlfrescoRuntimeException("[" + fileNameToSign + "] Destination node is not a valid NodeRef.");
-								}
-							} else {
-					        	log.error("[" + fileNameToSign + "] Unable to create PDF signature.");
-					        	return new AlfrescoRuntimeException("[" + fileNameToSign + "] Unable to create PDF signature.");
-							}
-				        }
-			        }
-				 } else {
-					log.error("[" + fileNameToSign + "] Unable to get document to sign content.");
-					return new AlfrescoRuntimeException("[" + fileNameToSign + "] Unable to get document to sign content.");
+		        tempDir = new File(alfTempDir.getPath() + File.separatorChar + nodeRefToSign.getId());
+		        tempDir.mkdir();
+		        // Only used when the document to sign is not in a file store
+		        scratchFile = new File(tempDir, fileNameToSign + "_tmp");
+
+				//TODO atualizar a marca de agua na segunda assinatura
+				reader = openPdfReader(fileToSignContentReader, scratchFile);
+
+				// Closing the stamper closes the writer
+				writer.setEncoding(fileToSignContentReader.getEncoding());
+				writer.setMimetype(MimetypeMap.MIMETYPE_PDF);
+				out = new BufferedOutputStream(writer.getContentOutputStream());
+
+				// In append mode, only the watermark is written after the original bytes (incremental update).
+				// A damaged document, whose cross-reference table had to be rebuilt, can't be appended to
+				// and is rewritten as a whole, which also repairs it.
+				final boolean append = appendMode && !reader.isRebuilt();
+				if (appendMode && !append) {
+					log.warn("[" + fileNameToSign + "] Damaged PDF document, rewritten instead of stamped as an incremental update.");
 				}
-				
-				return null;
+				final PdfStamper stamper = new PdfStamper(reader, out, '\0', append);
+
+				final SimpleDateFormat df = new SimpleDateFormat("dd MMM yyyy HH:mm");
+				final Phrase signedOnline = new Phrase("Documento Assinado Digitalmente em https://www.cedsif.gov.mz/sgd/");
+				final Phrase signedBy = new Phrase("Assinado por " + AuthenticationUtil.getRunAsUser() + " aos " + df.format(new Date()));
+
+				final int numPages = reader.getNumberOfPages();
+
+				// The watermark is drawn once for each page size, each page only refers to it
+				final Map<String, PdfTemplate> watermarks = new HashMap<String, PdfTemplate>();
+				for (int p = 1; p <= numPages; p++) {
+					final Rectangle pageSize = reader.getPageSize(p);
+					final PdfContentByte canvas = stamper.getOverContent(p);
+					final String pageSizeKey = pageSize.getLeft() + "_" + pageSize.getBottom() + "_" + pageSize.getWidth() + "_" + pageSize.getHeight();
+					PdfTemplate watermark = watermarks.get(pageSizeKey);
+					if (watermark == null) {
+						watermark = canvas.createTemplate(pageSize.getWidth(), pageSize.getHeight());
+						// right of the page, middle of the height
+						final float x = pageSize.getWidth();
+						final float y = pageSize.getHeight() / 2;
+						ColumnText.showTextAligned(watermark, Element.ALIGN_CENTER, signedOnline, x - 25, y, 90);
+						ColumnText.showTextAligned(watermark, Element.ALIGN_CENTER, signedBy, x - 7, y, 90);
+						watermarks.put(pageSizeKey, watermark);
+					}
+					canvas.addTemplate(watermark, pageSize.getLeft(), pageSize.getBottom());
+				}
+
+				// Geracao Automatica do QRCode, once on the last page
+				final BarcodeQRCode barcodeQRCode = new BarcodeQRCode(qrCodeString, 1, 1, null);
+				final Image qrcodeImage = barcodeQRCode.getImage();
+				qrcodeImage.setAbsolutePosition(480,70);
+				stamper.getOverContent(numPages).addImage(qrcodeImage);
+
+				stamper.close();
+				out = null;
+				reader.close();
+
+				return newName;
 				
 			} else {
 				log.error("[" + fileNameToSign + "] The document has no content.");
-				return new AlfrescoRuntimeException("[" + fileNameToSign + "] The document has no content.");
+				throw new AlfrescoRuntimeException("[" + fileNameToSign + "] The document has no content.");
 			}
 		} catch (ContentIOException e) {
 			log.error("[" + fileNameToSign + "] " + e);
-			return new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
+			throw new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
 		} catch (IOException e) {
 			log.error("[" + fileNameToSign + "] " + e);
-			return new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
+			throw new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
 		} catch (DocumentException e) {
 			log.error("[" + fileNameToSign + "] " + e);
-			return new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
-		//} catch (GeneralSecurityException e) {
-		//	log.error("[" + fileNameToSign + "] " + e);
-		//	return new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
+			throw new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
 		} finally {
+			// Not closed by the stamper when the stamping failed, the stamper itself is left unfinished
+			IOUtils.closeQuietly(out);
+			if (reader != null) {
+				reader.close();
+			}
+			if (scratchFile != null) {
+				scratchFile.delete();
+			}
+			if (fileConverted != null) {
+				fileConverted.delete();
+			}
+			if (cachedConversion != null) {
+				pdfConversionCache.release(cachedConversion);
+			}
             if (tempDir != null) {
                 try {
                     tempDir.delete();
                 } catch (Exception ex) {
                 	log.error("[" + fileNameToSign + "] " + ex);
-                	return new AlfrescoRuntimeException("[" + fileNameToSign + "] " + ex.getMessage(), ex);
                 }
             }
         }
 	}
+
+	/**
+	 * Store a stamped document, as a new version of the signed document or in
+	 * the destination folder.
+	 * 
+	 * Only writes in the repository, this is the part retried on a
+	 * concurrency failure.
+	 * 
+	 * @param stampedDocument stamped document
+	 * @param signingDTO SigningDTO object
+	 */
+	private void storeSignedFile(final StampedDocument stampedDocument, final DigitalSigningDTO signingDTO) {
+		final NodeRef nodeRefToSign = stampedDocument.getNodeRef();
+		final String fileNameToSign = stampedDocument.getFileName();
+
+		try {
+			final NodeRef destinationNode = getDestinationNode(nodeRefToSign, fileNameToSign, signingDTO);
+			final ContentWriter writer = contentService.getWriter(destinationNode, ContentModel.PROP_CONTENT, true);
+			writer.setEncoding(stampedDocument.getContent().getEncoding());
+			writer.setMimetype(MimetypeMap.MIMETYPE_PDF);
+			writer.putContent(stampedDocument.getContent().getReader());
+			setSigned(nodeRefToSign, destinationNode, stampedDocument.getNewName(), signingDTO);
+		} catch (ContentIOException e) {
+			log.error("[" + fileNameToSign + "] " + e);
+			throw new AlfrescoRuntimeException("[" + fileNameToSign + "] " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Get the node receiving the signed document: the signed document itself,
+	 * made versionable, or a new document in the destination folder.
+	 * 
+	 * @param nodeRefToSign NodeRef to sign
+	 * @param fileNameToSign name of the document
+	 * @param signingDTO SigningDTO object
+	 * @return the destination node
+	 */
+	private NodeRef getDestinationNode(final NodeRef nodeRefToSign, final String fileNameToSign, final DigitalSigningDTO signingDTO) {
+		NodeRef destinationNode = null;
+		if (signingDTO.getDestinationFolder() == null) {
+			destinationNode = nodeRefToSign;
+			nodeService.addAspect(destinationNode, ContentModel.ASPECT_VERSIONABLE, null);
+		} else {
+			destinationNode = createDestinationNode(fileNameToSign, signingDTO.getDestinationFolder(), nodeRefToSign);
+		}
+		if (destinationNode == null) {
+			log.error("[" + fileNameToSign + "] Destination node is not a valid NodeRef.");
+			throw new AlfrescoRuntimeException("[" + fileNameToSign + "] Destination node is not a valid NodeRef.");
+		}
+		return destinationNode;
+	}
+
+	/**
+	 * Mark a document as signed, once its signed content is written.
+	 * 
+	 * @param nodeRefToSign signed document
+	 * @param destinationNode node holding the signed content
+	 * @param newName name of the PDF conversion, null if the document was already a PDF
+	 * @param signingDTO SigningDTO object
+	 */
+	private void setSigned(final NodeRef nodeRefToSign, final NodeRef destinationNode, final String newName, final DigitalSigningDTO signingDTO) {
+		nodeService.addAspect(destinationNode, SigningModel.ASPECT_SIGNED, new HashMap<QName, Serializable>());
+		nodeService.setProperty(destinationNode, SigningModel.PROP_SIGNATUREDATE, new java.util.Date());
+		nodeService.setProperty(destinationNode, SigningModel.PROP_SIGNEDBY, AuthenticationUtil.getRunAsUser());
+
+		if (newName != null) {
+			nodeService.setProperty(destinationNode, ContentModel.PROP_NAME, newName);
+		}
+
+		// The background conversion is used or out of date now
+		if (preConversionStore != null) {
+			preConversionStore.remove(nodeRefToSign);
+		}
+
+		if (signingDTO.getDestinationFolder() != null) {
+			if (!nodeService.hasAspect(nodeRefToSign, SigningModel.ASPECT_ORIGINAL_DOC)) {
+				nodeService.addAspect(nodeRefToSign, SigningModel.ASPECT_ORIGINAL_DOC, new HashMap<QName, Serializable>());
+			}
+			nodeService.createAssociation(nodeRefToSign, destinationNode, SigningModel.PROP_RELATED_DOC);
+		}
+	}
+	
+	/**
+	 * Get the PDF conversion made in background, if it has been made from
+	 * the current content of the document and is the recorded one.
+	 * 
+	 * @param nodeRef document to sign
+	 * @param contentReader current content of the document
+	 * @return the PDF conversion, or null if there is no up to date one
+	 */
+	private ContentReader getPreConvertedReader(final NodeRef nodeRef, final ContentReader contentReader) {
+		if (preConversionStore == null || MimetypeMap.MIMETYPE_PDF.equals(contentReader.getMimetype())) {
+			return null;
+		}
+		return preConversionStore.getReader(nodeRef, contentReader.getContentUrl());
+	}
+	
+	/**
+	 * Name of the PDF conversion of a document.
+	 * 
+	 * @param nodeRef converted document
+	 * @return the document name with the pdf extension
+	 */
+	private String getPdfName(final NodeRef nodeRef) {
+		final String originalName = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+		
+		if (originalName.lastIndexOf(".") == -1) {
+			return originalName + ".pdf";
+		} else {
+			return originalName.substring(0, originalName.lastIndexOf(".")) + ".pdf";
+		}
+	}
+	
+	/**
+	 * Open a PDF document with partial reading: the objects are read from the
+	 * file when needed, so the whole document is never loaded in memory.
+	 * 
+	 * A content in a file store is read in place (memory-mapped when possible),
+	 * any other content is first spooled to the scratch file.
+	 * 
+	 * @param contentReader PDF content
+	 * @param scratchFile file used when the content is not in a file store
+	 * @return PDF reader, to close by the caller
+	 * @throws IOException
+	 */
+	private PdfReader openPdfReader(final ContentReader contentReader, final File scratchFile) throws IOException {
+		File pdfFile;
+		if (contentReader instanceof FileContentReader) {
+			pdfFile = ((FileContentReader) contentReader).getFile();
+		} else {
+			contentReader.getContent(scratchFile);
+			pdfFile = scratchFile;
+		}
+		return new PdfReader(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createBestSource(pdfFile.getAbsolutePath())), null);
+	}
 	
 	/**
 	 * XADES signing.
@@ -419,153 +605,527 @@ public class SigningService {
 
 	/**
 	 * Sign file.
-	 * 
+	 *
+	 * In partial success mode, each document is signed in its own transaction,
+	 * several documents in parallel on the signing thread pool, and the
+	 * failures are only reported in the results. Otherwise any failure is
+	 * thrown for the whole batch. When the caller is in a write transaction
+	 * and the documents are signed one after the other, they are stamped
+	 * straight into their content. Otherwise they are stamped first, out of
+	 * any write transaction, and stored together once they are all stamped,
+	 * in the transaction of the caller or in a new one: nothing is stored if
+	 * a document can't be stamped.
+	 *
 	 * @param signingDTO sign informations
-	 * @param pdfSignedFile signed pdf returned
-	 * 
+	 * @return signing result of each document
+	 */
+	public List<SigningResultDTO> sign(final DigitalSigningDTO signingDTO) {
+		return sign(signingDTO, null);
+	}
+
+	/**
+	 * Sign file and report the result of each document as soon as it is known.
+	 *
+	 * @param signingDTO sign informations
+	 * @param listener listener notified of each document result, may be null
+	 * @return signing result of each document
 	 */
-	public void sign(final DigitalSigningDTO signingDTO) {
+	public List<SigningResultDTO> sign(final DigitalSigningDTO signingDTO, final SigningListener listener) {
+		final List<SigningResultDTO> results = new ArrayList<SigningResultDTO>();
 		if (signingDTO != null) {
+			Security.addProvider(new BouncyCastleProvider());
+			final File alfTempDir = TempFileProvider.getTempDir();
 			
-			try {
-				Security.addProvider(new BouncyCastleProvider());
-				final File alfTempDir = TempFileProvider.getTempDir();
+			if (alfTempDir != null) {
+				// The key and the documents are read in the transaction of the caller, or in a read-only one
+				final Map<NodeRef, String> filesToSign = new LinkedHashMap<NodeRef, String>();
+				final KeyStoreCache.CachedKey unlockedKey = retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<KeyStoreCache.CachedKey>() {
+					public KeyStoreCache.CachedKey execute() throws Throwable {
+						filesToSign.clear();
+						results.clear();
+						return prepareSigning(signingDTO, filesToSign, results);
+					}
+				}, true, false);
 				
-				if (alfTempDir != null) {
-					final String keyType = (String) nodeService.getProperty(signingDTO.getKeyFile(), SigningModel.PROP_KEYTYPE);
+				if (unlockedKey != null) {
 					
-					if (SigningConstants.KEY_TYPE_X509.equals(keyType)) {
-						// Sign the file
-						final KeyStore ks = KeyStore.getInstance("pkcs12");
-						final ContentReader keyContentReader = getReader(signingDTO.getKeyFile());
-						
-						if (keyContentReader != null && ks != null && signingDTO.getKeyPassword() != null) {
-							
-							final List<AlfrescoRuntimeException> errors = new ArrayList<AlfrescoRuntimeException>();
-							
-							// Get crypted secret key and decrypt it
-							final Serializable encryptedPropertyValue = nodeService.getProperty(signingDTO.getKeyFile(), SigningModel.PROP_KEYCRYPTSECRET);
-							final Serializable decryptedPropertyValue = metadataEncryptor.decrypt(SigningModel.PROP_KEYCRYPTSECRET, encryptedPropertyValue);
-							
-							// Decrypt key content
-							InputStream decryptedKeyContent;
-							try {
-								decryptedKeyContent = CryptUtils.decrypt(decryptedPropertyValue.toString(), keyContentReader.getContentInputStream());
-							} catch (Throwable e) {
-								log.error(e);
-								throw new AlfrescoRuntimeException(e.getMessage(), e);
+					final List<String> errors = new ArrayList<String>();
+					
+					final KeyStore ks = unlockedKey.getKeyStore();
+					final String alias = unlockedKey.getAlias();
+					final PrivateKey key = unlockedKey.getPrivateKey();
+					final Certificate[] chain = unlockedKey.getChain();
+					
+					// The documents which can't be signed are reported as failed
+					if (listener != null) {
+						listener.signingStarted(filesToSign.size(), new ArrayList<SigningResultDTO>(results));
+					}
+
+					// Only partial success commits each document on its own, otherwise the caller's transaction is kept
+					final TxnReadState callerTransaction = AlfrescoTransactionSupport.getTransactionReadState();
+					final boolean parallel = signingThreadPool != null && filesToSign.size() > 1;
+					if (signingDTO.isPartialSuccess() && parallel) {
+						results.addAll(signInParallel(filesToSign, signingDTO, alfTempDir, alias, ks, key, chain, listener));
+					} else if (signingDTO.isPartialSuccess()) {
+						for (Map.Entry<NodeRef, String> fileToSign : filesToSign.entrySet()) {
+							// Own transaction, a retry only stores this document again
+							final SigningResultDTO signingResult = signInTransaction(fileToSign.getKey(), fileToSign.getValue(), signingDTO, alfTempDir, alias, ks, key, chain);
+							results.add(signingResult);
+							if (listener != null) {
+								listener.documentSigned(signingResult);
 							}
-							
-							ks.load(new ByteArrayInputStream(IOUtils.toByteArray(decryptedKeyContent)), signingDTO.getKeyPassword().toCharArray());
-							
-							final String alias = (String) nodeService.getProperty(signingDTO.getKeyFile(), SigningModel.PROP_KEYALIAS);
-							
-							final PrivateKey key = (PrivateKey)ks.getKey(alias, signingDTO.getKeyPassword().toCharArray());
-							final Certificate[] chain = ks.getCertificateChain(alias);
-							
-							final Iterator<NodeRef> itFilesToSign = signingDTO.getFilesToSign().iterator();
-							while (itFilesToSign.hasNext()) {
-								final NodeRef nodeRefToSign = itFilesToSign.next();
-								AlfrescoRuntimeException exception = null;
-								final String fileToSignName = (String) nodeService.getProperty(nodeRefToSign, ContentModel.PROP_NAME);
-
-								
-								// PADES
-								 if(fileToSignName.endsWith(".pdf")){
-									exception = signPDFFile(nodeRefToSign, signingDTO, alfTempDir, alias, ks, key, chain);
-								}
-								if (exception != null) {
-									// Error on the file process
-									errors.add(exception);
-								}
+						}
+					} else if (callerTransaction == TxnReadState.TXN_READ_WRITE) {
+						// Already in a write transaction, which sees the documents not committed yet: stamped straight into the signed documents
+						for (Map.Entry<NodeRef, String> fileToSign : filesToSign.entrySet()) {
+							final AlfrescoRuntimeException exception = signPDFFile(fileToSign.getKey(), signingDTO, alfTempDir, alias, ks, key, chain);
+							final SigningResultDTO signingResult = new SigningResultDTO(fileToSign.getKey(), fileToSign.getValue(), exception != null ? exception.getMessage() : null);
+							results.add(signingResult);
+							if (listener != null) {
+								listener.documentSigned(signingResult);
 							}
-						
-							if (errors != null && errors.size() > 0) {
-								final StringBuffer allErrors = new StringBuffer();
-								final Iterator<AlfrescoRuntimeException> itErrors = errors.iterator();
-								if (errors.size() > 1) {
-									allErrors.append("\n");
-								}
-								while (itErrors.hasNext()) {
-									final AlfrescoRuntimeException alfrescoRuntimeException = itErrors.next();
-									allErrors.append(alfrescoRuntimeException.getMessage());
-									if (itErrors.hasNext()) {
-										allErrors.append("\n");
-									}
-								}
-								throw new RuntimeException(allErrors.toString());
+						}
+					} else {
+						// Stamped out of any write transaction, then stored together. The signing threads can't join the transaction of the caller
+						results.addAll(stampAndStore(filesToSign, parallel && callerTransaction == TxnReadState.TXN_NONE, signingDTO, alfTempDir, alias, ks, key, chain, listener));
+					}
+
+					for (SigningResultDTO signingResult : results) {
+						if (!signingResult.isSigned()) {
+							// Error on the file process
+							errors.add(signingResult.getErrorMessage());
+						}
+					}
+
+					// In partial success mode, the errors are only reported in the results
+					if (!signingDTO.isPartialSuccess() && errors.size() > 0) {
+						final StringBuffer allErrors = new StringBuffer();
+						final Iterator<String> itErrors = errors.iterator();
+						if (errors.size() > 1) {
+							allErrors.append("\n");
+						}
+						while (itErrors.hasNext()) {
+							allErrors.append(itErrors.next());
+							if (itErrors.hasNext()) {
+								allErrors.append("\n");
 							}
-						
-						} else {
-							log.error("Unable to get key content, key type or key password.");
-							throw new AlfrescoRuntimeException("Unable to get key content, key type or key password.");
 						}
+						throw new RuntimeException(allErrors.toString());
 					}
-				} else {
-					log.error("Unable to get temporary directory.");
-					throw new AlfrescoRuntimeException("Unable to get temporary directory.");
 				}
-			} catch (KeyStoreException e) {
-				log.error(e);
-				throw new AlfrescoRuntimeException(e.getMessage(), e);
-			} catch (NoSuchAlgorithmException e) {
-				log.error(e);
-				throw new AlfrescoRuntimeException(e.getMessage(), e);
-			} catch (CertificateException e) {
-				log.error(e);
-				throw new AlfrescoRuntimeException(e.getMessage(), e);
-			} catch (IOException e) {
-				log.error(e);
-				throw new AlfrescoRuntimeException(e.getMessage(), e);
-			} catch (UnrecoverableKeyException e) {
-				log.error(e);
-				throw new AlfrescoRuntimeException(e.getMessage(), e);
+			} else {
+				log.error("Unable to get temporary directory.");
+				throw new AlfrescoRuntimeException("Unable to get temporary directory.");
 			}
 		} else {
 			log.error("No object with signing informations.");
 			throw new AlfrescoRuntimeException("No object with signing informations.");
 		}
+
+		return results;
 	}
-	
-	
+
+	/**
+	 * Unlock the signing key and select the documents to sign.
+	 * 
+	 * @param signingDTO sign informations
+	 * @param filesToSign map receiving the documents to sign and their names
+	 * @param skippedResults list receiving a failed result for each document which can't be signed
+	 * @return the unlocked key, null if the key is not a X509 key
+	 */
+	private KeyStoreCache.CachedKey prepareSigning(final DigitalSigningDTO signingDTO, final Map<NodeRef, String> filesToSign, final List<SigningResultDTO> skippedResults) {
+		try {
+			final String keyType = (String) nodeService.getProperty(signingDTO.getKeyFile(), SigningModel.PROP_KEYTYPE);
+			
+			if (SigningConstants.KEY_TYPE_X509.equals(keyType)) {
+				// Sign the file
+				final KeyStoreCache.CachedKey unlockedKey = getUnlockedKey(signingDTO.getKeyFile(), signingDTO.getKeyPassword());
+				
+				if (unlockedKey != null) {
+					filesToSign.putAll(selectFilesToSign(signingDTO.getFilesToSign(), skippedResults));
+					return unlockedKey;
+				} else {
+					log.error("Unable to get key content, key type or key password.");
+					throw new AlfrescoRuntimeException("Unable to get key content, key type or key password.");
+				}
+			}
+			return null;
+		} catch (KeyStoreException e) {
+			log.error(e);
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		} catch (NoSuchAlgorithmException e) {
+			log.error(e);
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		} catch (CertificateException e) {
+			log.error(e);
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		} catch (IOException e) {
+			log.error(e);
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		} catch (UnrecoverableKeyException e) {
+			log.error(e);
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Select the documents to sign: PDF documents, and documents already
+	 * converted in background or which can be converted in PDF.
+	 * 
+	 * @param nodeRefs documents of the request
+	 * @param skippedResults list receiving a failed result for each document which can't be signed
+	 * @return documents to sign and their names, each document once (the same document must not be stamped twice concurrently)
+	 */
+	private Map<NodeRef, String> selectFilesToSign(final List<NodeRef> nodeRefs, final List<SigningResultDTO> skippedResults) {
+		final Map<NodeRef, String> filesToSign = new LinkedHashMap<NodeRef, String>();
+		final Iterator<NodeRef> itFilesToSign = nodeRefs.iterator();
+		while (itFilesToSign.hasNext()) {
+			final NodeRef nodeRefToSign = itFilesToSign.next();
+			if (filesToSign.containsKey(nodeRefToSign)) {
+				continue;
+			}
+			final String fileToSignName = (String) nodeService.getProperty(nodeRefToSign, ContentModel.PROP_NAME);
+			final ContentReader contentReader = getReader(nodeRefToSign);
+
+			if (contentReader == null || !contentReader.exists()) {
+				log.error("[" + fileToSignName + "] The document has no content.");
+				skippedResults.add(new SigningResultDTO(nodeRefToSign, fileToSignName, "[" + fileToSignName + "] The document has no content."));
+			} else if (MimetypeMap.MIMETYPE_PDF.equals(contentReader.getMimetype())
+					|| getPreConvertedReader(nodeRefToSign, contentReader) != null
+					|| contentTransformerRegistry.getTransformer(contentReader.getMimetype(), contentReader.getSize(), MimetypeMap.MIMETYPE_PDF, new TransformationOptions()) != null) {
+				filesToSign.put(nodeRefToSign, fileToSignName);
+			} else {
+				log.error("[" + fileToSignName + "] No suitable converter found to convert the document in PDF.");
+				skippedResults.add(new SigningResultDTO(nodeRefToSign, fileToSignName, "[" + fileToSignName + "] No suitable converter found to convert the document in PDF."));
+			}
+		}
+		return filesToSign;
+	}
+
+	/**
+	 * Get the unlocked key of a key file, from the key store cache when the
+	 * same key content has been unlocked recently with the same password.
+	 *
+	 * @param keyFile key file
+	 * @param keyPassword key password
+	 * @return the unlocked key, or null if the key content or the password is missing
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws CertificateException
+	 * @throws IOException
+	 * @throws UnrecoverableKeyException
+	 */
+	private KeyStoreCache.CachedKey getUnlockedKey(final NodeRef keyFile, final String keyPassword) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, IOException, UnrecoverableKeyException {
+		final ContentReader keyContentReader = getReader(keyFile);
+		if (keyContentReader == null || keyPassword == null) {
+			return null;
+		}
+
+		final String alias = (String) nodeService.getProperty(keyFile, SigningModel.PROP_KEYALIAS);
+
+		if (keyStoreCache != null) {
+			final KeyStoreCache.CachedKey cachedKey = keyStoreCache.get(keyFile, keyContentReader.getContentUrl(), alias, keyPassword);
+			if (cachedKey != null) {
+				return cachedKey;
+			}
+		}
+
+		final KeyStore ks = KeyStore.getInstance("pkcs12");
+
+		// Get crypted secret key and decrypt it
+		final Serializable encryptedPropertyValue = nodeService.getProperty(keyFile, SigningModel.PROP_KEYCRYPTSECRET);
+		final Serializable decryptedPropertyValue = metadataEncryptor.decrypt(SigningModel.PROP_KEYCRYPTSECRET, encryptedPropertyValue);
+
+		// Decrypt key content
+		InputStream decryptedKeyContent;
+		try {
+			decryptedKeyContent = CryptUtils.decrypt(decryptedPropertyValue.toString(), keyContentReader.getContentInputStream());
+		} catch (Throwable e) {
+			log.error(e);
+			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		}
+
+		ks.load(new ByteArrayInputStream(IOUtils.toByteArray(decryptedKeyContent)), keyPassword.toCharArray());
+
+		final PrivateKey key = (PrivateKey)ks.getKey(alias, keyPassword.toCharArray());
+		final Certificate[] chain = ks.getCertificateChain(alias);
+
+		if (keyStoreCache != null) {
+			return keyStoreCache.put(keyFile, keyContentReader.getContentUrl(), alias, keyPassword, ks, key, chain);
+		}
+		return new KeyStoreCache.CachedKey(keyFile, ks, alias, key, chain, 0L);
+	}
+
+	/**
+	 * Sign documents on the signing thread pool.
+	 *
+	 * Each worker runs as the current user and signs one document in its own
+	 * transactions, with its own PdfReader and PdfStamper.
+	 *
+	 * @param filesToSign documents to sign and their names
+	 * @param signingDTO SigningDTO object
+	 * @param alfTempDir Alfresco temporary directory
+	 * @param alias Sign Alias to use
+	 * @param ks KeyStore
+	 * @param key Key
+	 * @param chain Chain
+	 * @param listener listener notified of each document result, may be null
+	 * @return signing result of each document, in the order of filesToSign
+	 */
+	private List<SigningResultDTO> signInParallel(final Map<NodeRef, String> filesToSign, final DigitalSigningDTO signingDTO, final File alfTempDir, final String alias, final KeyStore ks, final PrivateKey key, final Certificate[] chain, final SigningListener listener) {
+		return runInParallel(filesToSign, new DocumentTask<SigningResultDTO>() {
+			public SigningResultDTO run(final NodeRef nodeRef, final String fileName) {
+				final SigningResultDTO signingResult = signInTransaction(nodeRef, fileName, signingDTO, alfTempDir, alias, ks, key, chain);
+				if (listener != null) {
+					listener.documentSigned(signingResult);
+				}
+				return signingResult;
+			}
+
+			public SigningResultDTO failed(final NodeRef nodeRef, final String fileName, final String errorMessage) {
+				final SigningResultDTO signingResult = new SigningResultDTO(nodeRef, fileName, errorMessage);
+				if (listener != null) {
+					listener.documentSigned(signingResult);
+				}
+				return signingResult;
+			}
+		});
+	}
+
+	/**
+	 * Stamp documents, on the signing thread pool or one after the other,
+	 * then store them all in the transaction of the caller or in a new one.
+	 *
+	 * Each document is stamped in the transaction of the caller if any, only
+	 * in its own read-only transaction otherwise, and staged.
+	 * The documents are only stored once they are all stamped, so nothing is
+	 * stored when one of them fails, and a retry of the storage does not
+	 * stamp them again.
+	 *
+	 * @param filesToSign documents to sign and their names
+	 * @param parallel true to stamp the documents on the signing thread pool, only without transaction of the caller
+	 * @param signingDTO SigningDTO object
+	 * @param alfTempDir Alfresco temporary directory
+	 * @param alias Sign Alias to use
+	 * @param ks KeyStore
+	 * @param key Key
+	 * @param chain Chain
+	 * @param listener listener notified of each document result, may be null
+	 * @return signing result of each document, the failed documents only if a document could not be stamped
+	 */
+	private List<SigningResultDTO> stampAndStore(final Map<NodeRef, String> filesToSign, final boolean parallel, final DigitalSigningDTO signingDTO, final File alfTempDir, final String alias, final KeyStore ks, final PrivateKey key, final Certificate[] chain, final SigningListener listener) {
+		final DocumentTask<StampedDocument> stampTask = new DocumentTask<StampedDocument>() {
+			public StampedDocument run(final NodeRef nodeRef, final String fileName) {
+				try {
+					return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<StampedDocument>() {
+						public StampedDocument execute() throws Throwable {
+							return stageSignedFile(nodeRef, alfTempDir, alias, ks, key, chain);
+						}
+					}, true, false);
+				} catch (RuntimeException e) {
+					return new StampedDocument(nodeRef, fileName, e.getMessage());
+				}
+			}
+
+			public StampedDocument failed(final NodeRef nodeRef, final String fileName, final String errorMessage) {
+				return new StampedDocument(nodeRef, fileName, errorMessage);
+			}
+		};
+		final List<StampedDocument> stampedDocuments;
+		if (parallel) {
+			stampedDocuments = runInParallel(filesToSign, stampTask);
+		} else {
+			stampedDocuments = new ArrayList<StampedDocument>(filesToSign.size());
+			for (Map.Entry<NodeRef, String> fileToSign : filesToSign.entrySet()) {
+				stampedDocuments.add(stampTask.run(fileToSign.getKey(), fileToSign.getValue()));
+			}
+		}
+
+		try {
+			final List<SigningResultDTO> results = new ArrayList<SigningResultDTO>(stampedDocuments.size());
+			for (StampedDocument stampedDocument : stampedDocuments) {
+				if (!stampedDocument.isStamped()) {
+					results.add(new SigningResultDTO(stampedDocument.getNodeRef(), stampedDocument.getFileName(), stampedDocument.getErrorMessage()));
+				}
+			}
+			if (!results.isEmpty()) {
+				return results;
+			}
+
+			// Joins the transaction of the caller if any, a retry only stores the documents again
+			retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+				public Void execute() throws Throwable {
+					for (StampedDocument stampedDocument : stampedDocuments) {
+						storeSignedFile(stampedDocument, signingDTO);
+					}
+					return null;
+				}
+			}, false, false);
+
+			for (StampedDocument stampedDocument : stampedDocuments) {
+				final SigningResultDTO signingResult = new SigningResultDTO(stampedDocument.getNodeRef(), stampedDocument.getFileName(), null);
+				results.add(signingResult);
+				if (listener != null) {
+					listener.documentSigned(signingResult);
+				}
+			}
+			return results;
+		} finally {
+			for (StampedDocument stampedDocument : stampedDocuments) {
+				stampedDocument.discard();
+			}
+		}
+	}
+
+	/**
+	 * Run a task for each document on the signing thread pool, as the current user.
+	 *
+	 * @param filesToSign documents and their names
+	 * @param task task run for each document
+	 * @return result of each document, in the order of filesToSign
+	 */
+	private <T> List<T> runInParallel(final Map<NodeRef, String> filesToSign, final DocumentTask<T> task) {
+		final String runAsUser = AuthenticationUtil.getRunAsUser();
+
+		final Map<NodeRef, Future<T>> futures = new LinkedHashMap<NodeRef, Future<T>>();
+		for (final Map.Entry<NodeRef, String> fileToSign : filesToSign.entrySet()) {
+			futures.put(fileToSign.getKey(), signingThreadPool.submit(new Callable<T>() {
+				public T call() throws Exception {
+					return AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<T>() {
+						public T doWork() throws Exception {
+							return task.run(fileToSign.getKey(), fileToSign.getValue());
+						}
+					}, runAsUser);
+				}
+			}));
+		}
+
+		final List<T> results = new ArrayList<T>(futures.size());
+		for (Map.Entry<NodeRef, Future<T>> future : futures.entrySet()) {
+			try {
+				results.add(future.getValue().get());
+			} catch (InterruptedException e) {
+				for (Future<T> pending : futures.values()) {
+					pending.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				log.error("Signing interrupted.");
+				throw new AlfrescoRuntimeException("Signing interrupted.", e);
+			} catch (ExecutionException e) {
+				final String fileName = filesToSign.get(future.getKey());
+				log.error("[" + fileName + "] " + e.getCause());
+				results.add(task.failed(future.getKey(), fileName, "[" + fileName + "] " + e.getCause().getMessage()));
+			}
+		}
+
+		return results;
+	}
+
+	/**
+	 * Sign one document in new transactions.
+	 *
+	 * The document is stamped in a read-only transaction, then stored in a
+	 * short write transaction: a concurrency failure only retries the
+	 * storage, not the conversion and the stamping. Nothing is written if
+	 * the document can't be signed.
+	 *
+	 * @param nodeRefToSign NodeRef to sign
+	 * @param fileName name of the document
+	 * @param signingDTO SigningDTO object
+	 * @param alfTempDir Alfresco temporary directory
+	 * @param alias Sign Alias to use
+	 * @param ks KeyStore
+	 * @param key Key
+	 * @param chain Chain
+	 * @return signing result of the document
+	 */
+	private SigningResultDTO signInTransaction(final NodeRef nodeRefToSign, final String fileName, final DigitalSigningDTO signingDTO, final File alfTempDir, final String alias, final KeyStore ks, final PrivateKey key, final Certificate[] chain) {
+		StampedDocument stampedDocument = null;
+		try {
+			stampedDocument = retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<StampedDocument>() {
+				public StampedDocument execute() throws Throwable {
+					return stageSignedFile(nodeRefToSign, alfTempDir, alias, ks, key, chain);
+				}
+			}, true, true);
+
+			final StampedDocument documentToStore = stampedDocument;
+			retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+				public Void execute() throws Throwable {
+					storeSignedFile(documentToStore, signingDTO);
+					return null;
+				}
+			}, false, true);
+			return new SigningResultDTO(nodeRefToSign, fileName, null);
+		} catch (RuntimeException e) {
+			return new SigningResultDTO(nodeRefToSign, fileName, e.getMessage());
+		} finally {
+			if (stampedDocument != null) {
+				stampedDocument.discard();
+			}
+		}
+	}
+
+
 	public List<VerifyResultDTO> verifySign(final VerifyingDTO verifyingDTO) {
 		final List<VerifyResultDTO> result = new ArrayList<VerifyResultDTO>();
+		File scratchFile = null;
+		PdfReader reader = null;
 		try {
 			if (verifyingDTO != null) {
-				final String keyType = (String) nodeService.getProperty(verifyingDTO.getKeyFile(), SigningModel.PROP_KEYTYPE);
-				
-				final KeyStore ks = KeyStore.getInstance(keyType);
-				final ContentReader keyContentReader = getReader(verifyingDTO.getKeyFile());
-				if (keyContentReader != null && ks != null  && verifyingDTO.getKeyPassword() != null) {
-					
-					// Get crypted secret key and decrypt it
-					final Serializable encryptedPropertyValue = nodeService.getProperty(verifyingDTO.getKeyFile(), SigningModel.PROP_KEYCRYPTSECRET);
-					final Serializable decryptedPropertyValue = metadataEncryptor.decrypt(SigningModel.PROP_KEYCRYPTSECRET, encryptedPropertyValue);
-					
-					// Decrypt key content
-					final InputStream decryptedKeyContent = CryptUtils.decrypt(decryptedPropertyValue.toString(), keyContentReader.getContentInputStream());
-					
-					ks.load(new ByteArrayInputStream(IOUtils.toByteArray(decryptedKeyContent)), verifyingDTO.getKeyPassword().toCharArray());
-					
+				// Without key, the signing certificates are verified against the trust store
+				if (verifyingDTO.isKeyless() || getUnlockedKey(verifyingDTO.getKeyFile(), verifyingDTO.getKeyPassword()) != null) {
 					
 					final ContentReader fileToVerifyContentReader = getReader(verifyingDTO.getFileToVerify());
 					if (fileToVerifyContentReader != null) {
-						final PdfReader reader = new PdfReader(fileToVerifyContentReader.getContentInputStream());
+						// Results of the same content and trust store already computed
+						final String trustStoreVersion = verificationTrustStore != null ? verificationTrustStore.getVersion() : "none";
+						if (verifyingDTO.isKeyless() && verificationResultStore != null) {
+							final List<VerifyResultDTO> storedResult = verificationResultStore.get(verifyingDTO.getFileToVerify(), fileToVerifyContentReader.getContentUrl(), trustStoreVersion);
+							if (storedResult != null) {
+								return storedResult;
+							}
+						}
+						
+						scratchFile = TempFileProvider.createTempFile("digitalSigning-verify-", ".pdf");
+						reader = openPdfReader(fileToVerifyContentReader, scratchFile);
 						if (reader != null) {
 							final AcroFields af = reader.getAcroFields();
 							if (af != null) {
 								final ArrayList<String> names = af.getSignatureNames();
 								if (names != null) {
-									for (int k = 0; k < names.size(); ++k) {
+									// The document is read once for all the signatures, checked in parallel
+									final KeyStore trustStore = verifyingDTO.isKeyless() && verificationTrustStore != null ? verificationTrustStore.getKeyStore() : null;
+									for (SignatureVerifier.VerifiedSignature signature : signatureVerifier.verify(reader, names, trustStore)) {
 										final VerifyResultDTO verifyResultDTO = new VerifyResultDTO();
-										final String name = (String)names.get(k);
+										final String name = signature.getName();
 										verifyResultDTO.setName(name);
 										verifyResultDTO.setSignatureCoversWholeDocument(af.signatureCoversWholeDocument(name));
 										verifyResultDTO.setRevision(af.getRevision(name));
 										verifyResultDTO.setTotalRevision(af.getTotalRevisions());
 									   
-										final PdfPKCS7 pk = af.verifySignature(name);
-										if (pk != null) {
+										final PdfPKCS7 pk = signature.getPk();
+										if (verifyingDTO.isKeyless()) {
+											final List<VerificationException> errors = getCertificateErrors(signature);
+											final List<String> failReasons = new ArrayList<String>(errors.size() + 1);
+											if (!signature.isIntact()) {
+												failReasons.add("The document has been modified after the signature.");
+											}
+											for (VerificationException error : errors) {
+												failReasons.add(error.getMessage());
+											}
+											verifyResultDTO.setIsSignValid(signature.isIntact() && errors.isEmpty());
+											verifyResultDTO.setFailReason(StringUtils.join(failReasons, "; "));
+											verifyResultDTO.setSignSubject(pk.getSigningCertificate().getSubjectDN().getName());
+											verifyResultDTO.setSignReason(pk.getReason());
+											verifyResultDTO.setSignLocation(pk.getLocation());
+											verifyResultDTO.setIsDocumentModified(!signature.isIntact());
+											verifyResultDTO.setSignDate(pk.getSignDate());
+											verifyResultDTO.setSignInformationVersion(pk.getSigningInfoVersion());
+											verifyResultDTO.setSignVersion(pk.getVersion());
+											verifyResultDTO.setSignName(pk.getSignName());
+											
+											result.add(verifyResultDTO);
+										} else {
 								            @SuppressWarnings("unused")
 											final Calendar cal = pk.getSignDate();
 								            @SuppressWarnings("unused")
@@ -585,21 +1145,24 @@ public class SigningService {
 								            	verifyResultDTO.setIsSignValid(true);
 								            } else {
 								            	verifyResultDTO.setIsSignValid(false);
+								            	verifyResultDTO.setFailReason(errors.get(0).getMessage());
 								            }
+								            verifyResultDTO.setSignReason(pk.getReason());
+								            verifyResultDTO.setSignLocation(pk.getLocation());
 								            
 								            verifyResultDTO.setSignSubject(pk.getSigningCertificate().getSubjectDN().getName());           
-											verifyResultDTO.setIsDocumentModified(!pk.verify());
+											verifyResultDTO.setIsDocumentModified(!signature.isIntact());
 											verifyResultDTO.setSignDate(pk.getSignDate());
 											verifyResultDTO.setSignInformationVersion(pk.getSigningInfoVersion());
 											verifyResultDTO.setSignVersion(pk.getVersion());
 											verifyResultDTO.setSignName(pk.getSignName());
 											
 											result.add(verifyResultDTO);
-										} else {
-											log.error("Unable to verify signature.");
-											throw new AlfrescoRuntimeException("Unable to verify signature.");
 										}
 									}
+									if (verifyingDTO.isKeyless() && verificationResultStore != null) {
+										verificationResultStore.put(verifyingDTO.getFileToVerify(), fileToVerifyContentReader.getContentUrl(), trustStoreVersion, result);
+									}
 								} else {
 									log.error("Unable to get signature names.");
 									throw new AlfrescoRuntimeException("Unable to get signature names.");
@@ -642,11 +1205,31 @@ public class SigningService {
 		} catch (Throwable e) {
 			log.error(e);
 			throw new AlfrescoRuntimeException(e.getMessage(), e);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			}
+			if (scratchFile != null) {
+				scratchFile.delete();
+			}
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Get the errors of the certificate chain of a signature, checked against the trust store.
+	 * 
+	 * @param signature verified signature
+	 * @return the verification errors, empty if the chain is trusted
+	 */
+	private List<VerificationException> getCertificateErrors(final SignatureVerifier.VerifiedSignature signature) {
+		if (signature.getCertificateErrors() == null) {
+			return Collections.singletonList(new VerificationException(signature.getPk().getSigningCertificate(), "No verification trust store."));
+		}
+		return signature.getCertificateErrors();
+	}
+	
 
 	
 	
@@ -1071,7 +1654,202 @@ public class SigningService {
     {
         this.serviceRegistry = serviceRegistry;
     }
-    
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+
+	/**
+	 * @param signingThreadPool the signingThreadPool to set
+	 */
+	public final void setSigningThreadPool(ExecutorService signingThreadPool) {
+		this.signingThreadPool = signingThreadPool;
+	}
+
+	/**
+	 * @param keyStoreCache the keyStoreCache to set
+	 */
+	public final void setKeyStoreCache(KeyStoreCache keyStoreCache) {
+		this.keyStoreCache = keyStoreCache;
+	}
+
+	/**
+	 * @param verificationTrustStore the verificationTrustStore to set
+	 */
+	public final void setVerificationTrustStore(VerificationTrustStore verificationTrustStore) {
+		this.verificationTrustStore = verificationTrustStore;
+	}
+
+	/**
+	 * @param signatureVerifier the signatureVerifier to set
+	 */
+	public final void setSignatureVerifier(SignatureVerifier signatureVerifier) {
+		this.signatureVerifier = signatureVerifier;
+	}
+
+	/**
+	 * @param verificationResultStore the verificationResultStore to set
+	 */
+	public final void setVerificationResultStore(VerificationResultStore verificationResultStore) {
+		this.verificationResultStore = verificationResultStore;
+	}
+
+	/**
+	 * @param preConversionStore the preConversionStore to set
+	 */
+	public final void setPreConversionStore(PreConversionStore preConversionStore) {
+		this.preConversionStore = preConversionStore;
+	}
+
+	/**
+	 * @param appendMode the appendMode to set
+	 */
+	public final void setAppendMode(boolean appendMode) {
+		this.appendMode = appendMode;
+	}
+
+	/**
+	 * @param pdfConversionCache the pdfConversionCache to set
+	 */
+	public final void setPdfConversionCache(PdfConversionCache pdfConversionCache) {
+		this.pdfConversionCache = pdfConversionCache;
+	}
+
 	
 
+	
+	/**
+	 * Work done on one document of a batch, on the signing thread pool.
+	 */
+	private interface DocumentTask<T> {
+
+		/**
+		 * @param nodeRef document
+		 * @param fileName name of the document
+		 * @return result of the document
+		 */
+		T run(NodeRef nodeRef, String fileName);
+
+		/**
+		 * @param nodeRef document
+		 * @param fileName name of the document
+		 * @param errorMessage error thrown by the task
+		 * @return result of a document whose task threw an error
+		 */
+		T failed(NodeRef nodeRef, String fileName, String errorMessage);
+	}
+
+	/**
+	 * Document stamped and staged in the temporary content store, waiting to
+	 * be stored in the repository.
+	 */
+	private static final class StampedDocument {
+
+		/**
+		 * Signed document.
+		 */
+		private final NodeRef nodeRef;
+
+		/**
+		 * Name of the signed document.
+		 */
+		private final String fileName;
+
+		/**
+		 * Name of the PDF conversion, null if the document was already a PDF.
+		 */
+		private final String newName;
+
+		/**
+		 * Stamped content, null if the document could not be stamped.
+		 */
+		private final ContentReader content;
+
+		/**
+		 * Error message, null if the document has been stamped.
+		 */
+		private final String errorMessage;
+
+		/**
+		 * @param nodeRef signed document
+		 * @param fileName name of the signed document
+		 * @param newName name of the PDF conversion
+		 * @param content stamped content
+		 */
+		private StampedDocument(final NodeRef nodeRef, final String fileName, final String newName, final ContentReader content) {
+			this.nodeRef = nodeRef;
+			this.fileName = fileName;
+			this.newName = newName;
+			this.content = content;
+			this.errorMessage = null;
+		}
+
+		/**
+		 * @param nodeRef document which could not be stamped
+		 * @param fileName name of the document
+		 * @param errorMessage error message
+		 */
+		private StampedDocument(final NodeRef nodeRef, final String fileName, final String errorMessage) {
+			this.nodeRef = nodeRef;
+			this.fileName = fileName;
+			this.newName = null;
+			this.content = null;
+			this.errorMessage = errorMessage;
+		}
+
+		/**
+		 * @return the nodeRef
+		 */
+		public NodeRef getNodeRef() {
+			return nodeRef;
+		}
+
+		/**
+		 * @return the fileName
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+
+		/**
+		 * @return the newName
+		 */
+		public String getNewName() {
+			return newName;
+		}
+
+		/**
+		 * @return the content
+		 */
+		public ContentReader getContent() {
+			return content;
+		}
+
+		/**
+		 * @return the errorMessage
+		 */
+		public String getErrorMessage() {
+			return errorMessage;
+		}
+
+		/**
+		 * @return true if the document has been stamped
+		 */
+		public boolean isStamped() {
+			return errorMessage == null;
+		}
+
+		/**
+		 * Delete the staged content, without waiting for the temporary files cleaner.
+		 */
+		public void discard() {
+			if (content instanceof FileContentReader) {
+				((FileContentReader) content).getFile().delete();
+			}
+		}
 	}
+}
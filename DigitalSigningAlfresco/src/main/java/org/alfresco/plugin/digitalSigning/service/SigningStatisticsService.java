@@ -0,0 +1,295 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.attributes.AttributeService.AttributeQueryCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.cmr.site.SiteService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Number of signed documents by day, for all the repository, by site, by
+ * signer and by site and signer.
+ *
+ * The counters are kept in the attribute service, one attribute by scope and
+ * day, so a count over some days reads one attribute by day. They are
+ * increased when a document is signed for the first time, a document signed
+ * again being counted once, in their own transaction after the signing
+ * transaction is committed, so concurrent signings only retry the counter
+ * update. The buckets older than the retention are removed when the same
+ * scope is increased, from the oldest day kept by the scope.
+ */
+public class SigningStatisticsService implements NodeServicePolicies.OnUpdatePropertiesPolicy {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(SigningStatisticsService.class);
+
+	/**
+	 * First key of the counters in the attribute service.
+	 */
+	private static final String ATTRIBUTE_KEY = "digitalSigning.statistics";
+
+	/**
+	 * First key of the oldest day kept by each scope in the attribute service.
+	 */
+	private static final String OLDEST_DAY_KEY = "digitalSigning.statistics.oldestDay";
+
+	/**
+	 * Milliseconds in a day.
+	 */
+	private static final long DAY_MS = 24L * 60L * 60L * 1000L;
+
+	/**
+	 * Attribute service.
+	 */
+	private AttributeService attributeService;
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Site service.
+	 */
+	private SiteService siteService;
+
+	/**
+	 * Policy component.
+	 */
+	private PolicyComponent policyComponent;
+
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Number of days the counters are kept.
+	 */
+	private int retentionDays = 400;
+
+	/**
+	 * Bind the behaviour feeding the counters.
+	 */
+	public void init() {
+		policyComponent.bindClassBehaviour(NodeServicePolicies.OnUpdatePropertiesPolicy.QNAME, SigningModel.ASPECT_SIGNED, new JavaBehaviour(this, "onUpdateProperties"));
+	}
+
+	/**
+	 * Count the document once the transaction setting its first signature date is committed.
+	 *
+	 * @param nodeRef signed document
+	 * @param before properties before
+	 * @param after properties after
+	 */
+	public void onUpdateProperties(final NodeRef nodeRef, final Map<QName, Serializable> before, final Map<QName, Serializable> after) {
+		final Serializable signatureDate = after.get(SigningModel.PROP_SIGNATUREDATE);
+		if (signatureDate == null || before.get(SigningModel.PROP_SIGNATUREDATE) != null) {
+			// Not signed, or already counted
+			return;
+		}
+
+		AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+			@Override
+			public void afterCommit() {
+				try {
+					AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+						public Void doWork() throws Exception {
+							return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+								public Void execute() throws Throwable {
+									countSignedDocument(nodeRef);
+									return null;
+								}
+							}, false, true);
+						}
+					});
+				} catch (Throwable e) {
+					// Statistics only, the signing is already committed
+					log.warn("Unable to count signed document " + nodeRef + " : " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Increase the counters of a signed document.
+	 *
+	 * @param nodeRef signed document
+	 */
+	private void countSignedDocument(final NodeRef nodeRef) {
+		if (!nodeService.exists(nodeRef)) {
+			return;
+		}
+		final Date signatureDate = (Date) nodeService.getProperty(nodeRef, SigningModel.PROP_SIGNATUREDATE);
+		final String signer = (String) nodeService.getProperty(nodeRef, SigningModel.PROP_SIGNEDBY);
+		final String siteId = siteService.getSiteShortName(nodeRef);
+		if (signatureDate == null) {
+			return;
+		}
+
+		final int day = getDay(signatureDate);
+		increment(getScope(null, null), day);
+		if (siteId != null) {
+			increment(getScope(siteId, null), day);
+		}
+		if (signer != null) {
+			increment(getScope(null, signer), day);
+			if (siteId != null) {
+				increment(getScope(siteId, signer), day);
+			}
+		}
+	}
+
+	/**
+	 * Increase a counter and remove its buckets older than the retention.
+	 *
+	 * @param scope counter scope
+	 * @param day day of the signature
+	 */
+	private void increment(final String scope, final int day) {
+		final Long count = (Long) attributeService.getAttribute(ATTRIBUTE_KEY, scope, day);
+		attributeService.setAttribute(count != null ? count + 1 : 1L, ATTRIBUTE_KEY, scope, day);
+		removeExpired(scope, day - retentionDays + 1);
+	}
+
+	/**
+	 * Remove all the buckets of a scope older than a day. The days between
+	 * the oldest day kept by the scope and the cutoff are removed, the
+	 * buckets of the scope are listed when its oldest day is unknown or
+	 * farther than the retention.
+	 *
+	 * @param scope counter scope
+	 * @param cutoff oldest day to keep
+	 */
+	private void removeExpired(final String scope, final int cutoff) {
+		final Integer oldestDay = (Integer) attributeService.getAttribute(OLDEST_DAY_KEY, scope);
+		if (oldestDay != null && oldestDay >= cutoff) {
+			return;
+		}
+
+		if (oldestDay != null && cutoff - oldestDay <= retentionDays) {
+			for (int day = oldestDay; day < cutoff; day++) {
+				attributeService.removeAttribute(ATTRIBUTE_KEY, scope, day);
+			}
+		} else {
+			final List<Integer> expiredDays = new ArrayList<Integer>();
+			attributeService.getAttributes(new AttributeQueryCallback() {
+				public boolean handleAttribute(final Long id, final Serializable value, final Serializable[] keys) {
+					if (keys.length == 3 && keys[2] instanceof Integer && (Integer) keys[2] < cutoff) {
+						expiredDays.add((Integer) keys[2]);
+					}
+					return true;
+				}
+			}, ATTRIBUTE_KEY, scope);
+			for (Integer day : expiredDays) {
+				attributeService.removeAttribute(ATTRIBUTE_KEY, scope, day);
+			}
+		}
+		attributeService.setAttribute(cutoff, OLDEST_DAY_KEY, scope);
+	}
+
+	/**
+	 * Get the number of documents signed each day.
+	 *
+	 * @param siteId site, null for all the repository
+	 * @param signer signer user name, null for all the signers
+	 * @param days number of days, today included
+	 * @return the number of documents signed each day, oldest first
+	 */
+	public List<Long> getDailyCounts(final String siteId, final String signer, final int days) {
+		final String scope = getScope(siteId, signer);
+		final int today = getDay(new Date());
+		final int nbDays = Math.max(1, Math.min(days, retentionDays));
+		final List<Long> counts = new ArrayList<Long>(nbDays);
+		for (int day = today - nbDays + 1; day <= today; day++) {
+			final Long count = (Long) attributeService.getAttribute(ATTRIBUTE_KEY, scope, day);
+			counts.add(count != null ? count : 0L);
+		}
+		return counts;
+	}
+
+	/**
+	 * @param siteId site, null for all the repository
+	 * @param signer signer user name, null for all the signers
+	 * @return the counter scope
+	 */
+	private String getScope(final String siteId, final String signer) {
+		return (siteId != null ? "site|" + siteId : "all") + (signer != null ? "|signer|" + signer : "");
+	}
+
+	/**
+	 * @param date date
+	 * @return number of days since the epoch, in the server time zone
+	 */
+	private int getDay(final Date date) {
+		final long time = date.getTime();
+		return (int) ((time + TimeZone.getDefault().getOffset(time)) / DAY_MS);
+	}
+
+	/**
+	 * @param attributeService the attributeService to set
+	 */
+	public final void setAttributeService(AttributeService attributeService) {
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param siteService the siteService to set
+	 */
+	public final void setSiteService(SiteService siteService) {
+		this.siteService = siteService;
+	}
+
+	/**
+	 * @param policyComponent the policyComponent to set
+	 */
+	public final void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+
+	/**
+	 * @param retentionDays the retentionDays to set
+	 */
+	public final void setRetentionDays(int retentionDays) {
+		this.retentionDays = retentionDays;
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.plugin.digitalSigning.dto.VerifyResultDTO;
+import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.repo.node.NodeServicePolicies;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.policy.JavaBehaviour;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Verification results kept for the verified documents.
+ *
+ * The results are stored as JSON in the attribute service, by document, with
+ * the content URL and the trust store version they were computed for: they
+ * are served as long as neither the content, the trust store nor the way
+ * they are computed change. The attribute service can't be written by the
+ * users, unlike the properties of a document they can edit, so a stored
+ * result can't be forged. The dgtsgn:verified aspect only marks the
+ * documents having stored results, to remove them with the document.
+ */
+public class VerificationResultStore implements NodeServicePolicies.BeforeDeleteNodePolicy {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(VerificationResultStore.class);
+
+	/**
+	 * First key of the results in the attribute service.
+	 */
+	private static final String ATTRIBUTE_KEY = "digitalSigning.verification";
+
+	/**
+	 * Version of the results computation, stored with the trust store version:
+	 * increased when the results change, so the stored ones are computed again.
+	 */
+	private static final String RESULTS_VERSION = "2";
+
+	/**
+	 * Attribute service.
+	 */
+	private AttributeService attributeService;
+
+	/**
+	 * Node service.
+	 */
+	private NodeService nodeService;
+
+	/**
+	 * Behaviour filter.
+	 */
+	private BehaviourFilter behaviourFilter;
+
+	/**
+	 * Policy component.
+	 */
+	private PolicyComponent policyComponent;
+
+	/**
+	 * RetryingTransactionHelper.
+	 */
+	private RetryingTransactionHelper retryingTransactionHelper;
+
+	/**
+	 * Bind the behaviour removing the results of the deleted documents.
+	 */
+	public void init() {
+		policyComponent.bindClassBehaviour(NodeServicePolicies.BeforeDeleteNodePolicy.QNAME, SigningModel.ASPECT_VERIFIED, new JavaBehaviour(this, "beforeDeleteNode"));
+	}
+
+	/**
+	 * Remove the results of a deleted document.
+	 *
+	 * @param nodeRef deleted document
+	 */
+	public void beforeDeleteNode(final NodeRef nodeRef) {
+		attributeService.removeAttribute(ATTRIBUTE_KEY, nodeRef.toString());
+	}
+
+	/**
+	 * Get the stored results of a document.
+	 *
+	 * @param nodeRef verified document
+	 * @param contentUrl current content URL of the document
+	 * @param trustStoreVersion current trust store version
+	 * @return the results, null if not stored for this content and trust store
+	 */
+	public List<VerifyResultDTO> get(final NodeRef nodeRef, final String contentUrl, final String trustStoreVersion) {
+		final String stored = (String) attributeService.getAttribute(ATTRIBUTE_KEY, nodeRef.toString());
+		if (stored == null || contentUrl == null) {
+			return null;
+		}
+		try {
+			final JSONObject json = new JSONObject(stored);
+			if (!contentUrl.equals(json.optString("contentUrl")) || !getStoredVersion(trustStoreVersion).equals(json.optString("version"))) {
+				return null;
+			}
+			return fromJson(json.getJSONArray("results"));
+		} catch (JSONException e) {
+			log.warn("Invalid verification results of " + nodeRef + " : " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Store the results of a document, in their own transaction.
+	 *
+	 * @param nodeRef verified document
+	 * @param contentUrl content URL of the verified document
+	 * @param trustStoreVersion trust store version
+	 * @param results verification results
+	 */
+	public void put(final NodeRef nodeRef, final String contentUrl, final String trustStoreVersion, final List<VerifyResultDTO> results) {
+		if (contentUrl == null) {
+			return;
+		}
+		try {
+			final JSONObject json = new JSONObject();
+			json.put("contentUrl", contentUrl);
+			json.put("version", getStoredVersion(trustStoreVersion));
+			json.put("results", toJson(results));
+			final String stored = json.toString();
+			AuthenticationUtil.runAsSystem(new AuthenticationUtil.RunAsWork<Void>() {
+				public Void doWork() throws Exception {
+					return retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+						public Void execute() throws Throwable {
+							if (!nodeService.exists(nodeRef)) {
+								return null;
+							}
+							attributeService.setAttribute(stored, ATTRIBUTE_KEY, nodeRef.toString());
+
+							if (!nodeService.hasAspect(nodeRef, SigningModel.ASPECT_VERIFIED)) {
+								// Not a change of the document
+								behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+								behaviourFilter.disableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+								try {
+									nodeService.addAspect(nodeRef, SigningModel.ASPECT_VERIFIED, null);
+								} finally {
+									behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_VERSIONABLE);
+									behaviourFilter.enableBehaviour(nodeRef, ContentModel.ASPECT_AUDITABLE);
+								}
+							}
+							return null;
+						}
+					}, false, true);
+				}
+			});
+		} catch (Throwable e) {
+			// Computed again on the next verification
+			log.warn("Unable to store the verification results of " + nodeRef + " : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param trustStoreVersion trust store version
+	 * @return version stored with the results
+	 */
+	private String getStoredVersion(final String trustStoreVersion) {
+		return RESULTS_VERSION + "/" + trustStoreVersion;
+	}
+
+	/**
+	 * @param results verification results
+	 * @return results as JSON
+	 * @throws JSONException error during serialization
+	 */
+	private JSONArray toJson(final List<VerifyResultDTO> results) throws JSONException {
+		final JSONArray json = new JSONArray();
+		for (VerifyResultDTO result : results) {
+			final JSONObject jsonResult = new JSONObject();
+			jsonResult.put("name", result.getName());
+			jsonResult.put("signatureCoversWholeDocument", result.getSignatureCoversWholeDocument());
+			jsonResult.put("revision", result.getRevision());
+			jsonResult.put("totalRevision", result.getTotalRevision());
+			jsonResult.put("isSignValid", result.getIsSignValid());
+			jsonResult.put("failReason", result.getFailReason());
+			jsonResult.put("signReason", result.getSignReason());
+			jsonResult.put("signLocation", result.getSignLocation());
+			if (result.getSignDate() != null) {
+				jsonResult.put("signDate", result.getSignDate().getTimeInMillis());
+			}
+			jsonResult.put("signName", result.getSignName());
+			jsonResult.put("signVersion", result.getSignVersion());
+			jsonResult.put("signInformationVersion", result.getSignInformationVersion());
+			jsonResult.put("signSubject", result.getSignSubject());
+			jsonResult.put("isDocumentModified", result.getIsDocumentModified());
+			json.put(jsonResult);
+		}
+		return json;
+	}
+
+	/**
+	 * @param json results as JSON
+	 * @return verification results
+	 * @throws JSONException error during deserialization
+	 */
+	private List<VerifyResultDTO> fromJson(final JSONArray json) throws JSONException {
+		final List<VerifyResultDTO> results = new ArrayList<VerifyResultDTO>(json.length());
+		for (int i = 0; i < json.length(); i++) {
+			final JSONObject jsonResult = json.getJSONObject(i);
+			final VerifyResultDTO result = new VerifyResultDTO();
+			result.setName(jsonResult.optString("name", null));
+			result.setSignatureCoversWholeDocument(jsonResult.optBoolean("signatureCoversWholeDocument"));
+			result.setRevision(jsonResult.optInt("revision"));
+			result.setTotalRevision(jsonResult.optInt("totalRevision"));
+			result.setIsSignValid(jsonResult.optBoolean("isSignValid"));
+			result.setFailReason(jsonResult.optString("failReason", ""));
+			result.setSignReason(jsonResult.optString("signReason", null));
+			result.setSignLocation(jsonResult.optString("signLocation", null));
+			if (jsonResult.has("signDate")) {
+				final Calendar signDate = Calendar.getInstance();
+				signDate.setTimeInMillis(jsonResult.getLong("signDate"));
+				result.setSignDate(signDate);
+			}
+			result.setSignName(jsonResult.optString("signName", null));
+			result.setSignVersion(jsonResult.optInt("signVersion"));
+			result.setSignInformationVersion(jsonResult.optInt("signInformationVersion"));
+			result.setSignSubject(jsonResult.optString("signSubject", null));
+			result.setIsDocumentModified(jsonResult.optBoolean("isDocumentModified"));
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * @param attributeService the attributeService to set
+	 */
+	public final void setAttributeService(AttributeService attributeService) {
+		this.attributeService = attributeService;
+	}
+
+	/**
+	 * @param nodeService the nodeService to set
+	 */
+	public final void setNodeService(NodeService nodeService) {
+		this.nodeService = nodeService;
+	}
+
+	/**
+	 * @param behaviourFilter the behaviourFilter to set
+	 */
+	public final void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+		this.behaviourFilter = behaviourFilter;
+	}
+
+	/**
+	 * @param policyComponent the policyComponent to set
+	 */
+	public final void setPolicyComponent(PolicyComponent policyComponent) {
+		this.policyComponent = policyComponent;
+	}
+
+	/**
+	 * @param retryingTransactionHelper the retryingTransactionHelper to set
+	 */
+	public final void setRetryingTransactionHelper(
+			RetryingTransactionHelper retryingTransactionHelper) {
+		this.retryingTransactionHelper = retryingTransactionHelper;
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Trusted certificates of the signature verification, loaded once at startup.
+ *
+ * The signing certificates are verified against this trust store, so a
+ * document can be verified without any key of the current user. Without
+ * configured trust store, the certificates trusted by the JVM are used.
+ */
+public class VerificationTrustStore {
+
+	/**
+	 * Logger.
+	 */
+	private final Log log = LogFactory.getLog(VerificationTrustStore.class);
+
+	/**
+	 * Path of the trust store file, empty for the JVM trust store.
+	 */
+	private String path;
+
+	/**
+	 * Type of the trust store.
+	 */
+	private String type = "JKS";
+
+	/**
+	 * Password of the trust store, may be empty.
+	 */
+	private String password;
+
+	/**
+	 * Trusted certificates.
+	 */
+	private KeyStore keyStore;
+
+	/**
+	 * Digest of the trusted certificates, changing with them.
+	 */
+	private String version = "none";
+
+	/**
+	 * Load the trust store.
+	 */
+	public void init() {
+		final File file = StringUtils.isNotBlank(path) ? new File(path)
+				: new File(System.getProperty("java.home"), "lib" + File.separator + "security" + File.separator + "cacerts");
+		InputStream is = null;
+		try {
+			final KeyStore loaded = KeyStore.getInstance(StringUtils.isNotBlank(path) ? type : KeyStore.getDefaultType());
+			is = new FileInputStream(file);
+			loaded.load(is, StringUtils.isNotEmpty(password) ? password.toCharArray() : null);
+			keyStore = loaded;
+			version = computeVersion(loaded);
+			if (log.isDebugEnabled()) {
+				log.debug(keyStore.size() + " trusted certificate(s) loaded from " + file + ".");
+			}
+		} catch (Exception e) {
+			// Signatures are then reported as not trusted, the repository still starts
+			log.error("Unable to load the verification trust store " + file + " : " + e.getMessage(), e);
+		} finally {
+			IOUtils.closeQuietly(is);
+		}
+	}
+
+	/**
+	 * @param trustStore trust store
+	 * @return SHA-256 digest of the aliases and certificates, in hexadecimal
+	 * @throws Exception error while reading the trust store
+	 */
+	private String computeVersion(final KeyStore trustStore) throws Exception {
+		final List<String> aliases = Collections.list(trustStore.aliases());
+		Collections.sort(aliases);
+		final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		for (String alias : aliases) {
+			digest.update(alias.getBytes("UTF-8"));
+			final Certificate certificate = trustStore.getCertificate(alias);
+			if (certificate != null) {
+				digest.update(certificate.getEncoded());
+			}
+		}
+		final StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return the trusted certificates, null if the trust store could not be loaded
+	 */
+	public final KeyStore getKeyStore() {
+		return keyStore;
+	}
+
+	/**
+	 * @return version of the trusted certificates, stored with the verification results
+	 */
+	public final String getVersion() {
+		return version;
+	}
+
+	/**
+	 * @param path the path to set
+	 */
+	public final void setPath(String path) {
+		this.path = path;
+	}
+
+	/**
+	 * @param type the type to set
+	 */
+	public final void setType(String type) {
+		this.type = type;
+	}
+
+	/**
+	 * @param password the password to set
+	 */
+	public final void setPassword(String password) {
+		this.password = password;
+	}
+}
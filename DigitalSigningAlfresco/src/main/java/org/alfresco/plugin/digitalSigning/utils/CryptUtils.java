@@ -1,83 +1,246 @@
 /**
- * 
+ *
  */
 package org.alfresco.plugin.digitalSigning.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.DESKeySpec;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Crypt and decrypt util class.
- * 
+ *
+ * Encrypted content is an envelope: a header (magic, version, key derivation
+ * iterations, salt and IV) followed by the content encrypted with AES-GCM,
+ * authenticated with the header. The AES key is derived from the password
+ * with PBKDF2 and a random salt by content. Content without header was
+ * encrypted with DES by the previous versions and is still decrypted.
+ *
  * @author Emmanuel ROUX
  */
 public class CryptUtils {
 
+	/**
+	 * Magic bytes of the envelope.
+	 */
+	private static final byte[] MAGIC = {'D', 'G', 'S', 'K'};
+
+	/**
+	 * Version of the DES content, without header.
+	 */
+	public static final int VERSION_DES = 1;
+
+	/**
+	 * Version of the AES-GCM envelope.
+	 */
+	public static final int VERSION_AES_GCM = 2;
+
+	/**
+	 * PBKDF2 iterations of the new envelopes.
+	 */
+	private static final int KEY_ITERATIONS = 10000;
+
+	/**
+	 * AES key length, in bits.
+	 */
+	private static final int KEY_LENGTH = 256;
+
+	/**
+	 * Salt length, in bytes.
+	 */
+	private static final int SALT_LENGTH = 16;
+
+	/**
+	 * GCM IV length, in bytes.
+	 */
+	private static final int IV_LENGTH = 12;
+
+	/**
+	 * GCM tag length, in bits.
+	 */
+	private static final int TAG_LENGTH = 128;
+
+	/**
+	 * Header length: magic, version, iterations, salt and IV.
+	 */
+	private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + SALT_LENGTH + IV_LENGTH;
+
+	/**
+	 * Read buffer size.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Random generator of the salts and IVs.
+	 */
+	private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
 	/**
 	 * Encrypt input stream.
-	 * 
+	 *
 	 * @param key password (key)
 	 * @param is input stream
 	 * @return encrypted input stream
 	 * @throws Throwable error during encrypt process
 	 */
 	public static InputStream encrypt(final String key, final InputStream is) throws Throwable {
-		return encryptOrDecrypt(key, Cipher.ENCRYPT_MODE, is);
+		final byte[] salt = new byte[SALT_LENGTH];
+		final byte[] iv = new byte[IV_LENGTH];
+		SECURE_RANDOM.nextBytes(salt);
+		SECURE_RANDOM.nextBytes(iv);
+
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.put(MAGIC).put((byte) VERSION_AES_GCM).putInt(KEY_ITERATIONS).put(salt).put(iv);
+
+		final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, getAesKey(key, salt, KEY_ITERATIONS), new GCMParameterSpec(TAG_LENGTH, iv));
+		cipher.updateAAD(header.array());
+		final byte[] encrypted = cipher.doFinal(readFully(is));
+
+		final byte[] envelope = new byte[HEADER_LENGTH + encrypted.length];
+		System.arraycopy(header.array(), 0, envelope, 0, HEADER_LENGTH);
+		System.arraycopy(encrypted, 0, envelope, HEADER_LENGTH, encrypted.length);
+		return new ByteArrayInputStream(envelope);
 	}
 
 	/**
 	 * Decrypt input stream.
-	 * 
+	 *
 	 * @param key password (key)
 	 * @param is input stream
 	 * @return decrypted input stream
 	 * @throws Throwable error during encrypt process
 	 */
 	public static InputStream decrypt(final String key, final InputStream is) throws Throwable {
-		return encryptOrDecrypt(key, Cipher.DECRYPT_MODE, is);
+		final byte[] content = readFully(is);
+		if (getVersion(content) == VERSION_AES_GCM) {
+			try {
+				return new ByteArrayInputStream(decryptAesGcm(key, content));
+			} catch (AEADBadTagException e) {
+				// DES content starting like an envelope, or wrong key
+				try {
+					return new ByteArrayInputStream(decryptDes(key, content));
+				} catch (Exception desException) {
+					throw e;
+				}
+			}
+		}
+		return new ByteArrayInputStream(decryptDes(key, content));
 	}
 
 	/**
-	 * Encrypt or decrypt process.
-	 * 
+	 * Get the version of encrypted content.
+	 *
+	 * @param content encrypted content, or at least its header
+	 * @return {@link #VERSION_AES_GCM} for an envelope, {@link #VERSION_DES} otherwise
+	 */
+	public static int getVersion(final byte[] content) {
+		if (content.length >= HEADER_LENGTH && Arrays.equals(MAGIC, Arrays.copyOf(content, MAGIC.length))
+				&& content[MAGIC.length] == VERSION_AES_GCM) {
+			return VERSION_AES_GCM;
+		}
+		return VERSION_DES;
+	}
+
+	/**
+	 * Decrypt an AES-GCM envelope.
+	 *
 	 * @param key password (key)
-	 * @param mode process mode
-	 * @param is input stream
-	 * @param os output stream
-	 * @throws Throwable error during encrypt process
+	 * @param content envelope
+	 * @return decrypted content
+	 * @throws Exception error during decrypt process
 	 */
-	private static InputStream encryptOrDecrypt(final String key, final int mode, final InputStream is) throws Throwable {
+	private static byte[] decryptAesGcm(final String key, final byte[] content) throws Exception {
+		final ByteBuffer header = ByteBuffer.wrap(content, 0, HEADER_LENGTH);
+		header.position(MAGIC.length + 1);
+		final int iterations = header.getInt();
+		final byte[] salt = new byte[SALT_LENGTH];
+		final byte[] iv = new byte[IV_LENGTH];
+		header.get(salt);
+		header.get(iv);
+
+		final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, getAesKey(key, salt, iterations), new GCMParameterSpec(TAG_LENGTH, iv));
+		cipher.updateAAD(content, 0, HEADER_LENGTH);
+		return cipher.doFinal(content, HEADER_LENGTH, content.length - HEADER_LENGTH);
+	}
 
+	/**
+	 * Decrypt DES content of the previous versions.
+	 *
+	 * @param key password (key)
+	 * @param content encrypted content
+	 * @return decrypted content
+	 * @throws Exception error during decrypt process
+	 */
+	private static byte[] decryptDes(final String key, final byte[] content) throws Exception {
 		DESKeySpec dks = new DESKeySpec(key.getBytes());
 		SecretKeyFactory skf = SecretKeyFactory.getInstance("DES");
 		SecretKey desKey = skf.generateSecret(dks);
 		Cipher cipher = Cipher.getInstance("DES"); // DES/ECB/PKCS5Padding for SunJCE
+		cipher.init(Cipher.DECRYPT_MODE, desKey);
+		return cipher.doFinal(content);
+	}
 
-		if (mode == Cipher.ENCRYPT_MODE) {
-			cipher.init(Cipher.ENCRYPT_MODE, desKey);
-			CipherInputStream cis = new CipherInputStream(is, cipher);
-			return cis;
-			//doCopy(cis, os);
-		} else if (mode == Cipher.DECRYPT_MODE) {
-			cipher.init(Cipher.DECRYPT_MODE, desKey);
-			//CipherOutputStream cos = new CipherOutputStream(os, cipher);
-			CipherInputStream cis = new CipherInputStream(is, cipher);
-			return cis;
-			//doCopy(is, cos);
-		} else {
-			return null;
+	/**
+	 * Derive the AES key of a password. Not kept: the unlocked keys are
+	 * cached by the KeyStoreCache, which decrypts a key content only once
+	 * until it expires or is invalidated.
+	 *
+	 * @param key password (key)
+	 * @param salt salt
+	 * @param iterations PBKDF2 iterations
+	 * @return AES key
+	 * @throws Exception error during key derivation
+	 */
+	private static SecretKey getAesKey(final String key, final byte[] salt, final int iterations) throws Exception {
+		final PBEKeySpec keySpec = new PBEKeySpec(key.toCharArray(), salt, iterations, KEY_LENGTH);
+		try {
+			final byte[] keyBytes = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded();
+			return new SecretKeySpec(keyBytes, "AES");
+		} finally {
+			keySpec.clearPassword();
 		}
 	}
-	
+
+	/**
+	 * Read a stream in memory, in large chunks.
+	 *
+	 * @param is input stream
+	 * @return content of the stream
+	 * @throws IOException error during read
+	 */
+	private static byte[] readFully(final InputStream is) throws IOException {
+		final ByteArrayOutputStream os = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[BUFFER_SIZE];
+		try {
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				os.write(buffer, 0, read);
+			}
+		} finally {
+			is.close();
+		}
+		return os.toByteArray();
+	}
+
 	/**
 	 * Generate a ramdom number.
-	 * 
+	 *
 	 * @return random number
 	 */
 	public static int getRamdomInt() {
@@ -2,21 +2,18 @@ package org.alfresco.plugin.digitalSigning.webscript;
 
 import java.io.Serializable;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
-import org.alfresco.model.ContentModel;
 import org.alfresco.plugin.digitalSigning.dto.KeyInfoDTO;
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
 import org.alfresco.plugin.digitalSigning.model.SigningModel;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.security.AuthenticationService;
 import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.QName;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -108,65 +105,33 @@ public class ChooseAlias extends SigningWebScript  {
 							
 							
 							// Get current user key
-							final String currentUser = authenticationService.getCurrentUserName();
-							final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-							NodeRef keyNodeRef = null;
-							if (currentUserNodeRef != null) {
-								final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-								if (currentUserHomeFolder != null) {
-									final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-									if (signingFolderNodeRef != null) {
-										final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-										if (children != null && children.size() > 0) {
-											final Iterator<ChildAssociationRef> itChildren = children.iterator();
-											boolean foundKey = false;
-											boolean foundImage = false;
-											while (itChildren.hasNext()) {
-												final ChildAssociationRef childAssoc = itChildren.next();
-												final NodeRef child = childAssoc.getChildRef();
-												if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-													keyNodeRef = child;
-													foundKey = true;
-												}
-												if (nodeService.hasAspect(child, SigningModel.ASPECT_IMAGE)) {
-													foundImage = true;
-												}
-											}
-											if (!foundKey) {
-												log.error("No key file uploaded for user " + currentUser + ".");
-												throw new WebScriptException("No key file uploaded for user " + currentUser + ".");
-											} else {
-												final Serializable encryptedPropertyValue = nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYCRYPTSECRET);
-												final Serializable decryptedPropertyValue = metadataEncryptor.decrypt(SigningModel.PROP_KEYCRYPTSECRET, encryptedPropertyValue);
-												
-												final KeyInfoDTO keyInfoDTO = getKeyInformation(keyNodeRef, alias, (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYTYPE), password, (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALERT), decryptedPropertyValue.toString());
-												if (keyInfoDTO.getError() != null) {
-													throw new WebScriptException(keyInfoDTO.getError());
-												}
-												keyInfoDTO.setHasAlerted(false);
-												
-												nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYALIAS, alias);
-												nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYALGORITHM, keyInfoDTO.getAlgorithm());
-												nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYFIRSTVALIDITY, keyInfoDTO.getFirstDayValidity());
-												nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYLASTVALIDITY, keyInfoDTO.getLastDayValidity());
-												nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYSUBJECT, keyInfoDTO.getSubject());
-												nodeService.setProperty(keyNodeRef, SigningModel.PROP_KEYHASALERT, keyInfoDTO.getHasAlerted());
-												
-												if (keyInfoDTO.getExpire() != null && Integer.parseInt(keyInfoDTO.getExpire()) >= 100) {
-													keyInfoDTO.setExpire(null);
-												}
-												
-												model.put("signingKey", keyNodeRef);
-												model.put("keyInfos", keyInfoDTO);
-												model.put("hasImage", foundImage);
-											}
-										} else {
-											log.error("No key file uploaded for user " + currentUser + ".");
-											throw new WebScriptException("No key file uploaded for user " + currentUser + ".");
-										}
-									} else {
+							final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+							if (keyLocation != null) {
+								if (keyLocation.getHomeFolder() != null) {
+									final NodeRef keyNodeRef = keyLocation.getKeyNodeRef();
+									if (keyNodeRef == null) {
 										log.error("No key file uploaded for user " + currentUser + ".");
 										throw new WebScriptException("No key file uploaded for user " + currentUser + ".");
+									} else {
+										final Serializable encryptedPropertyValue = nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYCRYPTSECRET);
+										final Serializable decryptedPropertyValue = metadataEncryptor.decrypt(SigningModel.PROP_KEYCRYPTSECRET, encryptedPropertyValue);
+									
+										final KeyInfoDTO keyInfoDTO = getKeyInformation(keyNodeRef, alias, (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYTYPE), password, (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALERT), decryptedPropertyValue.toString());
+										if (keyInfoDTO.getError() != null) {
+											throw new WebScriptException(keyInfoDTO.getError());
+										}
+										keyInfoDTO.setHasAlerted(false);
+									
+										// The key is opened above, only the storage of its informations is retried
+										storeKeyInformation(keyNodeRef, keyInfoDTO);
+									
+										if (keyInfoDTO.getExpire() != null && Integer.parseInt(keyInfoDTO.getExpire()) >= 100) {
+											keyInfoDTO.setExpire(null);
+										}
+									
+										model.put("signingKey", keyNodeRef);
+										model.put("keyInfos", keyInfoDTO);
+										model.put("hasImage", keyLocation.getImageNodeRef() != null);
 									}
 								} else {
 									log.error("User '" + currentUser + "' have no home folder.");
@@ -200,6 +165,30 @@ public class ChooseAlias extends SigningWebScript  {
 	}
 
 
+	/**
+	 * Store the informations of the chosen alias on the key, in a new write
+	 * transaction.
+	 * 
+	 * @param keyNodeRef key nodeRef
+	 * @param keyInfoDTO key informations
+	 */
+	private void storeKeyInformation(final NodeRef keyNodeRef, final KeyInfoDTO keyInfoDTO) {
+		retryingTransactionHelper.doInTransaction(new RetryingTransactionCallback<Void>() {
+			public Void execute() throws Throwable {
+				final Map<QName, Serializable> keyProperties = new HashMap<QName, Serializable>();
+				keyProperties.put(SigningModel.PROP_KEYALIAS, keyInfoDTO.getAlias());
+				keyProperties.put(SigningModel.PROP_KEYALGORITHM, keyInfoDTO.getAlgorithm());
+				keyProperties.put(SigningModel.PROP_KEYFIRSTVALIDITY, keyInfoDTO.getFirstDayValidity());
+				keyProperties.put(SigningModel.PROP_KEYLASTVALIDITY, keyInfoDTO.getLastDayValidity());
+				keyProperties.put(SigningModel.PROP_KEYSUBJECT, keyInfoDTO.getSubject());
+				keyProperties.put(SigningModel.PROP_KEYHASALERT, keyInfoDTO.getHasAlerted());
+				nodeService.addProperties(keyNodeRef, keyProperties);
+				return null;
+			}
+		}, false, true);
+	}
+
+
 	/**
 	 * @param authenticationService the authenticationService to set
 	 */
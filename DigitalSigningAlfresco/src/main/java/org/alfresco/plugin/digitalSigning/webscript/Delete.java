@@ -1,17 +1,13 @@
 package org.alfresco.plugin.digitalSigning.webscript;
 
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
-import org.alfresco.model.ContentModel;
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
-import org.alfresco.plugin.digitalSigning.model.SigningModel;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
+import org.alfresco.plugin.digitalSigning.service.KeyStoreCache;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.security.AuthenticationService;
 import org.alfresco.service.cmr.security.PersonService;
@@ -49,6 +45,11 @@ public class Delete extends SigningWebScript  {
 	 */
 	private PersonService personService;
 	
+	/**
+	 * Cache of the unlocked keys.
+	 */
+	private KeyStoreCache keyStoreCache;
+	
 	/**
 	 * Process.
 	 * 
@@ -66,36 +67,20 @@ public class Delete extends SigningWebScript  {
 				final Map<String, Object> model = new HashMap<String, Object>();
 				try {
 					// Get current user key and image
-					final String currentUser = authenticationService.getCurrentUserName();
-					final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-					NodeRef keyNodeRef = null;
-					NodeRef imageNodeRef = null;
-					if (currentUserNodeRef != null) {
-						final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-						if (currentUserHomeFolder != null) {
-							final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-							if (signingFolderNodeRef != null) {
-								final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-								if (children != null && children.size() > 0) {
-									final Iterator<ChildAssociationRef> itChildren = children.iterator();
-									while (itChildren.hasNext()) {
-										final ChildAssociationRef childAssoc = itChildren.next();
-										final NodeRef child = childAssoc.getChildRef();
-										if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-											keyNodeRef = child;
-										}
-										if (nodeService.hasAspect(child, SigningModel.ASPECT_IMAGE)) {
-											imageNodeRef = child;
-										}
+					final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+					if (keyLocation != null) {
+						if (keyLocation.getHomeFolder() != null) {
+							final NodeRef keyNodeRef = keyLocation.getKeyNodeRef();
+							final NodeRef imageNodeRef = keyLocation.getImageNodeRef();
+							if (keyNodeRef != null || imageNodeRef != null) {
+								if (keyNodeRef != null) {
+									nodeService.deleteNode(keyNodeRef);
+									if (keyStoreCache != null) {
+										keyStoreCache.invalidate(keyNodeRef);
 									}
-									if (keyNodeRef != null) {
-										nodeService.deleteNode(keyNodeRef);
-									}
-									if (imageNodeRef != null) {
-										nodeService.deleteNode(imageNodeRef);
-									}
-								} else {
-									log.error("No key file uploaded for user " + currentUser + ".");
+								}
+								if (imageNodeRef != null) {
+									nodeService.deleteNode(imageNodeRef);
 								}
 							} else {
 								log.error("No key file uploaded for user " + currentUser + ".");
@@ -155,4 +140,12 @@ public class Delete extends SigningWebScript  {
 	public final void setPersonService(PersonService personService) {
 		this.personService = personService;
 	}
+
+
+	/**
+	 * @param keyStoreCache the keyStoreCache to set
+	 */
+	public final void setKeyStoreCache(KeyStoreCache keyStoreCache) {
+		this.keyStoreCache = keyStoreCache;
+	}
 }
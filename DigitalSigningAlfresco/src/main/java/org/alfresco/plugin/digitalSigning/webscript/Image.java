@@ -5,14 +5,13 @@ package org.alfresco.plugin.digitalSigning.webscript;
 
 import java.io.IOException;
 import java.util.Date;
-import java.util.Iterator;
-import java.util.List;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
+import org.alfresco.plugin.digitalSigning.service.KeyLocator;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.NodeRef;
@@ -26,9 +25,6 @@ import org.springframework.extensions.webscripts.Cache;
 import org.springframework.extensions.webscripts.WebScriptRequest;
 import org.springframework.extensions.webscripts.WebScriptResponse;
 
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
-import org.alfresco.plugin.digitalSigning.model.SigningModel;
-
 /**
  * Get image Web Script.
  * 
@@ -67,6 +63,11 @@ public class Image extends AbstractWebScript {
 	 */
 	private ContentService contentService;
 	
+	/**
+	 * Key locator.
+	 */
+	private KeyLocator keyLocator;
+	
 	/**
 	 * @param authenticationService the authenticationService to set
 	 */
@@ -100,53 +101,33 @@ public class Image extends AbstractWebScript {
 		final RetryingTransactionCallback<Void> processCallBack = new RetryingTransactionCallback<Void>() {
 			public Void execute() throws Throwable {
 				
-				final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-				if (currentUserNodeRef != null) {
-					final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-					if (currentUserHomeFolder != null) {
-						final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-						if (signingFolderNodeRef != null) {
-							final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-							if (children != null && children.size() > 0) {
-								final Iterator<ChildAssociationRef> itChildren = children.iterator();
-								NodeRef imageNodeRef = null;
-								boolean foundImage = false;
-								while (itChildren.hasNext() && !foundImage) {
-									final ChildAssociationRef childAssoc = itChildren.next();
-									final NodeRef child = childAssoc.getChildRef();
-									if (nodeService.hasAspect(child, SigningModel.ASPECT_IMAGE)) {
-										imageNodeRef = child;
-										foundImage = true;
-									}
-								}
+				final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+				if (keyLocation != null) {
+					if (keyLocation.getHomeFolder() != null) {
+						final NodeRef imageNodeRef = keyLocation.getImageNodeRef();
+						if (imageNodeRef != null) {
+							
+							final Date lastModifiedDate = (Date) nodeService.getProperty(imageNodeRef, ContentModel.PROP_MODIFIED);
+							
+							ContentReader reader = contentService.getReader(imageNodeRef, ContentModel.PROP_CONTENT);
+							if (reader != null) {
+								String mimetype = reader.getMimetype();
+								res.setContentType(mimetype);
+						        res.setContentEncoding(reader.getEncoding());
+						        res.setHeader("Content-Length", Long.toString(reader.getSize()));
 								
-								if (imageNodeRef != null) {
-									
-									final Date lastModifiedDate = (Date) nodeService.getProperty(imageNodeRef, ContentModel.PROP_MODIFIED);
-									
-									ContentReader reader = contentService.getReader(imageNodeRef, ContentModel.PROP_CONTENT);
-									if (reader != null) {
-										String mimetype = reader.getMimetype();
-										res.setContentType(mimetype);
-								        res.setContentEncoding(reader.getEncoding());
-								        res.setHeader("Content-Length", Long.toString(reader.getSize()));
-										
-								        // set caching
-								        Cache cache = new Cache();
-								        cache.setNeverCache(false);
-								        cache.setMustRevalidate(true);
-								        cache.setMaxAge(0L);
-								        cache.setLastModified(lastModifiedDate);
-								        cache.setETag(String.valueOf(lastModifiedDate.getTime()));
-								        res.setCache(cache);
-								        
-								        reader.getContent(res.getOutputStream());
-									} else {
-										log.error("Unable to get image content.");
-									}
-								}
+						        // set caching
+						        Cache cache = new Cache();
+						        cache.setNeverCache(false);
+						        cache.setMustRevalidate(true);
+						        cache.setMaxAge(0L);
+						        cache.setLastModified(lastModifiedDate);
+						        cache.setETag(String.valueOf(lastModifiedDate.getTime()));
+						        res.setCache(cache);
+						        
+						        reader.getContent(res.getOutputStream());
 							} else {
-								log.error("No image file uploaded for user " + currentUser + ".");
+								log.error("Unable to get image content.");
 							}
 						} else {
 							log.error("No image file uploaded for user " + currentUser + ".");
@@ -188,4 +169,11 @@ public class Image extends AbstractWebScript {
 		this.contentService = contentService;
 	}
 
+	/**
+	 * @param keyLocator the keyLocator to set
+	 */
+	public final void setKeyLocator(KeyLocator keyLocator) {
+		this.keyLocator = keyLocator;
+	}
+
 }
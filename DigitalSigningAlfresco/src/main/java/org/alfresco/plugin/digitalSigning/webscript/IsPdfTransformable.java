@@ -6,9 +6,7 @@ package org.alfresco.plugin.digitalSigning.webscript;
 import java.io.IOException;
 
 import org.alfresco.model.ContentModel;
-import org.alfresco.repo.content.MimetypeMap;
-import org.alfresco.repo.content.transform.ContentTransformer;
-import org.alfresco.repo.content.transform.ContentTransformerRegistry;
+import org.alfresco.plugin.digitalSigning.service.PdfTransformableCache;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
@@ -17,7 +15,6 @@ import org.alfresco.service.cmr.repository.ContentReader;
 import org.alfresco.service.cmr.repository.ContentService;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.repository.NodeService;
-	import org.alfresco.service.cmr.repository.TransformationOptions;
 import org.alfresco.service.namespace.QName;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +26,9 @@ import org.springframework.extensions.webscripts.WebScriptResponse;
 /**
  * Verify if nodeRef is transformable in PDF or not.
  * 
+ * Runs in a read-only transaction, the transformers availability is cached
+ * by mimetype and size in the {@link PdfTransformableCache}.
+ * 
  * @author Emmanuel ROUX
  */
 public class IsPdfTransformable extends AbstractWebScript {
@@ -41,17 +41,17 @@ public class IsPdfTransformable extends AbstractWebScript {
 	/**
 	 * RetryingTransactionHelper bean.
 	 */
-	private RetryingTransactionHelper retryingTransactionHelper;
+	protected RetryingTransactionHelper retryingTransactionHelper;
 	
 	/**
-	 * Content Transformer registry
+	 * Cache of the transformers to PDF availability.
 	 */
-	private ContentTransformerRegistry contentTransformerRegistry;
+	protected PdfTransformableCache pdfTransformableCache;
 	
 	/**
 	 * Node service.
 	 */
-	private NodeService nodeService;
+	protected NodeService nodeService;
 	
 	/**
 	 * Dictionary service.
@@ -71,34 +71,20 @@ public class IsPdfTransformable extends AbstractWebScript {
 	public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
 		final RetryingTransactionCallback<Object> processCallBack = new RetryingTransactionCallback<Object>() {
 			public Object execute() throws Throwable {
-			String result = "KO";
-			
 			final String sNodeRef = req.getParameter("noderef");
 			if (sNodeRef == null) {
 				log.error("'noderef' parameter is required.");
 				throw new WebScriptException("'noderef' parameter is required.");
 			}
 			
+			pdfTransformableCache.refreshIfRegistryChanged();
 			final NodeRef nodeRef = new NodeRef(sNodeRef);
-			if (nodeRef != null) {
-		        final QName typeQName = nodeService.getType(nodeRef);
-		        if (dictionaryService.isSubClass(typeQName, ContentModel.TYPE_CONTENT) == false) {
-		            // it is not content, so can't transform
-		            return null;
-		        }
-		        // Get the content reader
-		        ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
-		        if (contentReader != null) {
-		        	final ContentTransformer transformer = contentTransformerRegistry.getTransformer(contentReader.getMimetype(), contentReader.getSize(), MimetypeMap.MIMETYPE_PDF, new TransformationOptions());
-		        	if (transformer != null) {
-		        		result = "OK";
-		        	}
-		        } else {
-		        	log.error("Unable to get document content.");
-		        	throw new WebScriptException("Unable to get document content.");
-		        }
+			final Boolean transformable = isTransformable(nodeRef);
+			if (transformable == null) {
+				// it is not content, so can't transform
+				return null;
 			}
-			res.getWriter().write(result);
+			res.getWriter().write(transformable ? "OK" : "KO");
 			
 			return null;
 			}
@@ -108,11 +94,31 @@ public class IsPdfTransformable extends AbstractWebScript {
 
 			public Object doWork() throws Exception {
 				retryingTransactionHelper.doInTransaction(processCallBack,
-						false, false);
+						true, false);
 				return null;
 			}
 		}, AuthenticationUtil.getSystemUserName());
 	}
+	
+	/**
+	 * Check if a document can be transformed in PDF.
+	 * 
+	 * @param nodeRef document
+	 * @return true if it is transformable, null if it is not a content
+	 */
+	protected Boolean isTransformable(final NodeRef nodeRef) {
+        final QName typeQName = nodeService.getType(nodeRef);
+        if (dictionaryService.isSubClass(typeQName, ContentModel.TYPE_CONTENT) == false) {
+            return null;
+        }
+        // Get the content reader
+        final ContentReader contentReader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        if (contentReader == null) {
+        	log.error("Unable to get document content.");
+        	throw new WebScriptException("Unable to get document content.");
+        }
+        return pdfTransformableCache.isTransformable(contentReader.getMimetype(), contentReader.getSize());
+	}
 
 	/**
 	 * @param retryingTransactionHelper the retryingTransactionHelper to set
@@ -123,11 +129,11 @@ public class IsPdfTransformable extends AbstractWebScript {
 	}
 
 	/**
-	 * @param contentTransformerRegistry the contentTransformerRegistry to set
+	 * @param pdfTransformableCache the pdfTransformableCache to set
 	 */
-	public final void setContentTransformerRegistry(
-			ContentTransformerRegistry contentTransformerRegistry) {
-		this.contentTransformerRegistry = contentTransformerRegistry;
+	public final void setPdfTransformableCache(
+			PdfTransformableCache pdfTransformableCache) {
+		this.pdfTransformableCache = pdfTransformableCache;
 	}
 
 	/**
@@ -0,0 +1,104 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.webscript;
+
+import java.io.IOException;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Verify if several nodeRefs are transformable in PDF in one request.
+ *
+ * The request body is <code>{"nodeRefs": ["workspace://...", ...]}</code>,
+ * the response maps each nodeRef to true or false. A node which does not
+ * exist, can't be read by the current user or is not a content is not
+ * transformable, so the response tells nothing about the unreadable nodes.
+ */
+public class IsPdfTransformableBatch extends IsPdfTransformable {
+
+	/**
+	 * Permission service.
+	 */
+	private PermissionService permissionService;
+
+	/**
+	 * Maximum number of nodeRefs of a request.
+	 */
+	private int maxNodeRefs = 100;
+
+	/**
+	 * WebScript execution method.
+	 * @param req request
+	 * @param res response
+	 */
+	@Override
+	public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+		final JSONArray nodeRefs;
+		try {
+			final JSONObject json = new JSONObject(req.getContent().getContent());
+			nodeRefs = json.getJSONArray("nodeRefs");
+		} catch (JSONException e) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "'nodeRefs' array is required.");
+		}
+		if (nodeRefs.length() > maxNodeRefs) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "At most " + maxNodeRefs + " nodeRefs can be checked at once.");
+		}
+
+		final RetryingTransactionCallback<JSONObject> processCallBack = new RetryingTransactionCallback<JSONObject>() {
+			public JSONObject execute() throws Throwable {
+				pdfTransformableCache.refreshIfRegistryChanged();
+				final JSONObject result = new JSONObject();
+				for (int i = 0; i < nodeRefs.length(); i++) {
+					final String sNodeRef = nodeRefs.getString(i);
+					if (!NodeRef.isNodeRef(sNodeRef)) {
+						throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid nodeRef : " + sNodeRef);
+					}
+					final NodeRef nodeRef = new NodeRef(sNodeRef);
+					final Boolean transformable = isReadable(nodeRef) ? isTransformable(nodeRef) : null;
+					result.put(sNodeRef, transformable != null && transformable);
+				}
+				return result;
+			}
+		};
+
+		// As the current user: the permissions are checked for each node
+		final JSONObject result = retryingTransactionHelper.doInTransaction(processCallBack, true, false);
+
+		res.setContentType("application/json");
+		res.setContentEncoding("UTF-8");
+		res.getWriter().write(result.toString());
+	}
+
+	/**
+	 * @param nodeRef node
+	 * @return true if the node exists and the current user can read it
+	 */
+	private boolean isReadable(final NodeRef nodeRef) {
+		return nodeService.exists(nodeRef) && permissionService.hasPermission(nodeRef, PermissionService.READ) == AccessStatus.ALLOWED;
+	}
+
+	/**
+	 * @param permissionService the permissionService to set
+	 */
+	public final void setPermissionService(PermissionService permissionService) {
+		this.permissionService = permissionService;
+	}
+
+	/**
+	 * @param maxNodeRefs the maxNodeRefs to set
+	 */
+	public final void setMaxNodeRefs(int maxNodeRefs) {
+		this.maxNodeRefs = maxNodeRefs;
+	}
+}
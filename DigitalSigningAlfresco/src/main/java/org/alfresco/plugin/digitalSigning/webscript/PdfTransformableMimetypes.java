@@ -0,0 +1,61 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.webscript;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.alfresco.plugin.digitalSigning.service.PdfTransformableCache;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * List the mimetypes transformable in PDF with their maximum size, so the
+ * Share evaluators can decide without asking for each document.
+ *
+ * The response is <code>{"mimetypes": {"mimetype": maxSize, ...},
+ * "timeToLiveSeconds": n}</code>, maxSize is in bytes and -1 when the size is
+ * not limited.
+ */
+public class PdfTransformableMimetypes extends AbstractWebScript {
+
+	/**
+	 * Cache of the transformers to PDF availability.
+	 */
+	private PdfTransformableCache pdfTransformableCache;
+
+	/**
+	 * WebScript execution method.
+	 * @param req request
+	 * @param res response
+	 */
+	public void execute(final WebScriptRequest req, final WebScriptResponse res) throws IOException {
+		pdfTransformableCache.refreshIfRegistryChanged();
+		final Map<String, Long> mimetypes = pdfTransformableCache.getTransformableMimetypes();
+
+		try {
+			final JSONObject result = new JSONObject();
+			result.put("mimetypes", new JSONObject(mimetypes));
+			result.put("timeToLiveSeconds", pdfTransformableCache.getTimeToLiveSeconds());
+
+			res.setContentType("application/json");
+			res.setContentEncoding("UTF-8");
+			res.getWriter().write(result.toString());
+		} catch (JSONException e) {
+			throw new WebScriptException("Unable to write the transformable mimetypes.", e);
+		}
+	}
+
+	/**
+	 * @param pdfTransformableCache the pdfTransformableCache to set
+	 */
+	public final void setPdfTransformableCache(
+			PdfTransformableCache pdfTransformableCache) {
+		this.pdfTransformableCache = pdfTransformableCache;
+	}
+}
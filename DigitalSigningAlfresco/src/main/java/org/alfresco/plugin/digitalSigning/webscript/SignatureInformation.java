@@ -5,18 +5,14 @@ package org.alfresco.plugin.digitalSigning.webscript;
 
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
-import org.alfresco.model.ContentModel;
 import org.alfresco.plugin.digitalSigning.dto.KeyInfoDTO;
-import org.alfresco.plugin.digitalSigning.model.SigningConstants;
+import org.alfresco.plugin.digitalSigning.dto.KeyLocationDTO;
 import org.alfresco.plugin.digitalSigning.model.SigningModel;
 import org.alfresco.repo.security.authentication.AuthenticationUtil;
 import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
-import org.alfresco.service.cmr.repository.ChildAssociationRef;
 import org.alfresco.service.cmr.repository.NodeRef;
 import org.alfresco.service.cmr.security.AuthenticationService;
 import org.alfresco.service.cmr.security.PersonService;
@@ -72,80 +68,49 @@ public class SignatureInformation extends SigningWebScript {
 					public Map<String, Object> execute() throws Throwable {
 						final Map<String, Object> model = new HashMap<String, Object>();
 						try {
-							final NodeRef currentUserNodeRef = personService.getPerson(currentUser);
-							if (currentUserNodeRef != null) {
-								NodeRef keyNodeRef = null;
-								
-								final NodeRef currentUserHomeFolder = (NodeRef) nodeService.getProperty(currentUserNodeRef, ContentModel.PROP_HOMEFOLDER);
-								if (currentUserHomeFolder != null) {
-									final NodeRef signingFolderNodeRef = nodeService.getChildByName(currentUserHomeFolder, ContentModel.ASSOC_CONTAINS, SigningConstants.KEY_FOLDER);
-									if (signingFolderNodeRef != null) {
-										final List<ChildAssociationRef> children = nodeService.getChildAssocs(signingFolderNodeRef);
-										if (children != null && children.size() > 0) {
-											final Iterator<ChildAssociationRef> itChildren = children.iterator();
-											boolean foundKey = false;
-											boolean foundImage = false;
-											while (itChildren.hasNext()) {
-												final ChildAssociationRef childAssoc = itChildren.next();
-												final NodeRef child = childAssoc.getChildRef();
-												if (nodeService.hasAspect(child, SigningModel.ASPECT_KEY)) {
-													keyNodeRef = child;
-													foundKey = true;
-												}
-												if (nodeService.hasAspect(child, SigningModel.ASPECT_IMAGE)) {
-													foundImage = true;
-												}
-											}
-											if (!foundKey) {
-												model.put("errorNumber", "1");
-											} else {
-												
-												final String alias = (String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALIAS);
-												if (alias == null || "".equals(alias)) {
-													log.error("No alias defined for certificate. Please add a key again.");
-													model.put("errorNumber", "3");
+							final KeyLocationDTO keyLocation = keyLocator.getKeyLocation(currentUser);
+							if (keyLocation != null) {
+								if (keyLocation.getHomeFolder() != null) {
+									final NodeRef keyNodeRef = keyLocation.getKeyNodeRef();
+									if (keyNodeRef == null) {
+										log.error("No key file uploaded for user " + currentUser + ".");
+										model.put("errorNumber", "1");
+									} else {
+										
+										final String alias = keyLocation.getAlias();
+										if (alias == null || "".equals(alias)) {
+											log.error("No alias defined for certificate. Please add a key again.");
+											model.put("errorNumber", "3");
+										} else {
+											final KeyInfoDTO keyInfoDTO = new KeyInfoDTO();
+											keyInfoDTO.setAlgorithm((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALGORITHM));
+											keyInfoDTO.setAlias(alias);
+											keyInfoDTO.setFirstDayValidity(keyLocation.getFirstDayValidity());
+											keyInfoDTO.setLastDayValidity(keyLocation.getLastDayValidity());
+											keyInfoDTO.setSubject((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYSUBJECT));
+											keyInfoDTO.setType((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYTYPE));
+											keyInfoDTO.setAlert((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALERT));
+											
+											final Date now = new Date();
+											if (keyInfoDTO.getLastDayValidity() != null) {
+												long diff = keyInfoDTO.getLastDayValidity().getTime() - now.getTime();
+												long diffDays = diff / (24 * 60 * 60 * 1000);
+												if (diffDays < 0) {
+													keyInfoDTO.setHasExpired(true);
 												} else {
-													final KeyInfoDTO keyInfoDTO = new KeyInfoDTO();
-													keyInfoDTO.setAlgorithm((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALGORITHM));
-													keyInfoDTO.setAlias(alias);
-													keyInfoDTO.setFirstDayValidity((Date) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYFIRSTVALIDITY));
-													keyInfoDTO.setLastDayValidity((Date) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYLASTVALIDITY));
-													keyInfoDTO.setSubject((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYSUBJECT));
-													keyInfoDTO.setType((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYTYPE));
-													keyInfoDTO.setAlert((String) nodeService.getProperty(keyNodeRef, SigningModel.PROP_KEYALERT));
-													
-													final Date now = new Date();
-													if (keyInfoDTO.getLastDayValidity() != null) {
-														long diff = keyInfoDTO.getLastDayValidity().getTime() - now.getTime();
-														long diffDays = diff / (24 * 60 * 60 * 1000);
-														if (diffDays < 0) {
-															keyInfoDTO.setHasExpired(true);
-														} else {
-															keyInfoDTO.setHasExpired(false);
-															if (diffDays < 100) {
-																keyInfoDTO.setExpire(Long.toString(diffDays));
-															} else {
-																keyInfoDTO.setExpire(null);
-															}
-														}
+													keyInfoDTO.setHasExpired(false);
+													if (diffDays < 100) {
+														keyInfoDTO.setExpire(Long.toString(diffDays));
+													} else {
+														keyInfoDTO.setExpire(null);
 													}
-													
-													model.put("keyInfos", keyInfoDTO);
 												}
 											}
-											if (foundImage) {
-												model.put("hasImage", true);
-											} else {
-												model.put("hasImage", false);
-											}
-										} else {
-											log.error("No key file uploaded for user " + currentUser + ".");
-											model.put("errorNumber", "1");
+											
+											model.put("keyInfos", keyInfoDTO);
 										}
-									} else {
-										log.error("No key file uploaded for user " + currentUser + ".");
-										model.put("errorNumber", "1");
 									}
+									model.put("hasImage", keyLocation.getImageNodeRef() != null);
 								} else {
 									log.error("User '" + currentUser + "' have no home folder.");
 									model.put("errorNumber", "1");
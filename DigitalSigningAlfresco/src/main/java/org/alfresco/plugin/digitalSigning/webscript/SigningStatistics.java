@@ -0,0 +1,177 @@
+/**
+ *
+ */
+package org.alfresco.plugin.digitalSigning.webscript;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.plugin.digitalSigning.service.SigningStatisticsService;
+import org.alfresco.service.cmr.security.AccessStatus;
+import org.alfresco.service.cmr.security.AuthenticationService;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.service.cmr.security.PermissionService;
+import org.alfresco.service.cmr.site.SiteInfo;
+import org.alfresco.service.cmr.site.SiteService;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Signed documents statistics WebScript.
+ *
+ * Returns the number of documents signed during the last days, and the
+ * number signed each day, with the same filters as the signed documents
+ * dashlet. The statistics of a site are returned to the users who can read
+ * the site only. Without a site, the counts are repository-wide: only the
+ * administrators get them, the other users only get their own counts.
+ */
+public class SigningStatistics extends DeclarativeWebScript {
+
+	/**
+	 * Signing statistics service.
+	 */
+	private SigningStatisticsService signingStatisticsService;
+
+	/**
+	 * Authentication service.
+	 */
+	private AuthenticationService authenticationService;
+
+	/**
+	 * Site service.
+	 */
+	private SiteService siteService;
+
+	/**
+	 * Permission service.
+	 */
+	private PermissionService permissionService;
+
+	/**
+	 * Authority service.
+	 */
+	private AuthorityService authorityService;
+
+	/**
+	 * Process.
+	 *
+	 * @param req request
+	 * @param status status
+	 * @param cache cache
+	 *
+	 * @return model
+	 */
+	protected final Map<String, Object> executeImpl(final WebScriptRequest req,
+			final Status status, final Cache cache) {
+		final String siteId = req.getParameter("siteId") != null && req.getParameter("siteId").length() > 0 ? req.getParameter("siteId") : null;
+		final String filterPerson = req.getParameter("filterPerson");
+		final int days = getDays(req.getParameter("filterDate"));
+		final String currentUser = authenticationService.getCurrentUserName();
+		if (siteId != null) {
+			final SiteInfo site = siteService.getSite(siteId);
+			if (site == null || permissionService.hasPermission(site.getNodeRef(), PermissionService.READ) != AccessStatus.ALLOWED) {
+				// Same answer for a missing site and a site which can't be read
+				throw new WebScriptException(Status.STATUS_NOT_FOUND, "Site " + siteId + " not found.");
+			}
+		} else if (!"mine".equals(filterPerson) && !authorityService.isAdminAuthority(currentUser)) {
+			throw new WebScriptException(Status.STATUS_FORBIDDEN, "Only the administrators can get the statistics of all the signers out of a site.");
+		}
+
+		List<Long> counts;
+		if ("mine".equals(filterPerson)) {
+			counts = signingStatisticsService.getDailyCounts(siteId, currentUser, days);
+		} else {
+			counts = signingStatisticsService.getDailyCounts(siteId, null, days);
+			if ("others".equals(filterPerson)) {
+				final List<Long> mine = signingStatisticsService.getDailyCounts(siteId, currentUser, days);
+				final List<Long> others = new ArrayList<Long>(counts.size());
+				for (int i = 0; i < counts.size(); i++) {
+					others.add(Math.max(0L, counts.get(i) - mine.get(i)));
+				}
+				counts = others;
+			}
+		}
+
+		final Calendar day = Calendar.getInstance();
+		day.set(Calendar.HOUR_OF_DAY, 0);
+		day.set(Calendar.MINUTE, 0);
+		day.set(Calendar.SECOND, 0);
+		day.set(Calendar.MILLISECOND, 0);
+		day.add(Calendar.DAY_OF_MONTH, 1 - counts.size());
+
+		long total = 0;
+		final List<Map<String, Object>> histogram = new ArrayList<Map<String, Object>>(counts.size());
+		for (Long count : counts) {
+			final Map<String, Object> bucket = new HashMap<String, Object>();
+			bucket.put("date", day.getTime());
+			bucket.put("count", count);
+			histogram.add(bucket);
+			total += count;
+			day.add(Calendar.DAY_OF_MONTH, 1);
+		}
+
+		final Map<String, Object> model = new HashMap<String, Object>();
+		model.put("count", total);
+		model.put("histogram", histogram);
+		return model;
+	}
+
+	/**
+	 * @param filterDate "today" or a number of days, 28 days if not given
+	 * @return number of days, today included
+	 */
+	private int getDays(final String filterDate) {
+		if (filterDate == null || filterDate.length() == 0) {
+			return 28;
+		}
+		if ("today".equals(filterDate)) {
+			return 1;
+		}
+		try {
+			return Integer.parseInt(filterDate);
+		} catch (NumberFormatException e) {
+			throw new WebScriptException(Status.STATUS_BAD_REQUEST, "'filterDate' must be 'today' or a number of days.");
+		}
+	}
+
+	/**
+	 * @param signingStatisticsService the signingStatisticsService to set
+	 */
+	public final void setSigningStatisticsService(SigningStatisticsService signingStatisticsService) {
+		this.signingStatisticsService = signingStatisticsService;
+	}
+
+	/**
+	 * @param authenticationService the authenticationService to set
+	 */
+	public final void setAuthenticationService(AuthenticationService authenticationService) {
+		this.authenticationService = authenticationService;
+	}
+
+	/**
+	 * @param siteService the siteService to set
+	 */
+	public final void setSiteService(SiteService siteService) {
+		this.siteService = siteService;
+	}
+
+	/**
+	 * @param permissionService the permissionService to set
+	 */
+	public final void setPermissionService(PermissionService permissionService) {
+		this.permissionService = permissionService;
+	}
+
+	/**
+	 * @param authorityService the authorityService to set
+	 */
+	public final void setAuthorityService(AuthorityService authorityService) {
+		this.authorityService = authorityService;
+	}
+}
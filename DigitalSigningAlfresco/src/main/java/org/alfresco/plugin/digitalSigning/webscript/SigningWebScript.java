@@ -26,6 +26,7 @@ import org.alfresco.service.namespace.QName;
 import org.springframework.extensions.webscripts.DeclarativeWebScript;
 import org.alfresco.plugin.digitalSigning.dto.KeyInfoDTO;
 import org.alfresco.plugin.digitalSigning.model.SigningConstants;
+import org.alfresco.plugin.digitalSigning.service.KeyLocator;
 import org.alfresco.plugin.digitalSigning.utils.CryptUtils;
 import org.apache.commons.io.IOUtils;
 
@@ -56,6 +57,11 @@ public class SigningWebScript extends DeclarativeWebScript {
 	 */
 	protected MetadataEncryptor metadataEncryptor;
 	
+	/**
+	 * Key locator.
+	 */
+	protected KeyLocator keyLocator;
+	
 	/**
 	 * Get key informations.
 	 * 
@@ -156,4 +162,11 @@ public class SigningWebScript extends DeclarativeWebScript {
 		this.metadataEncryptor = metadataEncryptor;
 	}
 
+	/**
+	 * @param keyLocator the keyLocator to set
+	 */
+	public final void setKeyLocator(KeyLocator keyLocator) {
+		this.keyLocator = keyLocator;
+	}
+
 }
@@ -2,8 +2,8 @@
 
 <#escape x as jsonUtils.encodeJSONString(x)>
 {
-	"totalRecords": ${count},
-   	"startIndex": 0,
+	"totalRecords": ${count?c},
+   	"startIndex": ${startIndex?c},
    	"items":
    	[
 	<#list nodes as item>
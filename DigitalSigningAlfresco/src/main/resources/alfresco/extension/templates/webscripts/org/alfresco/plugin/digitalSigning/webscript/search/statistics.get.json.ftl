@@ -0,0 +1,14 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+	"count": ${count?c},
+	"histogram":
+	[
+	<#list histogram as bucket>
+		{
+			"date": "${bucket.date?string("yyyy-MM-dd")}",
+			"count": ${bucket.count?c}
+		}<#if bucket_has_next>,</#if>
+	</#list>
+	]
+}
+</#escape>
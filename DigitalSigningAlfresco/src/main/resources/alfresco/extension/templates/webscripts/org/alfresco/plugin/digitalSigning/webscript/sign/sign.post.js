@@ -4,13 +4,15 @@ try {
 	var document = jsonObject.document;
 	var destination = jsonObject.pathNodeRef;
 	var keyPassword = jsonObject.password;
+	var partialSuccess = jsonObject.partialSuccess;
 	
 	var parameters = new Object();
 	parameters.keyPassword=keyPassword;
 	parameters.document=document;
 	parameters.destination=destination;
+	parameters.partialSuccess=(partialSuccess == true);
 	
-	digitalSigning.sign(parameters);
+	model.results = digitalSigning.sign(parameters);
 	model.result = "success";
 } catch (e) {
 	model.result = "error";
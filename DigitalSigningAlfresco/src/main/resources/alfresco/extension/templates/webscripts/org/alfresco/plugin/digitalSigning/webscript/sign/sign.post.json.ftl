@@ -4,5 +4,21 @@
 	<#if error??>
 	,"error":"${error}"
 	</#if>
+	<#if results??>
+	,"results":
+	[
+	<#list results as signingResult>
+		{
+			"nodeRef":"${signingResult.nodeRef}",
+			"name":"${signingResult.name}",
+			"signed":"${signingResult.signed?string("true","false")}"
+			<#if signingResult.errorMessage??>
+			,"error":"${signingResult.errorMessage}"
+			</#if>
+		}
+	<#if signingResult_has_next>,</#if>
+	</#list>
+	]
+	</#if>
 }
-</#escape>
\ No newline at end of file
+</#escape>
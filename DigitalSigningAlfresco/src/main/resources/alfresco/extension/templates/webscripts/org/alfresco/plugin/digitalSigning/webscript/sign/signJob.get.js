@@ -0,0 +1,8 @@
+var jobId = url.templateArgs["jobId"];
+
+var job = digitalSigning.getJob(jobId);
+if (job == null) {
+	status.setCode(status.STATUS_NOT_FOUND, "Signing job " + jobId + " not found");
+	return;
+}
+model.job = job;
@@ -0,0 +1,41 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+	"id":"${job.id}",
+	"status":"${job.status}",
+	"total":"${job.total?c}",
+	"processed":"${job.processed?c}",
+	"submitDate":"${job.submitDate?datetime}",
+	<#if job.endDate??>
+	"endDate":"${job.endDate?datetime}",
+	</#if>
+	<#if job.errorMessage??>
+	"error":"${job.errorMessage}",
+	</#if>
+	"results":
+	[
+	<#list job.results as result>
+		{
+			"nodeRef":"${result.nodeRef}",
+			"name":"${result.name}",
+			"signed":"${result.signed?string("true","false")}"
+			<#if result.errorMessage??>
+			,"error":"${result.errorMessage}"
+			</#if>
+		}
+	<#if result_has_next>,</#if>
+	</#list>
+	],
+	"skipped":
+	[
+	<#list job.skipped as result>
+		{
+			"nodeRef":"${result.nodeRef}",
+			"name":"${result.name}",
+			"signed":"false",
+			"error":"${result.errorMessage}"
+		}
+	<#if result_has_next>,</#if>
+	</#list>
+	]
+}
+</#escape>
@@ -0,0 +1,11 @@
+<#escape x as jsonUtils.encodeJSONString(x)>
+{
+	"result":"${result}"
+	<#if jobId??>
+	,"jobId":"${jobId}"
+	</#if>
+	<#if error??>
+	,"error":"${error}"
+	</#if>
+}
+</#escape>
@@ -9,9 +9,9 @@
 			"revision":"${result.revision}",
 			"totalRevision":"${result.totalRevision}",
 			"isSignValid":"${result.isSignValid?string("true","false")}",
-			"failReason":"${result.failReason}",
-			"signReason":"${result.signReason}",
-			"signLocation":"${result.signLocation}",
+			"failReason":"${result.failReason!""}",
+			"signReason":"${result.signReason!""}",
+			"signLocation":"${result.signLocation!""}",
 			"signDate":"${result.signDate?datetime}",
 			"signName":"${result.signName}",
 			"signVersion":"${result.signVersion}",
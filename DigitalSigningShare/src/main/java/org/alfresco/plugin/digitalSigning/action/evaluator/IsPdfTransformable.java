@@ -1,10 +1,14 @@
 /**
- * 
+ *
  */
 package org.alfresco.plugin.digitalSigning.action.evaluator;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.alfresco.web.evaluator.BaseEvaluator;
 import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
 import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.ServletUtil;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
@@ -13,25 +17,52 @@ import org.springframework.extensions.webscripts.connector.Response;
 
 /**
  * Is PDF transformable evaluator.
- * 
+ *
+ * The table of the mimetypes transformable in PDF is fetched from the
+ * repository once per time to live, the evaluator then decides with the
+ * mimetype and size of the document. The repository is asked for the
+ * document itself only when the table or the document size is not available.
+ *
  * @author Emmanuel ROUX
  */
 public class IsPdfTransformable extends BaseEvaluator {
 
+	/**
+	 * Seconds the transformable mimetypes table is kept.
+	 */
+	private long timeToLiveSeconds = 300;
+
+	/**
+	 * Maximum size in bytes by transformable mimetype, -1 if not limited.
+	 */
+	private volatile Map<String, Long> transformableMimetypes;
+
+	/**
+	 * Time the table must be fetched again.
+	 */
+	private volatile long expiryTime;
+
 	@Override
 	public boolean evaluate(JSONObject jsonObject) {
     	try {
 			final String sNodeRef = (String) jsonObject.get("nodeRef");
-			final String uri = "/api/digitalSigning/isPdfTransformable?noderef=" + sNodeRef;
 
 			final RequestContext context = ThreadLocalRequestContext.getRequestContext();
 			if (context != null) {
 				final Connector connector = context.getServiceRegistry().getConnectorService().getConnector("alfresco", context.getUserId(), ServletUtil.getSession());
 				if (connector != null) {
-					final Response res = connector.call(uri);
+					final Map<String, Long> mimetypes = getTransformableMimetypes(connector);
+					final String mimetype = getNodeMimetype(jsonObject);
+					final Long size = getNodeSize(jsonObject);
+					if (mimetypes != null && mimetype != null && size != null) {
+						final Long maxSize = mimetypes.get(mimetype);
+						return maxSize != null && (maxSize < 0 || size <= maxSize);
+					}
+
+					final Response res = connector.call("/api/digitalSigning/isPdfTransformable?noderef=" + sNodeRef);
 					if (res != null) {
 						final String alfrescoWebScriptResponse = res.getResponse();
-						
+
 						if ("OK".compareTo(alfrescoWebScriptResponse) == 0) {
 							return true;
 						} else {
@@ -51,4 +82,57 @@ public class IsPdfTransformable extends BaseEvaluator {
 		}
 	}
 
+	/**
+	 * Get the transformable mimetypes table, fetched from the repository when
+	 * it has expired.
+	 *
+	 * @param connector connector to the repository
+	 * @return maximum size in bytes by mimetype, or null if it is not available
+	 */
+	private Map<String, Long> getTransformableMimetypes(final Connector connector) {
+		Map<String, Long> mimetypes = transformableMimetypes;
+		if (mimetypes == null || System.currentTimeMillis() > expiryTime) {
+			// Keep the previous table until the next try if the repository does not answer
+			expiryTime = System.currentTimeMillis() + timeToLiveSeconds * 1000L;
+			try {
+				final Response res = connector.call("/api/digitalSigning/pdfTransformableMimetypes");
+				if (res != null && res.getStatus().getCode() == 200) {
+					final JSONObject json = (JSONObject) new JSONParser().parse(res.getResponse());
+					final JSONObject jsonMimetypes = (JSONObject) json.get("mimetypes");
+					final Map<String, Long> newMimetypes = new HashMap<String, Long>();
+					for (Object mimetype : jsonMimetypes.keySet()) {
+						newMimetypes.put((String) mimetype, ((Number) jsonMimetypes.get(mimetype)).longValue());
+					}
+					mimetypes = newMimetypes;
+					transformableMimetypes = mimetypes;
+				}
+			} catch (Exception ex) {
+				// Decided by the repository for each document until the next try
+			}
+		}
+		return mimetypes;
+	}
+
+	/**
+	 * @param jsonObject document
+	 * @return the content size of the document, or null if it is not known
+	 */
+	private Long getNodeSize(final JSONObject jsonObject) {
+		final Object node = jsonObject.get("node");
+		if (node instanceof JSONObject) {
+			final Object size = ((JSONObject) node).get("size");
+			if (size instanceof Number) {
+				return ((Number) size).longValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param timeToLiveSeconds the timeToLiveSeconds to set
+	 */
+	public final void setTimeToLiveSeconds(long timeToLiveSeconds) {
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
 }
@@ -102,6 +102,50 @@
 
          // DataTable can now be rendered
          Alfresco.dashlet.SignedDocuments.superclass.onReady.apply(this, arguments);
+         this.loadStatistics();
+      },
+
+      /**
+       * Reload the documents and the number of signed documents of the filters.
+       *
+       * @method reloadDataTable
+       * @override
+       */
+      reloadDataTable: function SignedDocuments_reloadDataTable()
+      {
+         Alfresco.dashlet.SignedDocuments.superclass.reloadDataTable.apply(this, arguments);
+         this.loadStatistics();
+      },
+
+      /**
+       * Display the number of documents signed with the current filters, read
+       * from the repository counters instead of counting the listed documents.
+       *
+       * @method loadStatistics
+       */
+      loadStatistics: function SignedDocuments_loadStatistics()
+      {
+         var elStatistics = Dom.get(this.id + "-statistics");
+         Alfresco.util.Ajax.jsonGet(
+         {
+            url: Alfresco.constants.PROXY_URI + "api/digitalSigning/statistics?" + this.getParameters(),
+            successCallback:
+            {
+               fn: function SignedDocuments_loadStatistics_success(response)
+               {
+                  elStatistics.innerHTML = Alfresco.util.encodeHTML(this.msg("statistics.count", response.json.count));
+               },
+               scope: this
+            },
+            failureCallback:
+            {
+               fn: function SignedDocuments_loadStatistics_failure()
+               {
+                  elStatistics.innerHTML = "";
+               },
+               scope: this
+            }
+         });
       },
       
       /**
@@ -57,6 +57,7 @@
                <div class="clear"></div>
             </div>
          </div>
+         <div id="${id}-statistics" class="statistics"></div>
          <div class="body scrollableList" <#if args.height??>style="height: ${args.height}px;"</#if>>
             <div id="${id}-documents"></div>
          </div>